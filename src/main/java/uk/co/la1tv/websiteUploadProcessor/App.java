@@ -42,13 +42,16 @@ public class App {
 		// clean the working directory or create it if it doesn't exist
 		FileHelper.cleanWorkingDir();
 		
-		// connect to database and pass Db object to DbHelper so it can be retrieved from anywhere
-		DbHelper.setMainDb(new Db(config.getString("db.host"), config.getString("db.database"), config.getString("db.username"), config.getString("db.password")));
+		// create the database connection pool and pass Db object to DbHelper so it can be retrieved from anywhere
+		DbHelper.setMainDb(new Db(config.getString("db.host"), config.getString("db.database"), config.getString("db.username"), config.getString("db.password"), config.getInt("db.pool.maxSize"), config.getInt("db.pool.maxWaitTime"), config.getInt("db.pool.maxIdleTime"), config.getInt("db.pool.maxLifetime")));
 		
 		// start the server heartbeat manager
 		new ServerHeartbeatManager();
 		
 		// start the job poller
 		new JobPoller();
+		
+		// start encoding chunks of videos for any server that needs them
+		ChunkWorker.getInstance();
 	}
 }
@@ -0,0 +1,178 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+
+/**
+ * Keeps a lightweight change log of the files table up to date using triggers, and tails it
+ * so that the callback can be run as soon as a file changes in a way that might mean there is something to do,
+ * instead of waiting for the next poll.
+ *
+ */
+public class ChangeFeedMonitor {
+
+	private static Logger logger = Logger.getLogger(ChangeFeedMonitor.class);
+
+	// change log entries older than this (seconds) are removed
+	private static final int entryLifetime = 3600;
+	// how often old change log entries are removed (milliseconds)
+	private static final long pruneInterval = 600000;
+
+	private final Timer timer;
+	private final Runnable callback;
+	// the id of the latest change log entry that has been seen
+	private Long highWaterMark = null;
+
+	/**
+	 * @param checkInterval: the interval in milliseconds between checking for new changes.
+	 * @param callback: run whenever there are new changes.
+	 */
+	private ChangeFeedMonitor(long checkInterval, Runnable callback) {
+		this.callback = callback;
+		timer = new Timer(false);
+		timer.schedule(new CheckTask(), 0, checkInterval);
+		timer.schedule(new PruneTask(), pruneInterval, pruneInterval);
+	}
+
+	/**
+	 * Creates the change log table and triggers if they don't exist and starts monitoring it.
+	 * @param checkInterval: the interval in milliseconds between checking for new changes.
+	 * @param callback: run whenever there are new changes.
+	 * @return the ChangeFeedMonitor or null if the change log could not be set up.
+	 */
+	public static ChangeFeedMonitor start(long checkInterval, Runnable callback) {
+		logger.info("Setting up files change log...");
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not set up files change log because a connection to the database could not be made.");
+			return null;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS file_changes (id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT, file_id INT UNSIGNED NOT NULL, created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (id), KEY file_changes_created_at_index (created_at)) ENGINE=InnoDB").executeUpdate();
+			// only changes which could mean there is something new for a server to do are logged
+			createTriggerIfNotExists(dbConnection, "file_changes_after_insert", "AFTER INSERT ON files FOR EACH ROW BEGIN IF NEW.ready_for_processing=1 THEN INSERT INTO file_changes (file_id) VALUES (NEW.id); END IF; END");
+			// a lease being released means the file can be picked up by another server.
+			// the file_leases table is created by the HeartbeatManager, which is always loaded first
+			createTriggerIfNotExists(dbConnection, "file_changes_after_lease_release", "AFTER UPDATE ON file_leases FOR EACH ROW BEGIN IF NEW.expires_at IS NULL AND OLD.expires_at IS NOT NULL THEN INSERT INTO file_changes (file_id) VALUES (NEW.file_id); END IF; END");
+			createTriggerIfNotExists(dbConnection, "file_changes_after_update", "AFTER UPDATE ON files FOR EACH ROW BEGIN IF NOT (NEW.ready_for_processing <=> OLD.ready_for_processing AND NEW.process_state <=> OLD.process_state AND NEW.reprocess <=> OLD.reprocess AND NEW.ready_for_delete <=> OLD.ready_for_delete AND NEW.in_use <=> OLD.in_use AND NEW.session_id <=> OLD.session_id AND (NEW.heartbeat IS NULL) <=> (OLD.heartbeat IS NULL)) THEN INSERT INTO file_changes (file_id) VALUES (NEW.id); END IF; END");
+		} catch (SQLException e) {
+			logger.warn("Could not set up files change log. The database user might not have permission to create triggers.");
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			try {
+				dbConnection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		logger.info("Set up files change log.");
+		return new ChangeFeedMonitor(checkInterval, callback);
+	}
+
+	private static void createTriggerIfNotExists(Connection dbConnection, String name, String definition) throws SQLException {
+		PreparedStatement s = dbConnection.prepareStatement("SELECT count(*) AS count FROM information_schema.TRIGGERS WHERE TRIGGER_SCHEMA=DATABASE() AND TRIGGER_NAME=?");
+		s.setString(1, name);
+		ResultSet r = s.executeQuery();
+		r.next();
+		boolean exists = r.getInt("count") > 0;
+		s.close();
+		if (exists) {
+			return;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TRIGGER "+name+" "+definition).executeUpdate();
+			logger.info("Created trigger \""+name+"\".");
+		} catch (SQLException e) {
+			// another server might have created it at the same time
+			s = dbConnection.prepareStatement("SELECT count(*) AS count FROM information_schema.TRIGGERS WHERE TRIGGER_SCHEMA=DATABASE() AND TRIGGER_NAME=?");
+			s.setString(1, name);
+			r = s.executeQuery();
+			r.next();
+			exists = r.getInt("count") > 0;
+			s.close();
+			if (!exists) {
+				throw(e);
+			}
+		}
+	}
+
+	private class CheckTask extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				Connection dbConnection = DbHelper.getMainDb().getConnection();
+				if (dbConnection == null) {
+					logger.debug("Can't check files change log at the moment as can't connect to database.");
+					return;
+				}
+				Long latestId = null;
+				try {
+					ResultSet r = dbConnection.prepareStatement("SELECT MAX(id) AS max_id FROM file_changes").executeQuery();
+					if (r.next()) {
+						long maxId = r.getLong("max_id");
+						latestId = r.wasNull() ? 0 : maxId;
+					}
+				} catch (SQLException e) {
+					logger.error("SQLException when trying to check files change log.");
+					e.printStackTrace();
+				}
+				try {
+					dbConnection.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+
+				if (latestId == null) {
+					return;
+				}
+				boolean changed = highWaterMark != null && latestId > highWaterMark;
+				highWaterMark = latestId;
+				if (changed) {
+					logger.debug("Files have changed. Running change feed callback.");
+					callback.run();
+				}
+			}
+			catch(Exception e) {
+				logger.error("Exception occurred whilst checking files change log.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private class PruneTask extends TimerTask {
+
+		@Override
+		public void run() {
+			Connection dbConnection = DbHelper.getMainDb().getConnection();
+			if (dbConnection == null) {
+				return;
+			}
+			try {
+				PreparedStatement s = dbConnection.prepareStatement("DELETE FROM file_changes WHERE created_at<DATE_SUB(NOW(), INTERVAL ? SECOND)");
+				s.setInt(1, entryLifetime);
+				int numRemoved = s.executeUpdate();
+				s.close();
+				logger.debug("Removed "+numRemoved+" old entries from files change log.");
+			} catch (SQLException e) {
+				logger.error("SQLException when trying to remove old entries from files change log.");
+				e.printStackTrace();
+			}
+			try {
+				dbConnection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
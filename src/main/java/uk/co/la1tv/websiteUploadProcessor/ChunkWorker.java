@@ -0,0 +1,473 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import uk.co.la1tv.websiteUploadProcessor.fileTypes.VodEncodeMode;
+import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+import uk.co.la1tv.websiteUploadProcessor.helpers.FfmpegHelper;
+import uk.co.la1tv.websiteUploadProcessor.helpers.FileHelper;
+import uk.co.la1tv.websiteUploadProcessor.helpers.RuntimeHelper;
+
+/**
+ * Encodes chunks of videos that the server processing them has split into sub-jobs in the vod_chunks table, so that servers with free capacity can help with large videos.
+ * Each chunk has a lease which works in the same way as the leases on files (see HeartbeatManager), so a chunk is only encoded by one server at a time,
+ * and if that server disappears the chunk is picked up again once its lease has expired.
+ * Chunks are encoded into the shared chunks directory, and are only marked as done if the lease is still held.
+ *
+ */
+public class ChunkWorker {
+	
+	private static Logger logger = Logger.getLogger(ChunkWorker.class);
+	
+	private static ChunkWorker instance = null;
+	
+	// the states of a chunk
+	public static final int STATE_WAITING = 0;
+	public static final int STATE_DONE = 1;
+	public static final int STATE_FAILED = 2;
+	
+	private final Config config;
+	private final Timer timer;
+	private final int noThreads;
+	private final int noThreadsPerChunk;
+	// the number of times a chunk is encoded before it is marked as failed
+	private final int maxAttempts;
+	// the number of seconds a lease lasts for after it was last renewed
+	private final int leaseDuration;
+	private final ExecutorService threadPool;
+	// a permit for each thread that is not encoding a chunk
+	private final Semaphore freeThreads;
+	// the lease tokens of the chunks being encoded on this server, keyed by chunk id
+	private final ConcurrentHashMap<Integer, Long> chunksInProgress = new ConcurrentHashMap<>();
+	
+	private ChunkWorker() {
+		config = Config.getInstance();
+		// chunks are only added by servers in the DISTRIBUTED mode, so there is no point looking for them otherwise
+		noThreads = VodEncodeMode.getFromConfig() == VodEncodeMode.DISTRIBUTED ? Math.max(0, config.getInt("encoding.distributed.noWorkerThreads")) : 0;
+		maxAttempts = Math.max(1, config.getInt("encoding.distributed.maxAttempts"));
+		noThreadsPerChunk = config.getInt("encoding.chunked.noThreadsPerChunk");
+		HeartbeatManager heartbeatManager = HeartbeatManager.getInstance();
+		leaseDuration = heartbeatManager.getLeaseDuration();
+		createChunksTable();
+		freeThreads = new Semaphore(noThreads);
+		timer = new Timer(false);
+		if (noThreads > 0) {
+			threadPool = Executors.newFixedThreadPool(noThreads);
+			long pollInterval = config.getInt("encoding.distributed.pollInterval")*1000;
+			timer.schedule(new PollTask(), pollInterval, pollInterval);
+			timer.schedule(new RenewTask(), heartbeatManager.getRenewalInterval(), heartbeatManager.getRenewalInterval());
+			logger.info("Encoding chunks for other servers with up to "+noThreads+" thread(s).");
+		}
+		else {
+			threadPool = null;
+			logger.info("Not encoding chunks for other servers.");
+		}
+	}
+	
+	public static synchronized ChunkWorker getInstance() {
+		if (instance == null) {
+			instance = new ChunkWorker();
+		}
+		return instance;
+	}
+	
+	// the number of chunks this server can encode at the same time. 0 means this server doesn't encode chunks
+	public int getNoThreads() {
+		return noThreads;
+	}
+	
+	// create the table that contains the chunks, if it doesn't exist
+	private void createChunksTable() {
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not create vod_chunks table because a connection to the database could not be made.");
+			return;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS vod_chunks (id INT UNSIGNED NOT NULL AUTO_INCREMENT, source_file_id INT UNSIGNED NOT NULL, height INT UNSIGNED NOT NULL, chunk_num INT UNSIGNED NOT NULL, start_time DOUBLE NOT NULL, duration DOUBLE NULL DEFAULT NULL, scale_filter VARCHAR(255) NOT NULL, encode_options TEXT NOT NULL, state TINYINT UNSIGNED NOT NULL DEFAULT 0, attempts INT UNSIGNED NOT NULL DEFAULT 0, server_id INT UNSIGNED NULL DEFAULT NULL, token BIGINT UNSIGNED NOT NULL DEFAULT 0, expires_at TIMESTAMP NULL DEFAULT NULL, PRIMARY KEY (id), KEY vod_chunks_source_file_id_index (source_file_id), KEY vod_chunks_state_index (state, expires_at)) ENGINE=InnoDB").executeUpdate();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to create vod_chunks table.");
+			e.printStackTrace();
+		}
+		try {
+			dbConnection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Add chunks of a video that should be encoded, all in one transaction.
+	 * @param dbConnection: This must not be in a transaction.
+	 * @param sourceFileId: The file the chunks are from. Chunks are only encoded whilst this file's lease is held.
+	 * @param heights: The height of the format each chunk is being rendered for.
+	 * @param chunkNums: The position of each chunk in its format.
+	 * @param startTimes: The time in seconds in the source that each chunk starts at.
+	 * @param durations: The length of each chunk in seconds, or null to go to the end of the source.
+	 * @param scaleFilters: The video filter that scales the source for each chunk.
+	 * @param encodeOptions: The ffmpeg options for encoding the video of each chunk.
+	 * @throws SQLException
+	 */
+	public static void addChunks(Connection dbConnection, int sourceFileId, List<Integer> heights, List<Integer> chunkNums, List<Double> startTimes, List<Double> durations, List<String> scaleFilters, List<List<String>> encodeOptions) throws SQLException {
+		boolean committed = false;
+		dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
+		try {
+			PreparedStatement s = dbConnection.prepareStatement("INSERT INTO vod_chunks (source_file_id, height, chunk_num, start_time, duration, scale_filter, encode_options) VALUES (?,?,?,?,?,?,?)");
+			for (int i=0; i<heights.size(); i++) {
+				s.setInt(1, sourceFileId);
+				s.setInt(2, heights.get(i));
+				s.setInt(3, chunkNums.get(i));
+				s.setDouble(4, startTimes.get(i));
+				if (durations.get(i) != null) {
+					s.setDouble(5, durations.get(i));
+				}
+				else {
+					s.setNull(5, java.sql.Types.DOUBLE);
+				}
+				s.setString(6, scaleFilters.get(i));
+				s.setString(7, new JSONArray(encodeOptions.get(i)).toString());
+				s.addBatch();
+			}
+			boolean success = DbHelper.isBatchSuccessful(s.executeBatch(), 1);
+			s.close();
+			if (!success) {
+				throw(new SQLException("Not all of the chunks were added."));
+			}
+			dbConnection.prepareStatement("COMMIT").executeUpdate();
+			committed = true;
+		}
+		finally {
+			if (!committed) {
+				dbConnection.prepareStatement("ROLLBACK").executeUpdate();
+			}
+		}
+	}
+	
+	/**
+	 * Remove all of the chunks of a video and the files they were encoded into.
+	 * If a chunk is being encoded at the moment, the server encoding it will not be able to mark it as done and will remove its file itself.
+	 * @param dbConnection
+	 * @param sourceFileId
+	 * @throws SQLException
+	 */
+	public static void removeChunks(Connection dbConnection, int sourceFileId) throws SQLException {
+		PreparedStatement s = dbConnection.prepareStatement("SELECT id, token FROM vod_chunks WHERE source_file_id=? AND state=?");
+		s.setInt(1, sourceFileId);
+		s.setInt(2, STATE_DONE);
+		ResultSet r = s.executeQuery();
+		while(r.next()) {
+			java.io.File chunkFile = new java.io.File(FileHelper.getChunkPath(r.getInt("id"), r.getLong("token")));
+			if (chunkFile.exists() && !chunkFile.delete()) {
+				logger.warn("Could not delete encoded chunk with id "+r.getInt("id")+".");
+			}
+		}
+		s.close();
+		s = dbConnection.prepareStatement("DELETE FROM vod_chunks WHERE source_file_id=?");
+		s.setInt(1, sourceFileId);
+		int numRemoved = s.executeUpdate();
+		s.close();
+		if (numRemoved > 0) {
+			logger.debug("Removed "+numRemoved+" chunk(s) of file with id "+sourceFileId+".");
+		}
+	}
+	
+	// claim as many chunks as there are free threads and start encoding them
+	private void claimChunks() {
+		int numFreeThreads = freeThreads.availablePermits();
+		if (numFreeThreads == 0) {
+			return;
+		}
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not look for chunks to encode because a connection to the database could not be made.");
+			return;
+		}
+		try {
+			// only chunks of files that are still leased, so chunks left behind by a server that has gone away are never encoded
+			PreparedStatement s = dbConnection.prepareStatement("SELECT id FROM vod_chunks WHERE state=? AND (expires_at IS NULL OR expires_at<NOW()) AND "+HeartbeatManager.getLeaseHeldCondition("vod_chunks.source_file_id")+" ORDER BY id LIMIT ?");
+			s.setInt(1, STATE_WAITING);
+			s.setInt(2, numFreeThreads);
+			ResultSet r = s.executeQuery();
+			ArrayList<Integer> ids = new ArrayList<>();
+			while(r.next()) {
+				ids.add(r.getInt("id"));
+			}
+			s.close();
+			
+			for (int id : ids) {
+				if (!freeThreads.tryAcquire()) {
+					break;
+				}
+				Chunk chunk = null;
+				try {
+					chunk = claimChunk(dbConnection, id);
+				}
+				finally {
+					if (chunk == null) {
+						freeThreads.release();
+					}
+				}
+				if (chunk == null) {
+					// another server got there first
+					continue;
+				}
+				final Chunk chunkFinal = chunk;
+				chunksInProgress.put(chunk.id, chunk.token);
+				threadPool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							encode(chunkFinal);
+						}
+						catch(Exception e) {
+							logger.error("Exception occurred whilst encoding chunk with id "+chunkFinal.id+".");
+							e.printStackTrace();
+						}
+						finally {
+							chunksInProgress.remove(chunkFinal.id);
+							freeThreads.release();
+						}
+					}
+				});
+			}
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to claim chunks to encode.");
+			e.printStackTrace();
+		}
+		finally {
+			try {
+				dbConnection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	// acquire the lease on a chunk and load it. Returns null if the lease is held somewhere else or the chunk is no longer waiting
+	private Chunk claimChunk(Connection dbConnection, int id) throws SQLException {
+		// this is a single conditional update so if several servers try to acquire the lease at the same time only one will succeed
+		// LAST_INSERT_ID(expr) makes the new token available to this connection without having to read the row again
+		PreparedStatement s = dbConnection.prepareStatement("UPDATE vod_chunks SET server_id=?, token=LAST_INSERT_ID(token+1), expires_at=DATE_ADD(NOW(), INTERVAL ? SECOND) WHERE id=? AND state=? AND (expires_at IS NULL OR expires_at<NOW())");
+		s.setInt(1, config.getInt("server.id"));
+		s.setInt(2, leaseDuration);
+		s.setInt(3, id);
+		s.setInt(4, STATE_WAITING);
+		boolean acquired = s.executeUpdate() == 1;
+		s.close();
+		if (!acquired) {
+			return null;
+		}
+		ResultSet r = dbConnection.prepareStatement("SELECT LAST_INSERT_ID() AS token").executeQuery();
+		r.next();
+		long token = r.getLong("token");
+		
+		s = dbConnection.prepareStatement("SELECT source_file_id, height, chunk_num, start_time, duration, scale_filter, encode_options FROM vod_chunks WHERE id=?");
+		s.setInt(1, id);
+		r = s.executeQuery();
+		if (!r.next()) {
+			s.close();
+			return null;
+		}
+		ArrayList<String> encodeOptions = new ArrayList<>();
+		try {
+			JSONArray options = new JSONArray(r.getString("encode_options"));
+			for (int i=0; i<options.length(); i++) {
+				encodeOptions.add(options.getString(i));
+			}
+		}
+		catch(JSONException e) {
+			s.close();
+			logger.error("Chunk with id "+id+" has invalid encode options.");
+			complete(dbConnection, id, token, STATE_FAILED);
+			return null;
+		}
+		Double duration = r.getDouble("duration");
+		if (r.wasNull()) {
+			// the last chunk goes to the end of the source
+			duration = null;
+		}
+		Chunk chunk = new Chunk(id, token, r.getInt("source_file_id"), r.getInt("height"), r.getInt("chunk_num"), r.getDouble("start_time"), duration, r.getString("scale_filter"), encodeOptions);
+		s.close();
+		return chunk;
+	}
+	
+	private void encode(Chunk chunk) {
+		logger.info("Encoding chunk "+chunk.chunkNum+" for height "+chunk.height+" of file with id "+chunk.sourceFileId+".");
+		// the source file is read from the web app files location, which all servers share
+		java.io.File source = new java.io.File(FileHelper.getSourceFilePath(chunk.sourceFileId));
+		java.io.File output = new java.io.File(FileHelper.getChunkPath(chunk.id, chunk.token));
+		int exitVal = -1;
+		try {
+			FileUtils.forceMkdir(new java.io.File(FileHelper.getChunksDir()));
+			int noCores = CoreBudget.getInstance().acquire(noThreadsPerChunk);
+			try {
+				exitVal = RuntimeHelper.executeProgram(FfmpegHelper.getChunkEncodeCommand(source, chunk.startTime, chunk.duration, chunk.scaleFilter, chunk.encodeOptions, noCores, null, output), new java.io.File(FileHelper.getWorkingDir()), null, null);
+			}
+			finally {
+				CoreBudget.getInstance().release(noCores);
+			}
+		} catch (IOException e) {
+			logger.error("Could not create chunks directory.");
+		}
+		if (exitVal != 0) {
+			logger.warn("ffmpeg finished encoding chunk with id "+chunk.id+" but returned error code "+exitVal+".");
+		}
+		
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not record result of encoding chunk with id "+chunk.id+" because a connection to the database could not be made. It will be encoded again once its lease expires.");
+			output.delete();
+			return;
+		}
+		try {
+			boolean recorded = exitVal == 0 ? complete(dbConnection, chunk.id, chunk.token, STATE_DONE) : fail(dbConnection, chunk.id, chunk.token);
+			if (!recorded || exitVal != 0) {
+				output.delete();
+			}
+			if (!recorded) {
+				logger.warn("Could not record result of encoding chunk with id "+chunk.id+" because the lease was lost or the chunk is no longer needed.");
+			}
+			else if (exitVal == 0) {
+				logger.info("Encoded chunk with id "+chunk.id+".");
+			}
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to record result of encoding chunk with id "+chunk.id+".");
+			e.printStackTrace();
+			output.delete();
+		}
+		finally {
+			try {
+				dbConnection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	// set the final state of a chunk, only if the lease is still held. Returns true if it was updated
+	private boolean complete(Connection dbConnection, int id, long token, int state) throws SQLException {
+		PreparedStatement s = dbConnection.prepareStatement("UPDATE vod_chunks SET state=?, server_id=NULL, expires_at=NULL WHERE id=? AND token=? AND state=?");
+		s.setInt(1, state);
+		s.setInt(2, id);
+		s.setLong(3, token);
+		s.setInt(4, STATE_WAITING);
+		boolean updated = s.executeUpdate() == 1;
+		s.close();
+		return updated;
+	}
+	
+	// record that encoding a chunk failed, only if the lease is still held. Returns true if it was updated
+	// the chunk is made available to be encoded again, possibly by another server, unless it has already been tried maxAttempts times, in which case it is marked as failed
+	private boolean fail(Connection dbConnection, int id, long token) throws SQLException {
+		// the assignments are made in order so the state is worked out from the attempts before this one
+		PreparedStatement s = dbConnection.prepareStatement("UPDATE vod_chunks SET state=IF(attempts+1>=?, ?, ?), attempts=attempts+1, server_id=NULL, expires_at=NULL WHERE id=? AND token=? AND state=?");
+		s.setInt(1, maxAttempts);
+		s.setInt(2, STATE_FAILED);
+		s.setInt(3, STATE_WAITING);
+		s.setInt(4, id);
+		s.setLong(5, token);
+		s.setInt(6, STATE_WAITING);
+		boolean updated = s.executeUpdate() == 1;
+		s.close();
+		return updated;
+	}
+	
+	private class PollTask extends TimerTask {
+		
+		@Override
+		public void run() {
+			try {
+				claimChunks();
+			}
+			catch(Exception e) {
+				logger.error("Exception occurred whilst looking for chunks to encode.");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private class RenewTask extends TimerTask {
+		
+		@Override
+		public void run() {
+			try {
+				if (chunksInProgress.isEmpty()) {
+					return;
+				}
+				Connection dbConnection = DbHelper.getMainDb().getConnection();
+				if (dbConnection == null) {
+					logger.error("Could not get connection to database to renew chunk leases.");
+					return;
+				}
+				try {
+					// a lease is only renewed if its token still matches, which means nothing else has acquired it since this server did
+					// if it isn't renewed the result of the encode won't be recorded
+					PreparedStatement s = dbConnection.prepareStatement("UPDATE vod_chunks SET expires_at=DATE_ADD(NOW(), INTERVAL ? SECOND) WHERE id=? AND token=? AND state=?");
+					int num = 0;
+					for (Map.Entry<Integer, Long> chunk : chunksInProgress.entrySet()) {
+						s.setInt(1, leaseDuration);
+						s.setInt(2, chunk.getKey());
+						s.setLong(3, chunk.getValue());
+						s.setInt(4, STATE_WAITING);
+						s.addBatch();
+						num++;
+					}
+					if (!DbHelper.isBatchSuccessful(s.executeBatch(), 1)) {
+						logger.warn("Could not renew the leases of some chunks because they have been acquired somewhere else or are no longer needed.");
+					}
+					s.close();
+					logger.debug("Renewed leases for "+num+" chunk(s).");
+				}
+				finally {
+					dbConnection.close();
+				}
+			}
+			catch(Exception e) {
+				logger.error("Exception occurred whilst renewing chunk leases.");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static class Chunk {
+		public final int id;
+		public final long token;
+		public final int sourceFileId;
+		public final int height;
+		public final int chunkNum;
+		public final double startTime;
+		public final Double duration;
+		public final String scaleFilter;
+		public final List<String> encodeOptions;
+		
+		public Chunk(int id, long token, int sourceFileId, int height, int chunkNum, double startTime, Double duration, String scaleFilter, List<String> encodeOptions) {
+			this.id = id;
+			this.token = token;
+			this.sourceFileId = sourceFileId;
+			this.height = height;
+			this.chunkNum = chunkNum;
+			this.startTime = startTime;
+			this.duration = duration;
+			this.scaleFilter = scaleFilter;
+			this.encodeOptions = encodeOptions;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The number of cores on this server that encodes can use at the same time.
+ * Encodes acquire the cores they will use before they start and release them when they finish,
+ * so that all of the jobs running on this server share the cores between them.
+ *
+ */
+public class CoreBudget {
+	
+	private static Logger logger = Logger.getLogger(CoreBudget.class);
+	
+	private static CoreBudget instance = null;
+	
+	private final int noCores;
+	// a permit for each core that is not being used. Fair so that encodes that need a lot of cores aren't overtaken forever
+	private final Semaphore freeCores;
+	
+	private CoreBudget() {
+		int noCores = Config.getInstance().getInt("encoding.coreBudget");
+		if (noCores <= 0) {
+			noCores = Runtime.getRuntime().availableProcessors();
+		}
+		this.noCores = noCores;
+		freeCores = new Semaphore(noCores, true);
+		logger.info("Encodes can use "+noCores+" core(s) at the same time.");
+	}
+	
+	public static synchronized CoreBudget getInstance() {
+		if (instance == null) {
+			instance = new CoreBudget();
+		}
+		return instance;
+	}
+	
+	public int getNoCores() {
+		return noCores;
+	}
+	
+	/**
+	 * Wait until the cores are free and take them.
+	 * @param num: The number of cores wanted. If this is more than the whole budget then the whole budget is taken.
+	 * @return The number of cores that were taken, which must be released with release().
+	 */
+	public int acquire(int num) {
+		num = Math.max(1, Math.min(num, noCores));
+		freeCores.acquireUninterruptibly(num);
+		return num;
+	}
+	
+	public void release(int num) {
+		freeCores.release(num);
+	}
+}
@@ -1,38 +1,158 @@
 package uk.co.la1tv.websiteUploadProcessor;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
 import org.apache.log4j.Logger;
 
+/**
+ * A bounded pool of mysql connections.
+ * Connections retrieved with getConnection() must be closed when they are no longer needed, which returns them to the pool.
+ *
+ */
 public class Db {
-	
+
 	private static Logger logger = Logger.getLogger(Db.class);
-	
-	private String host;
-	private String database;
-	private String username;
-	private String password;
-	
-	public Db(String host, String database, String username, String password) {
+
+	// connections which have been idle for less than this amount of time will not be validated before being handed out
+	private static final long validationThreshold = 10000;
+	private static final int validationTimeout = 5; // seconds
+	private static final long maintenanceInterval = 30000;
+
+	private final String host;
+	private final String database;
+	private final String username;
+	private final String password;
+	private final int maxSize;
+	private final long maxWaitTime;
+	private final long maxIdleTime;
+	private final long maxLifetime;
+
+	// the connections that are currently in the pool and not being used. The most recently returned connection is at the end.
+	private final LinkedList<PooledConnection> idleConnections = new LinkedList<>();
+	// the number of physical connections that are open or being opened, including the ones that are currently borrowed
+	private int numConnections = 0;
+	private final Object lock1 = new Object();
+	private final Timer timer;
+
+	// metrics
+	private long numBorrows = 0;
+	private long numWaits = 0;
+	private long numTimeouts = 0;
+	private long totalWaitTime = 0;
+	private long longestWaitTime = 0;
+	private long numConnectionsOpened = 0;
+	private long numConnectionsClosed = 0;
+
+	/**
+	 * @param maxSize: The maximum number of connections that can be open at the same time.
+	 * @param maxWaitTime: The maximum amount of time in seconds getConnection() will wait for a connection to become available.
+	 * @param maxIdleTime: The amount of time in seconds a connection can be unused in the pool before it is closed.
+	 * @param maxLifetime: The maximum amount of time in seconds a connection will be kept open for.
+	 */
+	public Db(String host, String database, String username, String password, int maxSize, int maxWaitTime, int maxIdleTime, int maxLifetime) {
 		this.host = host;
 		this.database = database;
 		this.username = username;
 		this.password = password;
-		
+		if (maxSize < 1) {
+			throw(new RuntimeException("The maximum size of the database connection pool must be at least 1."));
+		}
+		this.maxSize = maxSize;
+		this.maxWaitTime = maxWaitTime*1000L;
+		this.maxIdleTime = maxIdleTime*1000L;
+		this.maxLifetime = maxLifetime*1000L;
+
 		try {
 			Class.forName("com.mysql.jdbc.Driver");
 		} catch (ClassNotFoundException e) {
 			throw(new RuntimeException("Could not load database driver."));
 		}
+
+		timer = new Timer(true);
+		timer.schedule(new MaintenanceTask(), maintenanceInterval, maintenanceInterval);
 	}
-	
-	
+
+
 	/**
-	 * Get a new mysql connection.
-	 * @return the Connection or null if a connection could not be made for some reason
+	 * Get a mysql connection from the pool. A new one will be opened if there are none free and the pool is not full.
+	 * If the pool is full this will wait for a connection to be returned.
+	 * The connection must be closed when it is no longer needed, which returns it to the pool.
+	 * @return the Connection or null if a connection could not be made or one did not become available in time.
 	 */
 	public Connection getConnection() {
+		long timeRequested = System.currentTimeMillis();
+		long deadline = timeRequested + maxWaitTime;
+		boolean waited = false;
+
+		while(true) {
+			PooledConnection pooledConnection = null;
+			synchronized(lock1) {
+				while(true) {
+					if (!idleConnections.isEmpty()) {
+						pooledConnection = idleConnections.removeLast();
+						break;
+					}
+					if (numConnections < maxSize) {
+						// reserve a space for the new connection
+						numConnections++;
+						break;
+					}
+					long remainingTime = deadline - System.currentTimeMillis();
+					if (remainingTime <= 0) {
+						numTimeouts++;
+						logger.warn("Timed out waiting for a database connection to become available in the pool.");
+						return null;
+					}
+					waited = true;
+					try {
+						lock1.wait(remainingTime);
+					} catch (InterruptedException e) {
+						throw(new RuntimeException("InterruptException occured. This shouldn't happen."));
+					}
+				}
+			}
+
+			if (pooledConnection == null) {
+				pooledConnection = openConnection();
+				if (pooledConnection == null) {
+					synchronized(lock1) {
+						numConnections--;
+						lock1.notify();
+					}
+					return null;
+				}
+			}
+			else if (!isUsable(pooledConnection)) {
+				discard(pooledConnection);
+				continue;
+			}
+
+			long waitTime = System.currentTimeMillis() - timeRequested;
+			synchronized(lock1) {
+				numBorrows++;
+				if (waited) {
+					numWaits++;
+				}
+				totalWaitTime += waitTime;
+				longestWaitTime = Math.max(longestWaitTime, waitTime);
+			}
+			return pooledConnection.borrow();
+		}
+	}
+
+	private PooledConnection openConnection() {
 		Connection connection = null;
 		logger.info("Connecting to database.");
 		try {
@@ -42,10 +162,219 @@ public class Db {
 		}
 		if (connection == null) {
 			logger.warn("Could not connect to the database for some reason.");
+			return null;
+		}
+		logger.info("Connected to database.");
+		synchronized(lock1) {
+			numConnectionsOpened++;
+		}
+		return new PooledConnection(connection);
+	}
+
+	// returns true if the connection has not expired and, if it has been idle for a while, still responds
+	private boolean isUsable(PooledConnection pooledConnection) {
+		long now = System.currentTimeMillis();
+		if (pooledConnection.timeCreated + maxLifetime < now) {
+			return false;
 		}
-		else {
-			logger.info("Connected to database.");
+		if (pooledConnection.timeLastReturned + validationThreshold > now) {
+			return true;
+		}
+		try {
+			Statement s = pooledConnection.connection.createStatement();
+			s.setQueryTimeout(validationTimeout);
+			s.executeQuery("SELECT 1");
+			s.close();
+			return true;
+		} catch (SQLException e) {
+			logger.debug("A database connection in the pool failed validation and will be replaced.");
+			return false;
+		}
+	}
+
+	// close the physical connection and free up its space in the pool
+	private void discard(PooledConnection pooledConnection) {
+		try {
+			pooledConnection.connection.close();
+		} catch (SQLException e) {
+			logger.debug("SQLException when closing database connection. It might already have been closed.");
+		}
+		synchronized(lock1) {
+			numConnections--;
+			numConnectionsClosed++;
+			lock1.notify();
+		}
+	}
+
+	// called when a borrowed connection is closed
+	private void release(PooledConnection pooledConnection) {
+		if (!pooledConnection.reset() || pooledConnection.timeCreated + maxLifetime < System.currentTimeMillis()) {
+			discard(pooledConnection);
+			return;
+		}
+		synchronized(lock1) {
+			idleConnections.addLast(pooledConnection);
+			lock1.notify();
+		}
+	}
+
+	private class MaintenanceTask extends TimerTask {
+
+		@Override
+		public void run() {
+			try {
+				long now = System.currentTimeMillis();
+				ArrayList<PooledConnection> toDiscard = new ArrayList<>();
+				synchronized(lock1) {
+					Iterator<PooledConnection> it = idleConnections.iterator();
+					while(it.hasNext()) {
+						PooledConnection pooledConnection = it.next();
+						if (pooledConnection.timeLastReturned + maxIdleTime < now || pooledConnection.timeCreated + maxLifetime < now) {
+							it.remove();
+							toDiscard.add(pooledConnection);
+						}
+					}
+				}
+				for (PooledConnection pooledConnection : toDiscard) {
+					discard(pooledConnection);
+				}
+				if (!toDiscard.isEmpty()) {
+					logger.debug("Closed "+toDiscard.size()+" database connection(s) that were idle or had reached their maximum lifetime.");
+				}
+				synchronized(lock1) {
+					double averageWaitTime = numBorrows > 0 ? (double) totalWaitTime / numBorrows : 0;
+					logger.debug("Database connection pool: "+numConnections+" open ("+idleConnections.size()+" idle) of a maximum of "+maxSize+". "+numBorrows+" borrowed, "+numWaits+" had to wait, "+numTimeouts+" timed out. Average wait "+String.format("%.1f", averageWaitTime)+"ms, longest wait "+longestWaitTime+"ms. "+numConnectionsOpened+" connections opened and "+numConnectionsClosed+" closed in total.");
+				}
+			}
+			catch(Exception e) {
+				logger.error("Exception occurred in database connection pool maintenance task.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A physical connection which belongs to the pool.
+	 * Each time it is borrowed a new proxy is created which returns it to the pool when closed.
+	 */
+	private class PooledConnection {
+
+		private final Connection connection;
+		private final long timeCreated;
+		private long timeLastReturned;
+		// statements created whilst the connection is borrowed. They are closed when the connection is returned.
+		private final ArrayList<Statement> statements = new ArrayList<>();
+		// true if a "START TRANSACTION" has been prepared on the connection without a "COMMIT" or "ROLLBACK"
+		private boolean inTransaction = false;
+
+		public PooledConnection(Connection connection) {
+			this.connection = connection;
+			timeCreated = System.currentTimeMillis();
+			timeLastReturned = timeCreated;
+		}
+
+		public Connection borrow() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new BorrowedConnectionHandler(this));
+		}
+
+		public void trackStatement(Statement statement, String sql) {
+			if (statements.size() >= 100) {
+				// connections can be borrowed for a long time so forget about the statements that have already been closed
+				Iterator<Statement> it = statements.iterator();
+				while(it.hasNext()) {
+					try {
+						if (it.next().isClosed()) {
+							it.remove();
+						}
+					} catch (SQLException e) {
+						it.remove();
+					}
+				}
+			}
+			statements.add(statement);
+			if (sql != null) {
+				String command = sql.trim().toUpperCase();
+				if (command.startsWith("START TRANSACTION")) {
+					inTransaction = true;
+				}
+				else if (command.startsWith("COMMIT") || command.startsWith("ROLLBACK")) {
+					inTransaction = false;
+				}
+			}
+		}
+
+		// clean up the connection so that it can be used again
+		// returns false if this failed and the connection should be thrown away
+		public boolean reset() {
+			timeLastReturned = System.currentTimeMillis();
+			try {
+				for (Statement statement : statements) {
+					statement.close();
+				}
+				statements.clear();
+				if (inTransaction) {
+					logger.warn("A database connection was returned to the pool in the middle of a transaction. Rolling it back.");
+					connection.prepareStatement("ROLLBACK").executeUpdate();
+					inTransaction = false;
+				}
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+				return !connection.isClosed();
+			} catch (SQLException e) {
+				logger.debug("SQLException when returning connection to the pool. The connection will be closed.");
+				return false;
+			}
+		}
+	}
+
+	private class BorrowedConnectionHandler implements InvocationHandler {
+
+		private final PooledConnection pooledConnection;
+		private boolean closed = false;
+
+		public BorrowedConnectionHandler(PooledConnection pooledConnection) {
+			this.pooledConnection = pooledConnection;
+		}
+
+		@Override
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					release(pooledConnection);
+				}
+				return null;
+			}
+			else if (name.equals("isClosed")) {
+				return closed;
+			}
+			else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			else if (name.equals("toString")) {
+				return "PooledConnection@"+Integer.toHexString(System.identityHashCode(proxy));
+			}
+
+			if (closed) {
+				throw(new SQLException("Connection has already been returned to the pool."));
+			}
+
+			Object result;
+			try {
+				result = method.invoke(pooledConnection.connection, args);
+			} catch (InvocationTargetException e) {
+				throw(e.getCause());
+			}
+			if (result instanceof Statement) {
+				pooledConnection.trackStatement((Statement) result, args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null);
+			}
+			return result;
 		}
-		return connection;
 	}
 }
@@ -79,14 +79,15 @@ public class File {
 		FileTypeProcessReturnInfo info = null;
 		
 		logger.info("Started processing file with id "+getId()+" and name '"+getName()+"'.");
-		DbHelper.updateStatus(dbConnection, getId(), "Started processing.", null);
+		StatusWriter.getInstance().update(getId(), "Started processing.", null);
 		
 		{
 			// update the process start time in the database
 			try {
-				PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET process_start_time=? WHERE id=?");
+				PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET process_start_time=? WHERE id=? AND "+HeartbeatManager.getFenceCondition());
 				s.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
 				s.setInt(2, getId());
+				HeartbeatManager.getInstance().setFenceParameters(s, 3, this);
 				if (s.executeUpdate() != 1) {
 					logger.error("There was an error updating the process_start_time for file with id "+getId()+".");
 				}
@@ -133,14 +134,14 @@ public class File {
 			catch (Exception e) {
 				e.printStackTrace();
 				logger.error("An exception was thrown whilst tryingn to process file with id "+getId()+".");
-				info = new FileTypeProcessReturnInfo();
+				info = new FileTypeProcessReturnInfo(this);
 				info.msg = "An unexpected error occurred.";
 			}
 		}
 		
 		if (info == null) {
 			// this has success set to false
-			info = new FileTypeProcessReturnInfo();
+			info = new FileTypeProcessReturnInfo(this);
 			if (overQuota) {
 				info.msg = "There is no free storage space.";
 				logger.warn("Could not process file with id "+getId()+" because the web app is over the storage quota.");
@@ -195,46 +196,24 @@ public class File {
 		if (!errorCopyingSourceFile) {
 			// update process_state in db and mark files as in_use
 			logger.debug("Updating process_state in database...");
+			HeartbeatManager heartbeatManager = HeartbeatManager.getInstance();
+			// the final status is written straight away below, so make sure an older one that hasn't been written yet can't overwrite it
+			StatusWriter.getInstance().discard(getId());
 			try {
 				logger.trace("Starting database transaction.");
 				dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
-				// get an exclusive lock on the source file then check that we still have the file registered with the heartbeat manager
-				PreparedStatement s = dbConnection.prepareStatement("SELECT * FROM files WHERE id=? FOR UPDATE");
-				s.setInt(1, getId());
-				ResultSet r = s.executeQuery();
-				
-				boolean lostHeartbeatRegistration = false;
-				if (!r.next()) {
-					logger.error("Record could not be found in database for file with id "+getId()+".");
-					lostHeartbeatRegistration = true; // if the file record is gone presume lost registration, as if this is not the case it will happen shortly
-				}
-				else {
-					// check the file is still registered with the heartbeat manager.
-					// could have lost the registration if there were sqlexceptions or other database issues. Unlikely but possible.
-					// if the registration has been lost another server could currently also be processing this file. As long as we don't update the process state or mark the files as in use everything is still stable.
-					lostHeartbeatRegistration = !HeartbeatManager.getInstance().isFileRegistered(this);
-				}
-				s.close();
-					
-				if (!lostHeartbeatRegistration && info.success && info.getNewFiles().size() > 0) {
-					
-					String query = "UPDATE files SET in_use=1 WHERE id IN (";
-					
-					for (int i=0; i<info.getNewFiles().size(); i++) {
-						if (i > 0) {
-							query += ",";
-						}
-						query += "?";
+				// every update here is conditional on this server still holding the lease on the file.
+				// could have lost the lease if there were sqlexceptions or other database issues. Unlikely but possible.
+				// if the lease has been lost another server could currently also be processing this file. As long as we don't update the process state or mark the files as in use everything is still stable.
+				// the first update that succeeds also takes a shared lock on the lease, so it can't be acquired anywhere else until this transaction has finished.
+				if (info.success && info.getNewFiles().size() > 0) {
+					PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET in_use=1 WHERE id IN ("+DbHelper.getPlaceholders(info.getNewFiles().size())+") AND "+HeartbeatManager.getFenceCondition());
+					int i = 1;
+					for(File file : info.getNewFiles()) {
+						s.setInt(i++, file.getId());
 					}
-					query += ")";
-					PreparedStatement s2 = dbConnection.prepareStatement(query);
-					{
-						int i=1;
-						for(File file : info.getNewFiles()) {
-							s2.setInt(i++, file.getId());
-						}
-					}
-					if (s2.executeUpdate() != info.getNewFiles().size()) {
+					heartbeatManager.setFenceParameters(s, i, this);
+					if (s.executeUpdate() != info.getNewFiles().size()) {
 						logger.error("Error occurred setting in_use to 1. Processing will be marked as failing.");
 						// causes processing to be marked as failure
 						info.success = false;
@@ -242,58 +221,30 @@ public class File {
 						dbConnection.prepareStatement("ROLLBACK").executeUpdate();
 						// start another transaction because rest of code in this try catch block is expecting transaction
 						dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
-						
-						// get an exclusive lock on the source file then check again that we still have the file registered with the heartbeat manager
-						PreparedStatement s3 = dbConnection.prepareStatement("SELECT * FROM files WHERE id=? FOR UPDATE");
-						s3.setInt(1, getId());
-						ResultSet r2 = s3.executeQuery();
-						if (!r2.next()) {
-							logger.error("Record could no longer be found in database for file with id "+getId()+"."); // therefore we must have now lost the registration with the heartbeat manager for some reason, or we are about to next time it tries to update the timestamp and realises the record has gone
-							lostHeartbeatRegistration = true;
-						}
-						else {
-							lostHeartbeatRegistration = !HeartbeatManager.getInstance().isFileRegistered(this);
-						}
-						s3.close();
-						
 					}
-					s2.close();
+					s.close();
 				}
 				
-				if (!lostHeartbeatRegistration) {
-					// update process_state and set error message
+				// update process_state and set error message
+				// a value of 1 represents success, 2 represents failure
+				// has_processed_successfully may already be 1 if this is a reprocessing
+				PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET process_state=?"+(info.success ? ", has_processed_successfully=1" : "")+" WHERE id=? AND "+HeartbeatManager.getFenceCondition());
+				s.setInt(1, info.success ? 1 : 2);
+				s.setInt(2, getId());
+				heartbeatManager.setFenceParameters(s, 3, this);
+				boolean success = s.executeUpdate() == 1;
+				s.close();
+				if (success) {
 					DbHelper.updateStatus(dbConnection, getId(), !info.success ? info.msg : "", null);
-					PreparedStatement s2 = dbConnection.prepareStatement("UPDATE files SET process_state=? WHERE id=?");
-					s2.setInt(1, info.success ? 1 : 2); // a value of 1 represents success, 2 represents failure
-					s2.setInt(2, getId());
-					boolean success = s2.executeUpdate() == 1;
-					if (success) {
-						if (info.success) {
-							PreparedStatement s3 = dbConnection.prepareStatement("UPDATE files SET has_processed_successfully=1 WHERE id=?");
-							s3.setInt(1, getId());
-							s3.executeUpdate(); // this may return 0 because has_processed_successfully might already be 1 if this is a reprocessing
-							s3.close();
-						}
-					}
-					if (!success) {
-						logger.trace("Rolling back database transaction.");
-						dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-						logger.error("Error occurred updating process_state for file with id "+getId()+".");
-					}
-					else {
-						logger.trace("Commiting database transaction.");
-						dbConnection.prepareStatement("COMMIT").executeUpdate();
-						logger.debug("Updated process_state in database.");
-					}
-					s2.close();
+					logger.trace("Commiting database transaction.");
+					dbConnection.prepareStatement("COMMIT").executeUpdate();
+					logger.debug("Updated process_state in database.");
 				}
 				else {
 					logger.trace("Rolling back database transaction.");
-					// nothing should have changed, but might as well rollback instead of commit to be sure
 					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-					logger.error("Heartbeat registration was lost for for file with id "+getId()+" for some reason, and therefore files were not marked as in_use and the process state was not updated.");
+					logger.error("The lease was lost for file with id "+getId()+" for some reason, or its record no longer exists, and therefore files were not marked as in_use and the process state was not updated.");
 				}
-				s.close();
 			} catch (SQLException e) {
 				try {
 					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
@@ -323,9 +274,10 @@ public class File {
 		{
 			// update the process end time in the database
 			try {
-				PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET process_end_time=? WHERE id=?");
+				PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET process_end_time=? WHERE id=? AND "+HeartbeatManager.getFenceCondition());
 				s.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
 				s.setInt(2, getId());
+				HeartbeatManager.getInstance().setFenceParameters(s, 3, this);
 				if (s.executeUpdate() != 1) {
 					logger.error("There was an error updating the process_end_time for file with id "+getId()+".");
 				}
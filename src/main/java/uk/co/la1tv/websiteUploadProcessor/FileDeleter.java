@@ -0,0 +1,277 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+import uk.co.la1tv.websiteUploadProcessor.helpers.FileHelper;
+
+/**
+ * Removes files and all of their descendants (child files, their child files etc).
+ * The whole tree is worked out a level at a time, marked for deletion with one update, the actual files are deleted in parallel,
+ * and then the records are removed in batches starting from the deepest level.
+ *
+ */
+public class FileDeleter {
+
+	private static FileDeleter instance = null;
+
+	private static Logger logger = Logger.getLogger(FileDeleter.class);
+
+	// the maximum number of ids in one query
+	private static final int batchSize = 500;
+
+	private final ExecutorService ioThreadPool;
+	private final HeartbeatManager heartbeatManager;
+
+	private FileDeleter() {
+		ioThreadPool = Executors.newFixedThreadPool(Config.getInstance().getInt("general.deletion.noIoThreads"));
+		heartbeatManager = HeartbeatManager.getInstance();
+	}
+
+	public static synchronized FileDeleter getInstance() {
+		if (instance == null) {
+			instance = new FileDeleter();
+		}
+		return instance;
+	}
+
+	/**
+	 * Removes all child files and optionally the source file.
+	 * If any child files have child files they will also be deleted.
+	 * A file and record will never be removed if one or more of its child files fails to be removed, which means the source file will never be removed if any of its descendants fail to be removed.
+	 * The source file will be registered and unregistered with the heartbeat manager, and its lease covers all of its descendants.
+	 * @param dbConnection
+	 * @param sourceFile
+	 * @param removeSourceFile
+	 * @return true if all files and records were removed successfully or false if one or more failed.
+	 */
+	public boolean removeChildFilesAndRecords(Connection dbConnection, File sourceFile, boolean removeSourceFile) {
+
+		if (!heartbeatManager.registerFile(sourceFile)) {
+			logger.info("File with id "+sourceFile.getId()+" and any of its child files will not be deleted right now because it is leased somewhere else.");
+			return false;
+		}
+
+		try {
+			// the ids of the files at each level of the tree. The first level only contains the source file
+			ArrayList<List<Integer>> levels = new ArrayList<>();
+			// the id of each descendant's source file
+			HashMap<Integer, Integer> sourceFileIds = new HashMap<>();
+			try {
+				if (!getDescendants(dbConnection, sourceFile, levels, sourceFileIds)) {
+					return false;
+				}
+			} catch (SQLException e) {
+				logger.error("SQLException when trying to find the child files of file with id "+sourceFile.getId()+".");
+				e.printStackTrace();
+				return false;
+			}
+
+			ArrayList<Integer> idsToRemove = new ArrayList<>();
+			for (int i=removeSourceFile ? 0 : 1; i<levels.size(); i++) {
+				idsToRemove.addAll(levels.get(i));
+			}
+			if (idsToRemove.isEmpty()) {
+				return true;
+			}
+
+			// set the ready_for_delete flag to 1 so that if some of the files fail to be deleted, apps can still know that they are pending deletion and may be missing some child files, and should not be used
+			// if the ready_for_delete flag is set then apps should treat this as though the file has already been deleted
+			try {
+				for (List<Integer> batch : getBatches(idsToRemove)) {
+					PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET ready_for_delete=1 WHERE id IN ("+DbHelper.getPlaceholders(batch.size())+") AND "+HeartbeatManager.getFenceCondition());
+					setIds(s, 1, batch);
+					heartbeatManager.setFenceParameters(s, batch.size()+1, sourceFile);
+					int numUpdated = s.executeUpdate();
+					s.close();
+					if (numUpdated != batch.size()) {
+						// the lease has been lost or some of the records have gone, so don't delete anything
+						logger.error("Could not mark file with id "+sourceFile.getId()+" and its child files for deletion. Only "+numUpdated+" out of "+batch.size()+" records were updated.");
+						return false;
+					}
+				}
+			} catch (SQLException e) {
+				logger.error("An SQLException occurred whilst trying to mark file with id "+sourceFile.getId()+" and its child files for deletion.");
+				e.printStackTrace();
+				return false;
+			}
+
+			// go up from the deepest level, deleting the files at each level in parallel and then their records
+			// a file and its record are never removed if any of its descendants could not be, so the ancestors of any that fail are skipped
+			HashSet<Integer> failedIds = new HashSet<>();
+			boolean allFilesDeletedSuccesfully = true;
+			for (int i=levels.size()-1; i>=(removeSourceFile ? 0 : 1); i--) {
+				ArrayList<Integer> ids = new ArrayList<>();
+				for (int id : levels.get(i)) {
+					if (!failedIds.contains(id)) {
+						ids.add(id);
+					}
+				}
+
+				ArrayList<Future<Boolean>> results = new ArrayList<>();
+				for (final int id : ids) {
+					results.add(ioThreadPool.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() {
+							return deleteFromDisk(id);
+						}
+					}));
+				}
+				ArrayList<Integer> deletedIds = new ArrayList<>();
+				for (int j=0; j<ids.size(); j++) {
+					boolean deleted = false;
+					try {
+						deleted = results.get(j).get();
+					} catch (InterruptedException e) {
+						throw(new RuntimeException("InterruptException occured. This shouldn't happen."));
+					} catch (ExecutionException e) {
+						logger.error("Exception when trying to delete file with id "+ids.get(j)+".");
+						e.printStackTrace();
+					}
+					if (deleted) {
+						deletedIds.add(ids.get(j));
+					}
+					else {
+						failedIds.add(ids.get(j));
+						allFilesDeletedSuccesfully = false;
+					}
+				}
+				for (int id : levels.get(i)) {
+					if (failedIds.contains(id) && sourceFileIds.containsKey(id)) {
+						failedIds.add(sourceFileIds.get(id));
+					}
+				}
+
+				// remove the records of the files that were deleted, before any of their ancestors
+				for (List<Integer> batch : getBatches(deletedIds)) {
+					try {
+						// only remove the records whilst the source file's lease is still held
+						PreparedStatement s = dbConnection.prepareStatement("DELETE FROM files WHERE id IN ("+DbHelper.getPlaceholders(batch.size())+") AND "+HeartbeatManager.getFenceCondition());
+						setIds(s, 1, batch);
+						heartbeatManager.setFenceParameters(s, batch.size()+1, sourceFile);
+						int numDeleted = s.executeUpdate();
+						s.close();
+						if (numDeleted != batch.size()) {
+							logger.error("Error occurred whilst deleting file records. Only "+numDeleted+" out of "+batch.size()+" were removed.");
+							return false;
+						}
+						// the leases and progress are no longer needed once the records have gone
+						for (String table : new String[]{"file_leases", "file_progress"}) {
+							s = dbConnection.prepareStatement("DELETE FROM "+table+" WHERE file_id IN ("+DbHelper.getPlaceholders(batch.size())+")");
+							setIds(s, 1, batch);
+							s.executeUpdate();
+							s.close();
+						}
+					} catch (SQLException e) {
+						logger.error("SQLException when trying to delete file records.");
+						e.printStackTrace();
+						// some records at this level may not have been removed so don't delete any of their ancestors
+						return false;
+					}
+				}
+			}
+			if (!failedIds.isEmpty()) {
+				logger.error("An error occurred when trying to remove "+failedIds.size()+" of the files in the tree of file with id "+sourceFile.getId()+".");
+			}
+			logger.debug("Removed "+(idsToRemove.size()-failedIds.size())+" file(s) in the tree of file with id "+sourceFile.getId()+".");
+			return allFilesDeletedSuccesfully;
+		}
+		finally {
+			heartbeatManager.unRegisterFile(sourceFile);
+		}
+	}
+
+	/**
+	 * Fill in the ids of the source file and all of its descendants, a level at a time.
+	 * @return false if one of the descendants is leased somewhere else and therefore nothing should be deleted.
+	 * @throws SQLException
+	 */
+	private boolean getDescendants(Connection dbConnection, File sourceFile, ArrayList<List<Integer>> levels, HashMap<Integer, Integer> sourceFileIds) throws SQLException {
+		ArrayList<Integer> level = new ArrayList<>();
+		level.add(sourceFile.getId());
+		HashSet<Integer> seenIds = new HashSet<>(level);
+		while(!level.isEmpty()) {
+			levels.add(level);
+			ArrayList<Integer> nextLevel = new ArrayList<>();
+			for (List<Integer> batch : getBatches(level)) {
+				PreparedStatement s = dbConnection.prepareStatement("SELECT id, source_file_id, "+HeartbeatManager.getLeaseHeldCondition("files.id")+" AS has_lease FROM files WHERE source_file_id IN ("+DbHelper.getPlaceholders(batch.size())+")");
+				setIds(s, 1, batch);
+				ResultSet r = s.executeQuery();
+				while(r.next()) {
+					int id = r.getInt("id");
+					if (r.getBoolean("has_lease")) {
+						// descendants are covered by the source file's lease so this one must be being used by something else
+						logger.info("File with id "+sourceFile.getId()+" and its child files will not be deleted right now because its descendant with id "+id+" is being used somewhere else.");
+						s.close();
+						return false;
+					}
+					if (!seenIds.add(id)) {
+						continue;
+					}
+					nextLevel.add(id);
+					sourceFileIds.put(id, r.getInt("source_file_id"));
+				}
+				s.close();
+			}
+			level = nextLevel;
+		}
+		return true;
+	}
+
+	// returns true if the file no longer exists
+	private boolean deleteFromDisk(int id) {
+		String path = FileHelper.getSourceFilePath(id);
+		try {
+			if (Files.exists(Paths.get(path), LinkOption.NOFOLLOW_LINKS)) {
+				FileUtils.forceDelete(new java.io.File(path));
+				if (!Files.exists(Paths.get(path), LinkOption.NOFOLLOW_LINKS)) {
+					// file no longer exists
+					logger.debug("Deleted file with id "+id+".");
+					return true;
+				}
+				return false;
+			}
+			else {
+				logger.debug("File with id "+id+" could not be deleted because it doesn't exist! Just removing record. This is possible if a file failed to copy accross after it's record was created.");
+				return true;
+			}
+		} catch (IOException e) {
+			logger.error("Error deleting file with id "+id+".");
+			return false;
+		}
+	}
+
+	private static List<List<Integer>> getBatches(List<Integer> ids) {
+		ArrayList<List<Integer>> batches = new ArrayList<>();
+		for (int i=0; i<ids.size(); i+=batchSize) {
+			batches.add(ids.subList(i, Math.min(ids.size(), i+batchSize)));
+		}
+		return batches;
+	}
+
+	private static void setIds(PreparedStatement s, int startIndex, List<Integer> ids) throws SQLException {
+		int i = startIndex;
+		for (int id : ids) {
+			s.setInt(i++, id);
+		}
+	}
+}
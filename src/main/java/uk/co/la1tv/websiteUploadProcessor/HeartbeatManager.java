@@ -4,15 +4,26 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
 import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
 
+/**
+ * Keeps track of the files this server is working on, and holds a lease on each of them in the file_leases table so that no other server works on them at the same time.
+ * Every time a lease is acquired its token is incremented, so writes which must only happen whilst the lease is still held can be made conditional on the token (see getFenceCondition).
+ * Leases expire using the database's clock, so the clocks on the servers don't need to agree.
+ *
+ */
 public class HeartbeatManager {
 	
 	private static Logger logger = Logger.getLogger(HeartbeatManager.class);
@@ -21,16 +32,24 @@ public class HeartbeatManager {
 	
 	private final Timer timer;
 	private final Config config;
-	private final HashSet<FileAndLock> files;
+	// the registered files keyed by file id.
+	// there is no global lock. Each FileAndLock is synchronized on individually, and database queries are made without holding any locks.
+	private final ConcurrentHashMap<Integer, FileAndLock> files;
 	private final long updateInterval;
-	private final Object lock1 = new Object();
+	// the number of seconds a lease lasts for after it was last renewed
+	private final int leaseDuration;
 	private final int leewayTime = 10; // seconds
+	// the maximum number of leases which will be renewed in one query
+	private final int updateBatchSize = 500;
+	// if true the heartbeat on the files record is also kept up to date, for anything that still reads it from there
+	private final boolean mirrorHeartbeat;
+	private final Random random = new Random();
 	
 	private HeartbeatManager() {
 		logger.info("Loading HeartbeatManager...");
 		config = Config.getInstance();
 		timer = new Timer(false);
-		files = new HashSet<FileAndLock>();
+		files = new ConcurrentHashMap<>();
 		int proposedUpdateInterval = config.getInt("general.heartbeatInterval");
 		final int minumumUpdateInterval = 10+leewayTime;
 		if (proposedUpdateInterval < minumumUpdateInterval) {
@@ -38,9 +57,11 @@ public class HeartbeatManager {
 			proposedUpdateInterval = minumumUpdateInterval;
 		}
 		updateInterval = proposedUpdateInterval*1000;
+		leaseDuration = proposedUpdateInterval+30;
+		mirrorHeartbeat = config.getBoolean("general.mirrorVolatileStateToFiles");
+		createLeasesTable();
 		// make the actual update task at the heartbeat interval minus some leeway
 		// this means if there is some delay for whatever reason before the schedule when the update should happen it is fine if it is within this leeway.
-		// this is checked
 		long updateTaskInterval = updateInterval - (leewayTime * 1000);
 		timer.scheduleAtFixedRate(new Task(), 0, updateTaskInterval);
 		logger.info("Loaded HeartbeatManager.");
@@ -53,6 +74,36 @@ public class HeartbeatManager {
 		return instance;
 	}
 	
+	// the number of seconds a lease lasts for after it was last renewed
+	public int getLeaseDuration() {
+		return leaseDuration;
+	}
+	
+	// the number of milliseconds between renewing leases
+	public long getRenewalInterval() {
+		return updateInterval - (leewayTime * 1000);
+	}
+	
+	// create the table that contains the leases, if it doesn't exist
+	private void createLeasesTable() {
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not create file_leases table because a connection to the database could not be made.");
+			return;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS file_leases (file_id INT UNSIGNED NOT NULL, server_id INT UNSIGNED NULL DEFAULT NULL, token BIGINT UNSIGNED NOT NULL DEFAULT 0, claim_id BIGINT NULL DEFAULT NULL, expires_at TIMESTAMP NULL DEFAULT NULL, PRIMARY KEY (file_id), KEY file_leases_expires_at_index (expires_at)) ENGINE=InnoDB").executeUpdate();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to create file_leases table.");
+			e.printStackTrace();
+		}
+		try {
+			dbConnection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	// register a file that is processing
 	// returns true if the file was successfully registered.
 	// could be false if the same file is registered at the same time from different servers. Only one will win.
@@ -65,197 +116,417 @@ public class HeartbeatManager {
 		return registerFile(file, bypassCheck, Thread.currentThread());
 	}
 	
-	// if bypassCheck is true this file will always be registered. There will be no check to see if the file is registered somewhere else.
-	// if a file record is created on this server then it should be created with the heartbeat set to the current timestamp so no other servers can pick it up right from creation
-	// in this case bypassCheck must be true to actually get it registered so the timestamp is kept updated.
+	// if bypassCheck is true this file will always be registered. The lease will be taken even if it is currently held somewhere else.
 	public boolean registerFile(File file, boolean bypassCheck, Object lockObj) {
-		synchronized(lock1) {
-			for(FileAndLock fileAndLock : files) {
-				if (fileAndLock.getFile() == file) {
-					// file already registered
-					if (fileAndLock.hasMatchingLock(lockObj)) {
-						// increment the counter instead.
-						fileAndLock.register();
-						return true;
-					}
-					else {
-						// a the lockObj that was used when this file was created is different to the one provided now.
-						logger.debug("Could not register file with id "+file.getId()+" because it is registered somewhere else in the application.");
-						return false;
-					}
-				}
+		// reserve the file in the registry first so that the database queries below can happen without any locks being held
+		FileAndLock newFileAndLock = new FileAndLock(file, lockObj);
+		Boolean alreadyRegisteredResult = reserveRegistration(newFileAndLock);
+		if (alreadyRegisteredResult != null) {
+			return alreadyRegisteredResult;
+		}
+		
+		Long token = null;
+		try {
+			token = registerFileInDb(file, bypassCheck, lockObj);
+		}
+		finally {
+			if (token != null) {
+				newFileAndLock.activate(token);
 			}
-			
-			logger.info("Registering file with id "+file.getId()+" with HeartbeatManager...");
-			// get a new connection to the database. Important because transactions are used and other java threads should not end up using the same connection.
-			Connection dbConnection = DbHelper.getMainDb().getConnection();
-			if (dbConnection == null) {
-				// could not connect for some reason#
-				logger.warn("Error trying to register file with id "+file.getId()+". Could not get connection to database.");
-				return false;
+			else {
+				// remove the reservation
+				newFileAndLock.markRemoved();
+				files.remove(file.getId(), newFileAndLock);
 			}
-			try {
-				dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
-				// getting an exclusive lock is important as it makes sure we are reading the latest timestamp
-				PreparedStatement s = dbConnection.prepareStatement("SELECT heartbeat FROM files WHERE id=? FOR UPDATE");
-				s.setInt(1, file.getId());
-				long timeRequestMade = System.currentTimeMillis();
-				ResultSet r = s.executeQuery();
-				if (!r.next()) {
-					logger.debug("Error trying to register file with id "+file.getId()+". It could not be found. Could have just been deleted.");
-					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-					s.close();
-					dbConnection.close();
-					return false;
+		}
+		if (token == null) {
+			return false;
+		}
+		logger.info("Registered file with id "+file.getId()+" with HeartbeatManager.");
+		return true;
+	}
+	
+	// adds the FileAndLock to the registry
+	// if the file is already registered the counter is incremented if the lockObj matches, and true is returned, or false is returned if the lockObj doesn't match.
+	// otherwise null is returned and the FileAndLock is now in the registry
+	private Boolean reserveRegistration(FileAndLock newFileAndLock) {
+		File file = newFileAndLock.getFile();
+		while(true) {
+			FileAndLock fileAndLock = files.putIfAbsent(file.getId(), newFileAndLock);
+			if (fileAndLock == null) {
+				return null;
+			}
+			synchronized(fileAndLock) {
+				if (fileAndLock.isRemoved()) {
+					// it has just been unregistered. Try again
+					continue;
 				}
-				
-				long timeTakenToGetResponse = System.currentTimeMillis() - timeRequestMade;
-				
-				Timestamp lastHeartbeat = r.getTimestamp("heartbeat");
-				
-				// have to presume whilst this was waiting for the lock to read the timestamp, the server with is currently processing the file was unable to update the time, because it is also waiting for a lock.
-				// e.g.
-				// server 1 already has registered a file
-				// server 1 get exclusive lock on file record and updates the timestamp on the file record at time 10
-				// server 2 makes query to get the current timestamp from the file record at time 11
-				// for whatever reason the file record is currently locked so server 2 is still waiting to get the time
-				// server 1 makes query to get lock on the file record, so that it can then update it, at time 40. It can't get a lock at the moment as it is already locked somewhere else
-				// the file record becomes unlocked, so then server 2 gets the lock as it was next in line, and gets the result, at time 45. The result it would get is 10
-				// server 2 now releases the lock and server 1 gets it and writes in the current time at time 46
-				
-				// therefore adding the time taken to get the response to the time that is received works
-				Long lastHeartbeatTime = lastHeartbeat != null ? lastHeartbeat.getTime() + timeTakenToGetResponse : null;
-				s.close();
-				// check that that the heartbeat hasn't been updates somewhere else
-				if (!bypassCheck && lastHeartbeatTime != null && lastHeartbeatTime >= getProcessingFilesTimestamp().getTime()) {
-					logger.debug("Could not register file with id "+file.getId()+" because it appears that it has been updated somewhere else.");
-					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-					dbConnection.close();
-					return false;
+				// file already registered
+				if (fileAndLock.hasMatchingLock(newFileAndLock.lockObj)) {
+					// increment the counter instead.
+					fileAndLock.register();
+					return true;
 				}
-				
-				// set the timestamp
-				s = dbConnection.prepareStatement("UPDATE files SET heartbeat=? WHERE id=?");
-				Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-				s.setTimestamp(1, currentTimestamp);
-				s.setInt(2,  file.getId());
-				int result = s.executeUpdate();
-				s.close();
-				if (result != 1) {
-					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-					dbConnection.close();
+				else {
+					// a the lockObj that was used when this file was created is different to the one provided now.
+					logger.debug("Could not register file with id "+file.getId()+" because it is registered somewhere else in the application.");
 					return false;
 				}
-				dbConnection.prepareStatement("COMMIT").executeUpdate();
+			}
+		}
+	}
+	
+	// acquires the lease on the file and then makes sure that its source file isn't leased somewhere else.
+	// returns the lease token if the file is now registered, or null otherwise.
+	private Long registerFileInDb(File file, boolean bypassCheck, Object lockObj) {
+		logger.info("Registering file with id "+file.getId()+" with HeartbeatManager...");
+		// borrow a connection from the pool so that LAST_INSERT_ID() is not affected by other java threads.
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			// could not connect for some reason#
+			logger.warn("Error trying to register file with id "+file.getId()+". Could not get connection to database.");
+			return null;
+		}
+		try {
+			Long token = acquireLease(dbConnection, file.getId(), bypassCheck);
+			if (token == null) {
+				logger.debug("Could not register file with id "+file.getId()+" because it is leased somewhere else.");
+				return null;
+			}
+			
+			// child files are covered by the source file's lease so check that the source file isn't registered somewhere else, unless it's this part of the application that has it registered
+			// this also checks the record exists, as a lease can be acquired for a file that doesn't
+			PreparedStatement s = dbConnection.prepareStatement("SELECT files.source_file_id AS source_file_id, "+getLeaseHeldCondition("files.source_file_id")+" AS source_leased FROM files WHERE files.id=?");
+			s.setInt(1, file.getId());
+			ResultSet r = s.executeQuery();
+			String reason = null;
+			if (!r.next()) {
+				reason = "it could not be found. Could have just been deleted.";
+			}
+			else if (!bypassCheck && r.getBoolean("source_leased") && !isFileRegisteredWithLock(r.getInt("source_file_id"), lockObj)) {
+				reason = "it's source file with id "+r.getInt("source_file_id")+" is registered somewhere else.";
+			}
+			s.close();
+			if (reason != null) {
+				logger.debug("Could not register file with id "+file.getId()+" because "+reason);
+				releaseLease(dbConnection, file.getId(), token);
+				return null;
+			}
+			return token;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			throw(new RuntimeException("Error trying to register a file with HeartbeatManager."));
+		}
+		finally {
+			try {
 				dbConnection.close();
 			} catch (SQLException e) {
 				e.printStackTrace();
-				try {
-					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-				} catch (SQLException e1) {
-					logger.debug("Transaction failed to be rolled back. This is possible if the reason is that the transaction failed to start in the first place.");
-				}
-				try {
-					dbConnection.close();
-				} catch (SQLException e1) {
-					e1.printStackTrace();
-				}
-				throw(new RuntimeException("Error trying to register a file with HeartbeatManager."));
-			}		
-
-			files.add(new FileAndLock(file, lockObj));
+			}
 		}
-		logger.info("Registered file with id "+file.getId()+" with HeartbeatManager.");
+	}
+	
+	/**
+	 * Acquire the leases on files that aren't currently held by anything else, with one statement.
+	 * The files are not registered. registerClaimedFile should be called with the token afterwards, or releaseLease if a file is not going to be used.
+	 * @param dbConnection
+	 * @param fileIds
+	 * @return the lease tokens of the files whose leases were acquired, keyed by file id. Files whose leases are held somewhere else are left out.
+	 * @throws SQLException
+	 */
+	public Map<Integer, Long> tryAcquireLeases(Connection dbConnection, Collection<Integer> fileIds) throws SQLException {
+		HashMap<Integer, Long> tokens = new HashMap<>();
+		if (fileIds.isEmpty()) {
+			return tokens;
+		}
+		// identifies the rows acquired by this call, because a lease already held by this server looks the same as one that has just been acquired
+		long claimId = random.nextLong();
+		StringBuilder values = new StringBuilder();
+		for (int i=0; i<fileIds.size(); i++) {
+			if (i > 0) {
+				values.append(",");
+			}
+			values.append("(?,?,1,?,DATE_ADD(NOW(), INTERVAL ? SECOND))");
+		}
+		// there is no WHERE for the update part, so every column is only changed if the lease is free
+		// the assignments are made in order, so expires_at must be last because the others check it
+		String freeCondition = "(expires_at IS NULL OR expires_at<NOW())";
+		PreparedStatement s = dbConnection.prepareStatement("INSERT INTO file_leases (file_id, server_id, token, claim_id, expires_at) VALUES "+values+" ON DUPLICATE KEY UPDATE server_id=IF("+freeCondition+", VALUES(server_id), server_id), token=IF("+freeCondition+", token+1, token), claim_id=IF("+freeCondition+", VALUES(claim_id), claim_id), expires_at=IF("+freeCondition+", VALUES(expires_at), expires_at)");
+		int i = 1;
+		for (int id : fileIds) {
+			s.setInt(i++, id);
+			s.setInt(i++, config.getInt("server.id"));
+			s.setLong(i++, claimId);
+			s.setInt(i++, leaseDuration);
+		}
+		s.executeUpdate();
+		s.close();
+		
+		s = dbConnection.prepareStatement("SELECT file_id, token FROM file_leases WHERE file_id IN ("+DbHelper.getPlaceholders(fileIds.size())+") AND claim_id=?");
+		i = 1;
+		for (int id : fileIds) {
+			s.setInt(i++, id);
+		}
+		s.setLong(i++, claimId);
+		ResultSet r = s.executeQuery();
+		while(r.next()) {
+			tokens.put(r.getInt("file_id"), r.getLong("token"));
+		}
+		s.close();
+		
+		if (mirrorHeartbeat && !tokens.isEmpty()) {
+			s = dbConnection.prepareStatement("UPDATE files SET heartbeat=NOW() WHERE id IN ("+DbHelper.getPlaceholders(tokens.size())+")");
+			i = 1;
+			for (int id : tokens.keySet()) {
+				s.setInt(i++, id);
+			}
+			s.executeUpdate();
+			s.close();
+		}
+		return tokens;
+	}
+	
+	// if force is true the lease is taken even if it is currently held somewhere else
+	private Long acquireLease(Connection dbConnection, int fileId, boolean force) throws SQLException {
+		// make sure there is a row to update. Nothing happens if there already is one
+		PreparedStatement s = dbConnection.prepareStatement("INSERT IGNORE INTO file_leases (file_id) VALUES (?)");
+		s.setInt(1, fileId);
+		s.executeUpdate();
+		s.close();
+		
+		// this is a single conditional update so if several servers try to acquire the lease at the same time only one will succeed
+		// LAST_INSERT_ID(expr) makes the new token available to this connection without having to read the row again
+		s = dbConnection.prepareStatement("UPDATE file_leases SET server_id=?, token=LAST_INSERT_ID(token+1), expires_at=DATE_ADD(NOW(), INTERVAL ? SECOND) WHERE file_id=?"+(!force ? " AND (expires_at IS NULL OR expires_at<NOW())" : ""));
+		s.setInt(1, config.getInt("server.id"));
+		s.setInt(2, leaseDuration);
+		s.setInt(3, fileId);
+		boolean acquired = s.executeUpdate() == 1;
+		s.close();
+		if (!acquired) {
+			return null;
+		}
+		ResultSet r = dbConnection.prepareStatement("SELECT LAST_INSERT_ID() AS token").executeQuery();
+		r.next();
+		long token = r.getLong("token");
+		
+		if (mirrorHeartbeat) {
+			s = dbConnection.prepareStatement("UPDATE files SET heartbeat=NOW() WHERE id=?");
+			s.setInt(1, fileId);
+			s.executeUpdate();
+			s.close();
+		}
+		return token;
+	}
+	
+	/**
+	 * Release a lease so that the file can be picked up somewhere else immediately.
+	 * Nothing happens if the lease has been acquired somewhere else since, because the token will not match.
+	 * @param dbConnection
+	 * @param fileId
+	 * @param token
+	 * @return true if the lease was released.
+	 */
+	public boolean releaseLease(Connection dbConnection, int fileId, long token) {
+		try {
+			PreparedStatement s = dbConnection.prepareStatement("UPDATE file_leases SET server_id=NULL, expires_at=NULL WHERE file_id=? AND token=?");
+			s.setInt(1, fileId);
+			s.setLong(2, token);
+			boolean released = s.executeUpdate() == 1;
+			s.close();
+			// the release is picked up by the change feed, so the pollers run straight away
+			if (released && mirrorHeartbeat) {
+				s = dbConnection.prepareStatement("UPDATE files SET heartbeat=NULL WHERE id=? AND "+getLeaseFreeCondition("files.id"));
+				s.setInt(1, fileId);
+				s.executeUpdate();
+				s.close();
+			}
+			return released;
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to release lease for file with id "+fileId+". It will expire instead.");
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	// register a file that has been claimed by this server using tryAcquireLeases.
+	// there is therefore no need to check the database again.
+	// returns false if the file is already registered somewhere else in the application.
+	public boolean registerClaimedFile(File file, long token) {
+		return registerClaimedFile(file, token, Thread.currentThread());
+	}
+	
+	public boolean registerClaimedFile(File file, long token, Object lockObj) {
+		FileAndLock newFileAndLock = new FileAndLock(file, lockObj);
+		Boolean alreadyRegisteredResult = reserveRegistration(newFileAndLock);
+		if (alreadyRegisteredResult != null) {
+			if (alreadyRegisteredResult) {
+				// the counter was incremented because it was already registered with this lockObj. A claimed file should be new so undo that
+				// the counter can't reach 0 here so the lease will not be released
+				unRegisterFile(file, lockObj);
+			}
+			return false;
+		}
+		newFileAndLock.activate(token);
+		logger.info("Registered claimed file with id "+file.getId()+" with HeartbeatManager.");
+		return true;
+	}
+	
+	// register a file that has been created from a file which is already registered.
+	// the child file will not have its own lease. Instead it is covered by the lease on the source file,
+	// and other servers will not touch it whilst the source file's lease is held.
+	// if the source file loses its registration the child file will also be treated as unregistered.
+	// returns false if the source file is not registered with the same lockObj.
+	public boolean registerChildFile(File file, File sourceFile) {
+		return registerChildFile(file, sourceFile, Thread.currentThread());
+	}
+	
+	public boolean registerChildFile(File file, File sourceFile, Object lockObj) {
+		FileAndLock sourceFileAndLock = files.get(sourceFile.getId());
+		if (sourceFileAndLock == null || !sourceFileAndLock.isActiveWithLock(lockObj)) {
+			logger.warn("Could not register file with id "+file.getId()+" because it's source file with id "+sourceFile.getId()+" is not registered.");
+			return false;
+		}
+		FileAndLock newFileAndLock = new FileAndLock(file, lockObj, sourceFileAndLock);
+		Boolean alreadyRegisteredResult = reserveRegistration(newFileAndLock);
+		if (alreadyRegisteredResult != null) {
+			return alreadyRegisteredResult;
+		}
+		newFileAndLock.activate(null);
+		logger.debug("Registered file with id "+file.getId()+" with HeartbeatManager as a child of file with id "+sourceFile.getId()+".");
 		return true;
 	}
 	
+	// returns true if a file with the provided id is registered, has not been forcibly unregistered, and has the provided lockObj
+	private boolean isFileRegisteredWithLock(int fileId, Object lockObj) {
+		FileAndLock fileAndLock = files.get(fileId);
+		return fileAndLock != null && fileAndLock.isActiveWithLock(lockObj) && !fileAndLock.getHasLostRegistration();
+	}
+	
 	public void switchLockObj(File file, Object currentLockObj) {
 		switchLockObj(file, currentLockObj, Thread.currentThread());
 	}
 	
 	// switch the lockobj that is currently associated with a registered file
 	public void switchLockObj(File file, Object currentLockObj, Object newLockObj) {
-		synchronized(lock1) {
-			for(FileAndLock fileAndLock : files) {
-				if (fileAndLock.getFile() == file) {
-					if (fileAndLock.hasMatchingLock(currentLockObj)) {
-						fileAndLock.updateLockObj(newLockObj);
-						return;
-					}
-					else {
-						throw(new RuntimeException("Could not switch lockobj on file because the current lockobj does not match."));
-					}
-				}
-			}
+		FileAndLock fileAndLock = files.get(file.getId());
+		if (fileAndLock == null) {
 			throw(new RuntimeException("Could not switch lockobj on file because the file is not registered."));
 		}
+		synchronized(fileAndLock) {
+			if (!fileAndLock.isActiveWithLock(currentLockObj)) {
+				throw(new RuntimeException("Could not switch lockobj on file because the current lockobj does not match."));
+			}
+			fileAndLock.updateLockObj(newLockObj);
+		}
 	}
 	
 	// returns true of the file is currently registered with the heartbeat manager and has not been forcibly unregistered
 	// if the file has been forcibly unregistered this server should stop making any more changes. It will still keep the file registered locally as to prevent this server picking it up again until it has unregistered it
+	// this only reflects what is known locally. Writes which need exclusivity should use getFenceCondition so that they are checked against the lease in the database.
 	public boolean isFileRegistered(File file) {
-		// TODO: should do a lookup and check the timestamp again here. 
-		synchronized(lock1) {
-			for(FileAndLock fileAndLock : files) {
-				if (fileAndLock.getFile() == file) {
-					return !fileAndLock.getHasLostRegistration();
-				}
-			}
-			return false;
-		}
+		FileAndLock fileAndLock = files.get(file.getId());
+		return fileAndLock != null && fileAndLock.isActive() && !fileAndLock.getHasLostRegistration();
 	}
 	
-	public void unRegisterFile(File file) {
-		unRegisterFile(file, Thread.currentThread());
+	public boolean unRegisterFile(File file) {
+		return unRegisterFile(file, Thread.currentThread());
 	}
 	
 	// un register a file that is no longer processing
 	// if this file has been registered several times this will do nothing until called the last time
-	public void unRegisterFile(File file, Object lockObj) {
-		synchronized(lock1) {
-			for(FileAndLock fileAndLock : files) {
-				if (fileAndLock.getFile() == file) {
-					if (fileAndLock.hasMatchingLock(lockObj)) {
-						if (fileAndLock.unRegister()) {
-							// the counter has reached 0 so the file should be completely unregistered now
-							// TODO: double check still have lock, then set the timestamp to NULL so that other servers can pick it up immediately. At the moment other servers have to wait for it to timeout
-							files.remove(fileAndLock);
-							if (!fileAndLock.getHasLostRegistration()) {
-								logger.info("Unregistered file with id "+file.getId()+" from heartbeat manager.");
-							}
-							else {
-								logger.info("Unregistered file with id "+file.getId()+" from heartbeat manager, although this file has already been forcibly unregistered for some reason so might have already been registered by another server.");
-							}
-						}
-					}
-					else {
-						throw(new RuntimeException("Cannot unregister file because the lockObj doesn't match the one it was created with."));
-					}
-					return;
-				}
-			}
+	// returns false if the file isn't registered with the provided lockObj, in which case nothing happens. This is often called whilst handling another error so it never throws an exception
+	public boolean unRegisterFile(File file, Object lockObj) {
+		FileAndLock fileAndLock = files.get(file.getId());
+		if (fileAndLock == null) {
 			// the file is not registered. may have been forcibly unregistered though so don't throw an exception, just ignore it.
+			return false;
 		}
-	}
-	
-	// if the heartbeat manager can no longer guarantee it has the file registered it will unregister it.
-	// the main program code should use isFileRegistered to check if the file is still registered before performing tasks which require exclusivity (probably whilst in a database transaction with an exclusive lock)
-	private void forciblyUnregisterFile(File file) {
-		synchronized(lock1) {
-			for(FileAndLock fileAndLock : files) {
-				if (fileAndLock.getFile() == file) {
-					fileAndLock.markRegistrationLost();
-					logger.warn("Forcibly unregistered file with id "+file.getId()+" as can no longer guarantee exclusive access for some reason.");
-					break;
-				}
+		synchronized(fileAndLock) {
+			if (!fileAndLock.isActiveWithLock(lockObj)) {
+				logger.warn("Cannot unregister file with id "+file.getId()+" because the lockObj doesn't match the one it was created with.");
+				return false;
+			}
+			if (!fileAndLock.unRegister()) {
+				return true;
 			}
+			// the counter has reached 0 so the file should be completely unregistered now
+			// once it is marked as removed the heartbeat task will no longer renew its lease
+			fileAndLock.markRemoved();
+			files.remove(file.getId(), fileAndLock);
+		}
+		if (fileAndLock.getHasLostRegistration()) {
+			logger.info("Unregistered file with id "+file.getId()+" from heartbeat manager, although this file has already been forcibly unregistered for some reason so might have already been registered by another server.");
+			return true;
 		}
+		logger.info("Unregistered file with id "+file.getId()+" from heartbeat manager.");
+		if (fileAndLock.isChild()) {
+			// child files don't have their own lease
+			return true;
+		}
+		// release the lease so that other servers can pick it up immediately, instead of having to wait for it to expire
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not release lease for file with id "+file.getId()+" because a connection to the database could not be made. It will expire instead.");
+			return true;
+		}
+		if (releaseLease(dbConnection, file.getId(), fileAndLock.getToken())) {
+			logger.info("Released lease for file with id "+file.getId()+".");
+		}
+		try {
+			dbConnection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return true;
 	}
 	
-	// returns the Timestamp that should be used to determine if a file is being processed
-	// files with timestamps less than this value are no longer being processed
-	public Timestamp getProcessingFilesTimestamp() {
-		return new Timestamp(System.currentTimeMillis() - updateInterval - 30000);
+	/**
+	 * Returns a condition which is only true whilst this server still holds the lease that covers a file, for use in the WHERE part of a write.
+	 * Within a transaction the write also takes a shared lock on the lease, so the lease can't be acquired anywhere else until the transaction has finished.
+	 * The parameters must be set with setFenceParameters.
+	 * @return
+	 */
+	public static String getFenceCondition() {
+		return "EXISTS (SELECT 1 FROM file_leases WHERE file_leases.file_id=? AND file_leases.token=?)";
+	}
+	
+	/**
+	 * Set the parameters for a condition from getFenceCondition.
+	 * If the file is not registered, or has been forcibly unregistered, the condition will always be false.
+	 * @param s
+	 * @param index: the index of the first parameter
+	 * @param file
+	 * @return the index of the next parameter
+	 * @throws SQLException
+	 */
+	public int setFenceParameters(PreparedStatement s, int index, File file) throws SQLException {
+		FileAndLock fileAndLock = files.get(file.getId());
+		FileAndLock leaseOwner = fileAndLock != null && fileAndLock.isActive() && !fileAndLock.getHasLostRegistration() ? fileAndLock.getLeaseOwner() : null;
+		s.setInt(index++, leaseOwner != null ? leaseOwner.getFile().getId() : file.getId());
+		// tokens start at 1 so 0 never matches
+		s.setLong(index++, leaseOwner != null ? leaseOwner.getToken() : 0);
+		return index;
+	}
+	
+	// returns a condition which is true if the file with the id in the provided column currently has a lease that hasn't expired
+	public static String getLeaseHeldCondition(String fileIdColumn) {
+		return "EXISTS (SELECT 1 FROM file_leases WHERE file_leases.file_id="+fileIdColumn+" AND file_leases.expires_at>=NOW())";
+	}
+	
+	// returns a condition which is true if the file with the id in the provided column can be leased
+	public static String getLeaseFreeCondition(String fileIdColumn) {
+		return "NOT "+getLeaseHeldCondition(fileIdColumn);
+	}
+	
+	// if the heartbeat manager can no longer guarantee it has the file registered it will unregister it.
+	// the main program code should use isFileRegistered to check if the file is still registered before performing tasks which require exclusivity, and make database writes conditional with getFenceCondition
+	private void forciblyUnregisterFile(FileAndLock fileAndLock) {
+		if (fileAndLock.isRemoved()) {
+			// it has already been unregistered
+			return;
+		}
+		fileAndLock.markRegistrationLost();
+		logger.warn("Forcibly unregistered file with id "+fileAndLock.getFile().getId()+" as can no longer guarantee exclusive access for some reason.");
 	}
 	
 	private class Task extends TimerTask {
@@ -264,91 +535,37 @@ public class HeartbeatManager {
 		public synchronized void run() {
 			
 			try {
-				logger.debug("Updating heartbeat timestamps...");
+				logger.debug("Renewing leases...");
 				if (files.isEmpty()) {
-					logger.debug("No files processing that need timestamps updating.");
+					logger.debug("No files processing that need leases renewing.");
 					return;
 				}
 				
-				synchronized(lock1) {
+				{
+					// this works on a snapshot of the registry so that files can be registered and unregistered whilst the database is being updated
+					ArrayList<FileAndLock> filesToUpdate = new ArrayList<>();
+					for (FileAndLock fileAndLock : files.values()) {
+						// no point renewing the lease for files which have already been forcibly unregistered, or are still being registered
+						// child files are covered by their source file's lease
+						if (fileAndLock.isActive() && !fileAndLock.getHasLostRegistration() && !fileAndLock.isChild()) {
+							filesToUpdate.add(fileAndLock);
+						}
+					}
 					
 					Connection dbConnection = DbHelper.getMainDb().getConnection();
-					// loop over a clone of the list so that items can be removed from actual list without concurrency exceptions
-					for (FileAndLock fileAndLock : new HashSet<FileAndLock>(files)) {
-						File file = fileAndLock.getFile();
-					
-						if (dbConnection == null) {
-							// error connecting to database
-							// therefore can't update timestamp so can't guarantee this file is only registered with this server so forcivly unregister it
-							forciblyUnregisterFile(file);
-						}
-						else {
-							boolean unregisterFile = false;
-							try {
-								dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
-								// first get an exclusive lock on the file record
-								PreparedStatement s = dbConnection.prepareStatement("SELECT heartbeat FROM files WHERE id=? FOR UPDATE");
-								s.setInt(1, file.getId());
-								s.executeQuery();
-								ResultSet r = s.getResultSet();
-								if (!r.next()) {
-									// couldn't find the record for some reason
-									// unregister the file
-									logger.warn("Attempting to update timestamp for file with id "+file.getId()+" but could not find record.");
-									unregisterFile = true;
-								}
-								s.close();
-								
-								// now that we have an exclusive lock check to see if it has been too long since the last update.
-								// need to use the time locally that we last updated not the one in the record we just received because if has been too long, that time might have been updated somewhere else
-								// if this is the case unregister the file
-								if (fileAndLock.timeHeartbeatLastUpdated != null && fileAndLock.timeHeartbeatLastUpdated + updateInterval < System.currentTimeMillis()) {
-									// the update interval has passed since the last update so it can no longer be guarenteed that another server hasn't picked up the file.
-									unregisterFile = true;
-								}
-								
-								if (unregisterFile) {
-									forciblyUnregisterFile(file);
-									dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-								}
-								else {
-									// now that we have an exclusive lock we can be confident that this query will execute pretty instantly and therefore the time will be accurate.
-									// if we didn't get the lock above then this update command would need to get an exclusive lock, which could take some time, meaning then when it gets the lock the time that would be written would be old
-									// whenever a server tries to register a file they first request an exclusive lock on the record.
-									// provided that all requests to the mysql server with exclusive locks are handled in the order that the locks were requested, there should be no issues
-									Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-									s = dbConnection.prepareStatement("UPDATE files SET heartbeat=? WHERE id=?");
-									s.setTimestamp(1, currentTimestamp);
-									s.setInt(2, file.getId());
-									if (s.executeUpdate() != 1) {
-										logger.error("Error occurred when updating heartbeat timestamp for file with id "+file.getId()+".");
-										dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-										// can no longer guarantee this file is registered with this server so unregister it
-										forciblyUnregisterFile(file);
-									}
-									else {
-										dbConnection.prepareStatement("COMMIT").executeUpdate();
-										fileAndLock.timeHeartbeatLastUpdated = System.currentTimeMillis();
-										logger.debug("Updated heartbeat timestamp for file with id "+file.getId()+".");
-									}
-									s.close();
-								}
-							
-							} catch (SQLException e) {
-								logger.error("SQLException occurred when updating heartbeat timestamp for file with id "+file.getId()+".");
-								e.printStackTrace();
-								try {
-									dbConnection.prepareStatement("ROLLBACK").executeUpdate();
-								} catch (SQLException e1) {
-									logger.debug("Transaction for updating heartbeat timestamps failed to be rolled back. This is possible if the reason is that the transaction failed to start in the first place.");
-								}
-								
-								// can no longer guarantee this file is registered with this server so unregister it
-								forciblyUnregisterFile(file);
-							}
+					if (dbConnection == null) {
+						// error connecting to database
+						// therefore can't renew leases so can't guarantee these files are only registered with this server so forcibly unregister them
+						logger.error("Could not get connection to database to renew leases.");
+						for (FileAndLock fileAndLock : filesToUpdate) {
+							forciblyUnregisterFile(fileAndLock);
 						}
 					}
-					if (dbConnection != null) {
+					else {
+						// the leases are renewed in batches so the number of queries stays roughly constant no matter how many files are registered
+						for (int i=0; i<filesToUpdate.size(); i+=updateBatchSize) {
+							renewLeases(dbConnection, filesToUpdate.subList(i, Math.min(i+updateBatchSize, filesToUpdate.size())));
+						}
 						try {
 							dbConnection.close();
 						} catch (SQLException e) {
@@ -356,7 +573,7 @@ public class HeartbeatManager {
 						}
 					}
 				}
-				logger.debug("Finished updating heartbeat timestamps.");
+				logger.debug("Finished renewing leases.");
 			}
 			catch(Exception e) {
 				// if there is an exception that has not been handled occuring in the heartbeat task then regard this as fatal and terminate the app.
@@ -365,44 +582,156 @@ public class HeartbeatManager {
 				System.exit(1);
 			}
 		}
+		
+		// renew the leases for a batch of files.
+		// a lease is only renewed if its token still matches, which means nothing else has acquired it since this server did.
+		// this is the case even if it has expired, because nothing else can have worked on the file in the meantime.
+		// any file whose lease could not be renewed is forcibly unregistered
+		private void renewLeases(Connection dbConnection, List<FileAndLock> batch) {
+			String idsPlaceholder = DbHelper.getPlaceholders(batch.size());
+			try {
+				StringBuilder tokenCases = new StringBuilder();
+				for (int i=0; i<batch.size(); i++) {
+					tokenCases.append(" WHEN ? THEN ?");
+				}
+				// a lease that has been released has no expiry time and is never renewed
+				PreparedStatement s = dbConnection.prepareStatement("UPDATE file_leases SET expires_at=DATE_ADD(NOW(), INTERVAL ? SECOND) WHERE file_id IN ("+idsPlaceholder+") AND expires_at IS NOT NULL AND token=CASE file_id"+tokenCases+" END");
+				int i = 1;
+				s.setInt(i++, leaseDuration);
+				for (FileAndLock fileAndLock : batch) {
+					s.setInt(i++, fileAndLock.getFile().getId());
+				}
+				for (FileAndLock fileAndLock : batch) {
+					s.setInt(i++, fileAndLock.getFile().getId());
+					s.setLong(i++, fileAndLock.getToken());
+				}
+				int numUpdated = s.executeUpdate();
+				s.close();
+				
+				ArrayList<FileAndLock> renewed = new ArrayList<>(batch);
+				if (numUpdated != batch.size()) {
+					// find out which ones were not renewed
+					s = dbConnection.prepareStatement("SELECT file_id, token FROM file_leases WHERE file_id IN ("+idsPlaceholder+") AND expires_at IS NOT NULL");
+					i = 1;
+					for (FileAndLock fileAndLock : batch) {
+						s.setInt(i++, fileAndLock.getFile().getId());
+					}
+					ResultSet r = s.executeQuery();
+					HashMap<Integer, Long> tokens = new HashMap<>();
+					while(r.next()) {
+						tokens.put(r.getInt("file_id"), r.getLong("token"));
+					}
+					s.close();
+					for (FileAndLock fileAndLock : batch) {
+						Long token = tokens.get(fileAndLock.getFile().getId());
+						if (token == null || token != fileAndLock.getToken()) {
+							logger.warn("Could not renew lease for file with id "+fileAndLock.getFile().getId()+" because it has been released or acquired somewhere else.");
+							forciblyUnregisterFile(fileAndLock);
+							renewed.remove(fileAndLock);
+						}
+					}
+				}
+				
+				if (!renewed.isEmpty() && mirrorHeartbeat) {
+					s = dbConnection.prepareStatement("UPDATE files SET heartbeat=NOW() WHERE id IN ("+DbHelper.getPlaceholders(renewed.size())+")");
+					i = 1;
+					for (FileAndLock fileAndLock : renewed) {
+						s.setInt(i++, fileAndLock.getFile().getId());
+					}
+					s.executeUpdate();
+					s.close();
+				}
+				logger.debug("Renewed leases for "+renewed.size()+" file(s).");
+			} catch (SQLException e) {
+				logger.error("SQLException occurred when renewing leases for "+batch.size()+" file(s).");
+				e.printStackTrace();
+				// can no longer guarantee these files are registered with this server so unregister them
+				for (FileAndLock fileAndLock : batch) {
+					forciblyUnregisterFile(fileAndLock);
+				}
+			}
+		}
 	}
 	
+	// a registration in the registry. All methods are synchronized so that the state can be read and updated from any thread
 	private class FileAndLock {
 		private final File file;
 		private int counter = 1;
+		// false until the file has actually been registered. Whilst false the file is reserved in the registry so that it can't be registered elsewhere in the application
+		private boolean active = false;
+		// true once the file has been completely unregistered and removed from the registry
+		private boolean removed = false;
 		private boolean lostRegistration = false; // true if the registration has been lost for some reason and another server may now register the file
 		// an object reference which will be provided when the file is registered and only the same reference will work for unregistering
 		private Object lockObj;
-		public Long timeHeartbeatLastUpdated = null;
-
+		// the registration of the source file if this is a child file which is covered by it
+		private final FileAndLock parent;
+		// the token of the lease this server holds on the file. null for child files
+		private Long token = null;
+		
 		public FileAndLock(File file, Object lockObj) {
+			this(file, lockObj, null);
+		}
+		
+		public FileAndLock(File file, Object lockObj, FileAndLock parent) {
 			this.file = file;
 			this.lockObj = lockObj;
+			this.parent = parent;
+		}
+		
+		public boolean isChild() {
+			return parent != null;
+		}
+		
+		// returns the registration which holds the lease that covers this file
+		public FileAndLock getLeaseOwner() {
+			return parent != null ? parent.getLeaseOwner() : this;
+		}
+		
+		public synchronized void activate(Long token) {
+			this.token = token;
+			active = true;
+		}
+		
+		public synchronized boolean isActive() {
+			return active && !removed;
+		}
+		
+		public synchronized boolean isActiveWithLock(Object lockObj) {
+			return isActive() && hasMatchingLock(lockObj);
+		}
+		
+		public synchronized void markRemoved() {
+			removed = true;
+		}
+		
+		public synchronized boolean isRemoved() {
+			return removed;
 		}
 		
 		// returns true if the thread calling this method matches the thread that created this object
-		public boolean hasMatchingLock(Object lockObj) {
+		public synchronized boolean hasMatchingLock(Object lockObj) {
 			return this.lockObj == lockObj;
 		}
 		
-		public void updateLockObj(Object newLockObj) {
+		public synchronized void updateLockObj(Object newLockObj) {
 			lockObj = newLockObj;
 		}
 		
-		public void register() {
+		public synchronized void register() {
 			counter++;
 		}
 		
-		public void markRegistrationLost() {
+		public synchronized void markRegistrationLost() {
 			lostRegistration = true;
 		}
 		
 		// true if the file has been forcibly unregistered, meaning another server may now have now registered this file.
-		public boolean getHasLostRegistration() {
-			return lostRegistration;
+		public synchronized boolean getHasLostRegistration() {
+			return lostRegistration || (parent != null && parent.getHasLostRegistration());
 		}
 		
-		public boolean unRegister() {
+		public synchronized boolean unRegister() {
 			counter--;
 			if (counter < 0) {
 				throw(new RuntimeException("The counter should never go below 0. Unregister has been called too many times."));
@@ -410,6 +739,10 @@ public class HeartbeatManager {
 			return counter == 0;
 		}
 		
+		public synchronized long getToken() {
+			return token;
+		}
+		
 		public File getFile() {
 			return file;
 		}
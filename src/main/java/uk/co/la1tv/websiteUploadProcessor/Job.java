@@ -3,21 +3,22 @@ package uk.co.la1tv.websiteUploadProcessor;
 import java.sql.Connection;
 import java.sql.SQLException;
 
+import org.apache.log4j.Logger;
+
 import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
 
 public class Job implements Runnable {
 	
+	private static Logger logger = Logger.getLogger(Job.class);
+	
 	private final CompletionHandlerI completionHandler;
 	private final File file;
-	private final Connection dbConnection;
 	private final Object initialHeartbeatManagerFileLockObj;
 	
 	public Job(CompletionHandlerI completionHandler, File file, Object initialHeartbeatManagerFileLockObj) {
 		this.completionHandler = completionHandler;
 		this.file = file;
 		this.initialHeartbeatManagerFileLockObj = initialHeartbeatManagerFileLockObj;
-		// create a new connection to the database for this job
-		dbConnection = DbHelper.getMainDb().getConnection();
 	}
 	
 	@Override
@@ -25,11 +26,19 @@ public class Job implements Runnable {
 		// switch the lock object on the file to the reference to the current thread
 		HeartbeatManager.getInstance().switchLockObj(file, initialHeartbeatManagerFileLockObj);
 		
-		file.process(dbConnection);
-		try {
-			dbConnection.close();
-		} catch (SQLException e) {
-			throw(new RuntimeException("SQLException when trying to close database connection."));
+		// borrow a connection from the pool for the duration of this job
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			// the file will be picked up again once its lease has expired
+			logger.error("Could not process file with id "+file.getId()+" because a database connection could not be retrieved.");
+		}
+		else {
+			file.process(dbConnection);
+			try {
+				dbConnection.close();
+			} catch (SQLException e) {
+				throw(new RuntimeException("SQLException when trying to close database connection."));
+			}
 		}
 		completionHandler.markCompletion(file);
 	}
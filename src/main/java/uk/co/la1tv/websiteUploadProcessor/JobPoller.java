@@ -1,447 +1,744 @@
 package uk.co.la1tv.websiteUploadProcessor;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
-import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
 import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileType;
 import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
-import uk.co.la1tv.websiteUploadProcessor.helpers.FileHelper;
 
 /**
  * Scans the File table at set intervals looking for new files with file types that require processing.
  * If it finds a file that requires processing it adds that files id to the queue where it will be picked up by a worker.
+ * Looking for files to reprocess, delete and process are separate phases which each run on their own timer with their own connection,
+ * so that a slow phase doesn't hold up the others.
+ * If the change feed is enabled the table is also scanned as soon as a relevant change is made to it, and the set intervals become a safety net.
  *
  */
 public class JobPoller {
 	
 	private static Logger logger = Logger.getLogger(JobPoller.class);
 	
-	// contains the Files that have been added to the threadPool for processing
-	// they are removed after the relevant process has completed.
-	// when the processing has completed they won't be picked up again because the conditions for picking up a job will no longer be met in the database query
-	private LinkedHashSet<File> filesInProgress = new LinkedHashSet<>();
-	private ExecutorService threadPool;
+	// the conditions on the file record that mean a file needs processing
+	private static final String processRecordCondition = "files.ready_for_processing=1 AND files.process_state=0 AND files.ready_for_delete=0 AND (files.session_id IS NOT NULL OR files.in_use=1)";
+	// the conditions a file must meet to be picked up for processing
+	private static final String processCondition = processRecordCondition+" AND "+HeartbeatManager.getLeaseFreeCondition("files.id");
+	// the maximum number of estimated costs to remember
+	private static final int maxNumEstimatedCosts = 1000;
+	// interval in milliseconds between logging how long files waited before being picked up
+	private static final long queueWaitStatsInterval = 600000;
+	
+	// each lane has its own threads and set of files in progress.
+	// when the processing has completed files won't be picked up again because the conditions for picking up a job will no longer be met in the database query
+	private final List<WorkerLane> lanes;
 	private TaskCompletionHandler taskCompletionHandler;
 	private Timer timer;
 	private Config config;
 	private HeartbeatManager heartbeatManager;
-	private final int pollInterval;
-	
-	private Object lock1 = new Object();
+	private FileDeleter fileDeleter;
+	private final ArrayList<Phase> phases = new ArrayList<>();
+	private ProcessPhase processPhase;
+	private final SchedulingPolicy schedulingPolicy;
+	private final String priorityColumn;
+	private final double agingRate;
+	private final int candidateWindow;
+	private ChangeFeedMonitor changeFeedMonitor = null;
+	// the queue of candidate files to look in instead of the files table. null if it's not being used
+	private JobQueue jobQueue = null;
+	// estimated costs of files that have been candidates, so that they don't need working out again on every poll
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<Integer, Double> estimatedCosts = new LinkedHashMap<Integer, Double>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Double> eldest) {
+			return size() > maxNumEstimatedCosts;
+		}
+	};
 	
 	public JobPoller() {
 		logger.info("Loading Job Poller...");
 		config = Config.getInstance();
-		threadPool = Executors.newFixedThreadPool(config.getInt("general.noThreads"));
+		lanes = WorkerLane.createFromConfig();
+		createServerLoadsTable();
+		createProgressTable();
 		taskCompletionHandler = new TaskCompletionHandler();
 		heartbeatManager = HeartbeatManager.getInstance();
-		pollInterval = config.getInt("general.pollInterval")*1000;
+		fileDeleter = FileDeleter.getInstance();
+		try {
+			schedulingPolicy = SchedulingPolicy.valueOf(config.getString("general.scheduling.policy").trim().toUpperCase());
+		}
+		catch(IllegalArgumentException e) {
+			throw(new RuntimeException("Unknown scheduling policy \""+config.getString("general.scheduling.policy")+"\"."));
+		}
+		priorityColumn = config.getString("general.scheduling.priorityColumn");
+		if (schedulingPolicy.usesPriority() && !priorityColumn.matches("^[a-zA-Z0-9_]+$")) {
+			throw(new RuntimeException("Invalid priority column name \""+priorityColumn+"\"."));
+		}
+		agingRate = config.getDouble("general.scheduling.agingRate");
+		candidateWindow = config.getInt("general.scheduling.candidateWindow");
+		logger.info("Using "+schedulingPolicy+" scheduling policy.");
 		timer = new Timer(false);
-		timer.schedule(new PollTask(), 0, pollInterval);
+		// if set the phases will use this instead of their own poll intervals
+		Integer changeFeedPollInterval = null;
+		if (config.getBoolean("general.changeFeed.enabled")) {
+			changeFeedMonitor = ChangeFeedMonitor.start(config.getInt("general.changeFeed.checkInterval")*1000, new Runnable() {
+				@Override
+				public void run() {
+					requestPoll();
+				}
+			});
+			if (changeFeedMonitor != null) {
+				// changes will be picked up by the change feed so only poll occasionally in case one is missed
+				changeFeedPollInterval = config.getInt("general.changeFeed.pollInterval")*1000;
+				// the queue is kept up to date from the change log
+				if (config.getBoolean("general.jobQueue.enabled")) {
+					jobQueue = JobQueue.create(config.getInt("general.jobQueue.rebuildInterval")*1000L);
+					if (jobQueue == null) {
+						logger.warn("File queue could not be set up. Files will be looked for in the files table instead.");
+					}
+				}
+			}
+			else {
+				logger.warn("Change feed could not be started. Falling back to the poll interval for each phase.");
+			}
+		}
+		phases.add(new ReprocessPhase(changeFeedPollInterval));
+		phases.add(new DeletePhase(changeFeedPollInterval));
+		processPhase = new ProcessPhase(changeFeedPollInterval);
+		phases.add(processPhase);
+		timer.schedule(new QueueWaitStatsTask(), queueWaitStatsInterval, queueWaitStatsInterval);
 		logger.info("Job poller loaded.");
 	}
 	
-	private class PollTask extends TimerTask {
+	/**
+	 * Schedule all phases to run as soon as possible.
+	 * If a phase has already been requested and has not started yet then this will not schedule another run of it.
+	 */
+	public void requestPoll() {
+		for (Phase phase : phases) {
+			phase.requestRun();
+		}
+	}
 	
+	/**
+	 * Part of polling which runs on its own timer with its own database connection.
+	 */
+	private abstract class Phase {
 		
-		@Override
-		public void run() {
-			synchronized(lock1) {
+		private final String name;
+		private final Timer phaseTimer;
+		private final long timeBudget;
+		// true if a run has been requested and has not started yet
+		private final AtomicBoolean runRequested = new AtomicBoolean(false);
+		
+		/**
+		 * @param name: the name of the phase, which is used in the config and log.
+		 * @param changeFeedPollInterval: if not null this will be used as the poll interval instead of the one in the config.
+		 */
+		public Phase(String name, Integer changeFeedPollInterval) {
+			this.name = name;
+			long pollInterval = changeFeedPollInterval != null ? changeFeedPollInterval : config.getInt("general.phases."+name+".pollInterval")*1000L;
+			timeBudget = config.getInt("general.phases."+name+".timeBudget")*1000L;
+			phaseTimer = new Timer(false);
+			phaseTimer.schedule(new PhaseTask(), 0, pollInterval);
+		}
+		
+		public void requestRun() {
+			if (runRequested.compareAndSet(false, true)) {
+				phaseTimer.schedule(new PhaseTask(), 0);
+			}
+		}
+		
+		/**
+		 * Run the phase.
+		 * @param dbConnection
+		 * @param deadline: the time the phase should stop by. It should stop at a convenient point after this.
+		 * @return false if the phase stopped because it ran out of time
+		 */
+		protected abstract boolean run(Connection dbConnection, long deadline);
+		
+		private class PhaseTask extends TimerTask {
+			
+			@Override
+			public void run() {
+				// any changes made before now will be picked up by this run
+				runRequested.set(false);
 				final Connection dbConnection = DbHelper.getMainDb().getConnection();
 				if (dbConnection == null) {
-					logger.warn("Can't poll for files to be processed or updated at the moment as can't connect to database.");
+					logger.warn("Can't run "+name+" phase at the moment as can't connect to database.");
 					return;
 				}
-				handleFilesForReprocessing(dbConnection);
-				deleteFiles(dbConnection);
-				processFiles(dbConnection);
+				boolean finished = true;
 				try {
-					dbConnection.close();
-				} catch (SQLException e) {
-					e.printStackTrace();
+					if (jobQueue != null) {
+						// if this fails the queue will just be a bit behind, and will be fixed on the next sync
+						jobQueue.sync(dbConnection);
+					}
+					finished = Phase.this.run(dbConnection, System.currentTimeMillis() + timeBudget);
 				}
-			}
-		}
-		
-		// look for files to process kick of jobs to process them
-		private void processFiles(Connection dbConnection) {
-			logger.info("Polling for files that need processing...");
-			try {
-				PreparedStatement s = dbConnection.prepareStatement("SELECT * FROM files WHERE ready_for_processing=1 AND process_state=0 AND ready_for_delete=0 AND (session_id IS NOT NULL OR in_use=1) AND (heartbeat IS NULL OR heartbeat<?)"+getFileTypeIdsWhereString("file_type_id")+" ORDER BY updated_at DESC");
-				int i = 1;
-				s.setTimestamp(i++, heartbeatManager.getProcessingFilesTimestamp());
-				for (FileType a : FileType.values()) {
-					s.setInt(i++, a.getObj().getId());
+				catch(Exception e) {
+					logger.error("Exception occurred in "+name+" phase.");
+					e.printStackTrace();
 				}
-				
-				ResultSet r = s.executeQuery();
-				
-				while(r.next()) {
-					logger.info("Looking at file with id "+r.getInt("id")+".");
-					
-					// create File obj
-					File file = DbHelper.buildFileFromResult(r);
-					Integer numJobsOnLeastLoadedServer = getNumJobsOnLeastLoadedServer(dbConnection);
-					
-					if (numJobsOnLeastLoadedServer != null && numJobsOnLeastLoadedServer < filesInProgress.size()) {
-						logger.info("File with id "+file.getId()+" will not be picked up on this server as there is another server which is currently processing fewer files, and therefore that should pick this up.");
-						continue;
-					}
-					else if (filesInProgress.size() >= config.getInt("general.noThreads")) {
-						logger.info("File with id "+file.getId()+" will not be picked up at the moment as there are no free threads available.");
-						continue;
-					}
-					
-					Object heartbeatManagerFileLockObj = new Object();
-					
+				finally {
 					try {
-						if (!heartbeatManager.registerFile(file, false)) {
-							logger.info("File with id "+file.getId()+" will not be processed because it's heartbeat was updated somewhere else.");
-							continue;
-						}
-						
-						DbHelper.updateStatus(dbConnection, file.getId(), "Added to process queue.", null);
-						
-						// now set the server_id field so that other servers can determine that this server is working on this file.
-						PreparedStatement s2 = dbConnection.prepareStatement("UPDATE files SET server_id=? WHERE id=?");
-						s2.setInt(1,  config.getInt("server.id"));
-						s2.setInt(2, file.getId());
-						s2.executeUpdate();
-						
-						filesInProgress.add(file);
-					}
-					catch(Exception e) {
-						// an exception occurred so unregister the file and then rethrow the exception.
-						heartbeatManager.unRegisterFile(file);
-						filesInProgress.remove(file);
-						throw(e);
-					}
-					// first delete anything that might have been left behind if a previous attempt failed abruptly
-					if (!removeChildFilesAndRecords(dbConnection, file, false)) {
-						logger.warn("Failed to delete some files that were left behind from when file with id "+r.getInt("id")+" was processed previously. Not starting job.");
-						heartbeatManager.unRegisterFile(file);
-						filesInProgress.remove(file);
-					}
-					else {
-						// change the lock to an object that the job can have control over
-						heartbeatManager.switchLockObj(file, Thread.currentThread(), heartbeatManagerFileLockObj);
-						Job job = new Job(taskCompletionHandler, file, heartbeatManagerFileLockObj);
-						threadPool.execute(job);
-						logger.info("Created and scheduled process job for file with id "+r.getInt("id")+".");
+						dbConnection.close();
+					} catch (SQLException e) {
+						e.printStackTrace();
 					}
 				}
-				s.close();
-			} catch (SQLException e) {
-				logger.error("SQLException when trying to query databases for files that need processing.");
-				e.printStackTrace();
+				if (!finished) {
+					logger.info("The "+name+" phase ran out of time. Running it again to carry on.");
+					requestRun();
+				}
 			}
-			logger.info("Finished polling for files that need processing.");
 		}
+	}
+	
+	private class ReprocessPhase extends Phase {
 		
-		// first look for files with the reprocess flag set and a process_state of 1, and set the process_state to 3 which means prepare for reprocessing, and set the reprocess flag back to 0
+		public ReprocessPhase(Integer changeFeedPollInterval) {
+			super("reprocess", changeFeedPollInterval);
+		}
 		
-		// find files with a process_state of 3. if this is the case attempt to delete all child files and set the process_state back to 0 so it will be picked up again, or leave it set to 3 if some of this fails
-		private void handleFilesForReprocessing(Connection dbConnection) {
-			logger.info("Looking for files that are set to be reprocessed.");
-			try {
-				// first look for files that have the reprocess flag set and process_state as 1, and update their process_state and reset the flag
-				// if the process state is 2 (error) but this has processed successfully before then the source file should not have been deleted so ok to reprocess
-				PreparedStatement s = dbConnection.prepareStatement("UPDATE files SET process_state=3, reprocess=0 WHERE reprocess=1 AND (process_state=1 OR (process_state=2 AND has_processed_successfully=1))"+getFileTypeIdsWhereString("file_type_id"));
-				int i = 1;
-				for (FileType a : FileType.values()) {
-					s.setInt(i++, a.getObj().getId());
-				}
-				s.executeUpdate();
-			} catch (SQLException e) {
-				logger.error("SQLException when trying to update process_state for file files that have reprocess flag set.");
-				e.printStackTrace();
+		@Override
+		protected boolean run(Connection dbConnection, long deadline) {
+			return handleFilesForReprocessing(dbConnection, deadline);
+		}
+	}
+	
+	private class DeletePhase extends Phase {
+		
+		public DeletePhase(Integer changeFeedPollInterval) {
+			super("delete", changeFeedPollInterval);
+		}
+		
+		@Override
+		protected boolean run(Connection dbConnection, long deadline) {
+			return deleteFiles(dbConnection, deadline);
+		}
+	}
+	
+	private class ProcessPhase extends Phase {
+		
+		public ProcessPhase(Integer changeFeedPollInterval) {
+			super("process", changeFeedPollInterval);
+		}
+		
+		@Override
+		protected boolean run(Connection dbConnection, long deadline) {
+			return processFiles(dbConnection, deadline);
+		}
+	}
+	
+	// look for files to process kick of jobs to process them
+	// returns false if it ran out of time
+	private boolean processFiles(Connection dbConnection, long deadline) {
+		logger.info("Polling for files that need processing...");
+		boolean finished = true;
+		for (WorkerLane lane : lanes) {
+			if (System.currentTimeMillis() > deadline) {
+				finished = false;
+				break;
+			}
+			processFiles(dbConnection, lane);
+			publishLoad(dbConnection, lane);
+		}
+		logger.info("Finished polling for files that need processing.");
+		return finished;
+	}
+	
+	// look for files to process in a lane and kick of jobs to process them
+	private void processFiles(Connection dbConnection, WorkerLane lane) {
+		// only this phase uses up threads, so there will be at least this many free threads when the files are claimed
+		int numFreeThreads = lane.getNumFreeThreads();
+		if (numFreeThreads <= 0) {
+			logger.info("No files will be picked up in lane \""+lane.getName()+"\" at the moment as there are no free threads available.");
+			return;
+		}
+		
+		// the lowest load of any other server in this lane, as a fraction of its capacity
+		Double lowestLoadOnOtherServers = getLowestLoadOnOtherServers(dbConnection, lane);
+		
+		// decide which candidates to claim based on their estimated costs
+		LinkedHashMap<Integer, Double> filesToClaim = new LinkedHashMap<>();
+		HashMap<Integer, Long> waitingTimes = new HashMap<>();
+		double load = lane.getLoad();
+		for (Candidate candidate : getCandidates(dbConnection, lane, Math.max(numFreeThreads, candidateWindow))) {
+			if (filesToClaim.size() >= numFreeThreads) {
+				break;
+			}
+			File file = candidate.file;
+			if (lowestLoadOnOtherServers != null && load / lane.getCostCapacity() > lowestLoadOnOtherServers) {
+				// that server should pick up the rest instead
+				logger.info("No more files will be picked up in lane \""+lane.getName()+"\" on this server as there is another server which currently has less load in this lane, and therefore that should pick them up.");
+				break;
+			}
+			double cost = getEstimatedCost(dbConnection, file);
+			// a job that is more than the capacity can still run on its own
+			if (load + cost > lane.getCostCapacity() && (lane.getNumFilesInProgress() > 0 || !filesToClaim.isEmpty())) {
+				logger.info("No more files will be picked up in lane \""+lane.getName()+"\" at the moment as file with id "+file.getId()+" has an estimated cost of "+String.format("%.1f", cost)+" and the lane is at "+String.format("%.1f", load)+" of its capacity of "+String.format("%.1f", lane.getCostCapacity())+".");
+				break;
 			}
+			filesToClaim.put(file.getId(), cost);
+			waitingTimes.put(file.getId(), candidate.waitingTime);
+			load += cost;
+		}
+		
+		for (Map.Entry<File, Long> claimedFile : claimFiles(dbConnection, lane, filesToClaim.keySet()).entrySet()) {
+			File file = claimedFile.getKey();
+			Object heartbeatManagerFileLockObj = new Object();
 			
 			try {
-				
-				// go through all files with a process_state of 3 an attempt to delete their child files. if this is successful then set the process_state back to 0 so it can be processed again
-				PreparedStatement s = dbConnection.prepareStatement("SELECT * FROM files WHERE ((heartbeat IS NULL OR heartbeat<?) AND process_state=3)"+getFileTypeIdsWhereString("file_type_id"));
-				
-				int i = 1;
-				s.setTimestamp(i++, heartbeatManager.getProcessingFilesTimestamp());
-				for (FileType a : FileType.values()) {
-					s.setInt(i++, a.getObj().getId());
+				// the lease has already been acquired in the database when the file was claimed
+				if (!heartbeatManager.registerClaimedFile(file, claimedFile.getValue())) {
+					logger.info("File with id "+file.getId()+" will not be processed because it is registered somewhere else in the application.");
+					heartbeatManager.releaseLease(dbConnection, file.getId(), claimedFile.getValue());
+					continue;
 				}
-				ResultSet r = s.executeQuery();
-				
-				while(r.next()) {
-					File file = DbHelper.buildFileFromResult(r);
-					logger.info("Found file with id "+file.getId()+" that wants reprocessing.");
-					if (!HeartbeatManager.getInstance().registerFile(file)) {
-						logger.info("File with id "+file.getId()+" cannot be reprocessed now as it is being used somewhere else.");
-						continue;
-					}
-					try {
-						logger.info("Attempting to remove any child files it has.");
-						if (!removeChildFilesAndRecords(dbConnection, file, false)) {
-							logger.warn("Some child files could not be removed for some reason. Not resetting process_state to 0.");
-						}
-						else {
-							// set process_state to 0 so that it will be picked up for processing again
-							s = dbConnection.prepareStatement("UPDATE files SET process_state=0 WHERE id=?");
-							s.setInt(1, file.getId());
-							if (s.executeUpdate() != 1) {
-								logger.error("There was an error setting the process_state for file with id "+file.getId()+".");
-							}
-							
-							DbHelper.updateStatus(dbConnection, file.getId(), "Waiting to be reprocessed.", null);
-							logger.info("File with id "+file.getId()+" is now ready for reprocessing.");
-						}
-						HeartbeatManager.getInstance().unRegisterFile(file);
-					}
-					catch(Exception e) {
-						// an exception occurred so unregister the file and then rethrow the exception.
-						HeartbeatManager.getInstance().unRegisterFile(file);
-						throw(e);
+				if (!lane.addFileInProgress(file, filesToClaim.get(file.getId()))) {
+					logger.error("File with id "+file.getId()+" will not be processed because there is no free thread for it in lane \""+lane.getName()+"\". This shouldn't happen.");
+					heartbeatManager.unRegisterFile(file);
+					continue;
+				}
+				lane.getQueueWaitStats().record(waitingTimes.get(file.getId()));
+			}
+			catch(Exception e) {
+				// an exception occurred so unregister the file and then rethrow the exception.
+				heartbeatManager.unRegisterFile(file);
+				lane.removeFileInProgress(file);
+				throw(e);
+			}
+			// first delete anything that might have been left behind if a previous attempt failed abruptly
+			if (!fileDeleter.removeChildFilesAndRecords(dbConnection, file, false)) {
+				logger.warn("Failed to delete some files that were left behind from when file with id "+file.getId()+" was processed previously. Not starting job.");
+				heartbeatManager.unRegisterFile(file);
+				lane.removeFileInProgress(file);
+			}
+			else {
+				// change the lock to an object that the job can have control over
+				heartbeatManager.switchLockObj(file, Thread.currentThread(), heartbeatManagerFileLockObj);
+				Job job = new Job(taskCompletionHandler, file, heartbeatManagerFileLockObj);
+				lane.getThreadPool().execute(job);
+				logger.info("Created and scheduled process job for file with id "+file.getId()+" in lane \""+lane.getName()+"\".");
+			}
+		}
+	}
+	
+	/**
+	 * Get files in the lane that are waiting to be processed, in the order they should be picked up according to the scheduling policy.
+	 * @param dbConnection
+	 * @param lane
+	 * @param maxNumFiles
+	 * @return
+	 */
+	private List<Candidate> getCandidates(Connection dbConnection, WorkerLane lane, int maxNumFiles) {
+		ArrayList<Candidate> candidates = new ArrayList<>();
+		try {
+			PreparedStatement s = dbConnection.prepareStatement("SELECT files.*, TIMESTAMPDIFF(SECOND, files.updated_at, NOW()) AS waiting_time"+(schedulingPolicy.usesPriority() ? ", files."+priorityColumn+" AS scheduling_priority" : "")+(jobQueue != null ? ", file_queue.estimated_cost AS cached_estimated_cost" : "")+" FROM "+JobQueue.getFromString(jobQueue, "needs_process")+" WHERE "+processCondition+getLaneFileTypeIdsWhereString(lane)+schedulingPolicy.getOrderByString(priorityColumn, agingRate)+" LIMIT ?");
+			int i = 1;
+			for (FileType a : lane.getFileTypes()) {
+				s.setInt(i++, a.getObj().getId());
+			}
+			s.setInt(i++, maxNumFiles);
+			ResultSet r = s.executeQuery();
+			while(r.next()) {
+				File file = DbHelper.buildFileFromResult(r);
+				if (jobQueue != null) {
+					double cachedCost = r.getDouble("cached_estimated_cost");
+					if (!r.wasNull()) {
+						// already worked out, possibly by another server
+						estimatedCosts.put(file.getId(), cachedCost);
 					}
 				}
-				s.close();
-			} catch (SQLException e) {
-				logger.error("SQLException when trying setup a file for reprocessing.");
-				e.printStackTrace();
+				long waitingTime = Math.max(0, r.getLong("waiting_time"));
+				int priority = schedulingPolicy.usesPriority() ? r.getInt("scheduling_priority") : 0;
+				double cost = schedulingPolicy.usesEstimatedCost() ? getEstimatedCost(dbConnection, file) : 0;
+				candidates.add(new Candidate(file, waitingTime, schedulingPolicy.getScore(cost, priority, waitingTime, agingRate)));
 			}
-			
-			logger.info("Finished looking for files that are set to be reprocessed.");
+			s.close();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to find files that need processing.");
+			e.printStackTrace();
+			candidates.clear();
 		}
-		
-		// look for files that are pending deletion, or temporary and no longer belong to a session, and delete them.
-		private void deleteFiles(Connection dbConnection) {
+		// this is a stable sort so candidates with the same score stay in the order they were fetched
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				return Double.compare(a.score, b.score);
+			}
+		});
+		return candidates;
+	}
+	
+	/**
+	 * Claims the provided files if they are still waiting to be processed.
+	 * Acquiring the lease on a file is what claims it, so if several servers try to claim the same file only one of them will get it.
+	 * The leases are acquired, the files are checked, server_id is set and the statuses are written with one statement each, however many files there are.
+	 * The leases on any files that no longer need processing are released again.
+	 * @param dbConnection
+	 * @param lane: the lane the files are in
+	 * @param fileIds
+	 * @return the files that were claimed by this server, and their lease tokens
+	 */
+	private LinkedHashMap<File, Long> claimFiles(Connection dbConnection, WorkerLane lane, Collection<Integer> fileIds) {
+		LinkedHashMap<File, Long> claimedFiles = new LinkedHashMap<>();
+		if (fileIds.isEmpty()) {
+			return claimedFiles;
+		}
+		Map<Integer, Long> tokens = new HashMap<>();
+		try {
+			tokens = heartbeatManager.tryAcquireLeases(dbConnection, fileIds);
 			
-			logger.info("Polling for files pending deletion...");
-			try {
-				PreparedStatement s = dbConnection.prepareStatement("SELECT * FROM files WHERE ready_for_processing=1 AND ((heartbeat IS NULL OR heartbeat<?) AND (ready_for_delete=1 OR (in_use=0 AND session_id IS NULL)))"+getFileTypeIdsWhereString("file_type_id"));
+			if (!tokens.isEmpty()) {
+				// the conditions are checked again because the file might have been processed somewhere else since it was found
+				PreparedStatement s = dbConnection.prepareStatement("SELECT * FROM files WHERE id IN ("+DbHelper.getPlaceholders(tokens.size())+") AND "+processRecordCondition+getLaneFileTypeIdsWhereString(lane)+" ORDER BY updated_at DESC");
 				int i = 1;
-				s.setTimestamp(i++, heartbeatManager.getProcessingFilesTimestamp());
-				for (FileType a : FileType.values()) {
+				for (int id : tokens.keySet()) {
+					s.setInt(i++, id);
+				}
+				for (FileType a : lane.getFileTypes()) {
 					s.setInt(i++, a.getObj().getId());
 				}
 				ResultSet r = s.executeQuery();
-				
 				while(r.next()) {
 					File file = DbHelper.buildFileFromResult(r);
-					logger.info("Attempting to remove file with id "+file.getId()+" and any child files it has.");
-					if (!removeChildFilesAndRecords(dbConnection, file, true)) {
-						logger.warn("Some files could not be removed for some reason and the file record for this (id "+file.getId()+") still exists.");
-					}
+					logger.info("Claimed file with id "+file.getId()+" for processing.");
+					claimedFiles.put(file, tokens.get(file.getId()));
 				}
 				s.close();
-			} catch (SQLException e) {
-				logger.error("SQLException when trying to query databases for files that need deleting.");
-				e.printStackTrace();
 			}
-			logger.info("Finished polling for files pending deletion.");
-		}
 			
-		private String getFileTypeIdsWhereString(String col) {
-			// the ids of the file types that we know about.
-			// we are not interested in any other file type ids that aren't listed
-			// all file types in laravel should be duplicated here
-			String fileTypeIdsWhere = "";
-			if (FileType.values().length > 0) {
-				fileTypeIdsWhere = " AND "+col+" IN (";
-				for (int i=0; i<FileType.values().length; i++) {
+			if (!claimedFiles.isEmpty()) {
+				// fenced with the lease tokens so a file that has been leased somewhere else since isn't changed
+				StringBuilder leases = new StringBuilder();
+				for (int i=0; i<claimedFiles.size(); i++) {
 					if (i > 0) {
-						fileTypeIdsWhere += ",";
+						leases.append(",");
 					}
-					fileTypeIdsWhere += "?";
+					leases.append("(?,?)");
+				}
+				PreparedStatement s = dbConnection.prepareStatement("UPDATE files JOIN file_leases ON file_leases.file_id=files.id SET files.server_id=? WHERE (file_leases.file_id, file_leases.token) IN ("+leases+")");
+				int i = 1;
+				s.setInt(i++, config.getInt("server.id"));
+				for (Map.Entry<File, Long> claimedFile : claimedFiles.entrySet()) {
+					s.setInt(i++, claimedFile.getKey().getId());
+					s.setLong(i++, claimedFile.getValue());
+				}
+				s.executeUpdate();
+				s.close();
+				// written with the other statuses in one statement
+				for (File file : claimedFiles.keySet()) {
+					StatusWriter.getInstance().update(file.getId(), "Added to process queue.", null);
 				}
-				fileTypeIdsWhere += ")";
 			}
-			return fileTypeIdsWhere;
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to claim files that need processing.");
+			e.printStackTrace();
+			claimedFiles.clear();
 		}
 		
-		/**
-		 * Removes all child files and optionally the source file.
-		 * If any child files have child files they will also be delete recursively.
-		 * The source file and record will never be removed if one or more of the child files fails to be removed.
-		 * The source and child files will be registered and unregistered with the heartbeat manager.
-		 * @param dbConnection
-		 * @param sourceFile
-		 * @param removeSourceFile
-		 * @return true if all files and records were removed successfully or false if one or more failed.
-		 */
-		private boolean removeChildFilesAndRecords(Connection dbConnection, File sourceFile, boolean removeSourceFile) {
-			
-			if (!heartbeatManager.registerFile(sourceFile)) {
-				logger.info("File with id "+sourceFile.getId()+" and any of its child files will not be deleted right now because it's heartbeat was updated somewhere else.");
-				return false;
+		HashSet<Integer> claimedIds = new HashSet<>();
+		for (File file : claimedFiles.keySet()) {
+			claimedIds.add(file.getId());
+		}
+		for (Map.Entry<Integer, Long> token : tokens.entrySet()) {
+			if (!claimedIds.contains(token.getKey())) {
+				heartbeatManager.releaseLease(dbConnection, token.getKey(), token.getValue());
+			}
+		}
+		return claimedFiles;
+	}
+	
+	private String getLaneFileTypeIdsWhereString(WorkerLane lane) {
+		return " AND files.file_type_id IN ("+DbHelper.getPlaceholders(lane.getFileTypes().size())+")";
+	}
+	
+	// first look for files with the reprocess flag set and a process_state of 1, and set the process_state to 3 which means prepare for reprocessing, and set the reprocess flag back to 0
+	
+	// find files with a process_state of 3. if this is the case attempt to delete all child files and set the process_state back to 0 so it will be picked up again, or leave it set to 3 if some of this fails
+	// returns false if it ran out of time
+	private boolean handleFilesForReprocessing(Connection dbConnection, long deadline) {
+		logger.info("Looking for files that are set to be reprocessed.");
+		boolean finished = true;
+		try {
+			// first look for files that have the reprocess flag set and process_state as 1, and update their process_state and reset the flag
+			// if the process state is 2 (error) but this has processed successfully before then the source file should not have been deleted so ok to reprocess
+			PreparedStatement s = dbConnection.prepareStatement("UPDATE "+JobQueue.getFromString(jobQueue, "needs_reprocess")+" SET files.process_state=3, files.reprocess=0 WHERE files.reprocess=1 AND (files.process_state=1 OR (files.process_state=2 AND files.has_processed_successfully=1))"+getFileTypeIdsWhereString("files.file_type_id"));
+			int i = 1;
+			for (FileType a : FileType.values()) {
+				s.setInt(i++, a.getObj().getId());
 			}
+			s.executeUpdate();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to update process_state for file files that have reprocess flag set.");
+			e.printStackTrace();
+		}
+		
+		try {
 			
-			boolean allFilesDeletedSuccesfully = true;
+			// go through all files with a process_state of 3 an attempt to delete their child files. if this is successful then set the process_state back to 0 so it can be processed again
+			PreparedStatement s = dbConnection.prepareStatement("SELECT files.* FROM "+JobQueue.getFromString(jobQueue, "needs_reprocess")+" WHERE ("+HeartbeatManager.getLeaseFreeCondition("files.id")+" AND files.process_state=3)"+getFileTypeIdsWhereString("files.file_type_id"));
 			
-			try {
-				boolean sourceFileMarkedForDeletion = false;
-				
-				// delete actual files
-				
-				{
-					if (removeSourceFile) {
-						// set the ready_for_delete flag to 1 so that if some of the child files fail to be deleted, or this file, apps can still know that this is pending deletion and may be missing some child files, and should not be used
-						// if the ready_for_delete flag is set then apps should treat this as though the file has already been deleted
-						try {
-							dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
-							PreparedStatement s = dbConnection.prepareStatement("SELECT ready_for_delete FROM files WHERE id=? FOR UPDATE");
-							s.setInt(1, sourceFile.getId());
-							s.executeQuery();
-							ResultSet r = s.getResultSet();
-							if (r.next()) {
-								// record exists and now have lock
-								if (!r.getBoolean("ready_for_delete")) {
-									// this is not marked for deletion. Mark it
-									s = dbConnection.prepareStatement("UPDATE files SET ready_for_delete=1 WHERE id=?");
-									s.setInt(1, sourceFile.getId());
-									if (s.executeUpdate() == 1) {
-										sourceFileMarkedForDeletion = true;
-									}
-									else {
-										logger.error("There was an error trying to update ready_for_delete for source file with id "+sourceFile.getId()+".");
-									}
-								}
-								else {
-									sourceFileMarkedForDeletion = true;
-								}
-							}
-							else {
-								logger.error("Could not mark source file with id "+sourceFile.getId()+" for deletion because it couldn't be found!");
-							}
-							dbConnection.prepareStatement("COMMIT").executeUpdate();
-						}
-						catch(SQLException e) {
-							logger.error("An SQLException occurred whilst trying to mark file record with id "+sourceFile.getId()+" for deletion.");
-						}
-					}
+			int i = 1;
+			for (FileType a : FileType.values()) {
+				s.setInt(i++, a.getObj().getId());
+			}
+			ResultSet r = s.executeQuery();
+			
+			while(r.next()) {
+				if (System.currentTimeMillis() > deadline) {
+					finished = false;
+					break;
 				}
-				
-				if (!removeSourceFile || sourceFileMarkedForDeletion) {
-				
-					{
-						try {
-							// no need to check heartbeat here because it is done at the top of this method
-							PreparedStatement s = dbConnection.prepareStatement("SELECT * FROM files WHERE source_file_id=?");
-							s.setInt(1, sourceFile.getId());
-							ResultSet r = s.executeQuery();
-							
-							while(r.next()) {
-								// create File obj
-								File file = DbHelper.buildFileFromResult(r);
-								// remove this files child files, then the file itself (if deleting all the child files is successful)
-								if (!removeChildFilesAndRecords(dbConnection, file, true)) {
-									// returns false if one or more files out of the current one or its descendants could not be removed.
-									logger.error("An error occurred when trying to remove file with id "+file.getId()+" and any child files it has.");
-									allFilesDeletedSuccesfully = false;
-								}
-							}
-							s.close();
-						} catch (SQLException e) {
-							e.printStackTrace();
-							logger.error("SQLException when trying to query databases for files that need deleting.");
-							allFilesDeletedSuccesfully = false;
-						}
+				File file = DbHelper.buildFileFromResult(r);
+				logger.info("Found file with id "+file.getId()+" that wants reprocessing.");
+				if (!HeartbeatManager.getInstance().registerFile(file)) {
+					logger.info("File with id "+file.getId()+" cannot be reprocessed now as it is being used somewhere else.");
+					continue;
+				}
+				try {
+					logger.info("Attempting to remove any child files it has.");
+					if (!fileDeleter.removeChildFilesAndRecords(dbConnection, file, false)) {
+						logger.warn("Some child files could not be removed for some reason. Not resetting process_state to 0.");
 					}
-					
-					{
-						if (removeSourceFile && allFilesDeletedSuccesfully) {
-							//all child files removed successfully. now remove source
-							allFilesDeletedSuccesfully = false;
-							
-							String sourceFilePath = FileHelper.getSourceFilePath(sourceFile.getId());
-							
-							// delete file
-							boolean fileDeleted = false;
-							try {
-								if (Files.exists(Paths.get(sourceFilePath), LinkOption.NOFOLLOW_LINKS)) {
-									FileUtils.forceDelete(new java.io.File(sourceFilePath));
-									if (!Files.exists(Paths.get(sourceFilePath), LinkOption.NOFOLLOW_LINKS)) {
-										// file no longer exists
-										logger.debug("Deleted file with id "+sourceFile.getId()+".");
-										fileDeleted = true;
-									}
-								}
-								else {
-									logger.debug("File with id "+sourceFile.getId()+" could not be deleted because it doesn't exist! Just removing record. This is possible if a file failed to copy accross after it's record was created.");
-									fileDeleted = true;
-								}
-							} catch (IOException e) {
-								logger.error("Error deleting file with id "+sourceFile.getId()+".");
-							}
-							
-							if (fileDeleted) {
-								try {
-									PreparedStatement s = dbConnection.prepareStatement("DELETE FROM files WHERE id=?");
-									s.setInt(1, sourceFile.getId());
-									if (s.executeUpdate() != 1) {
-										logger.error("Error occurred whilst deleting file record with id "+sourceFile.getId()+".");
-									}
-									else {
-										// the file and record have now been removed
-										allFilesDeletedSuccesfully = true;
-									}
-								} catch (SQLException e) {
-									logger.error("SQLException when trying to query databases for files that need deleting.");
-									e.printStackTrace();
-								}
-							}
+					else {
+						// set process_state to 0 so that it will be picked up for processing again
+						s = dbConnection.prepareStatement("UPDATE files SET process_state=0 WHERE id=? AND "+HeartbeatManager.getFenceCondition());
+						s.setInt(1, file.getId());
+						heartbeatManager.setFenceParameters(s, 2, file);
+						if (s.executeUpdate() != 1) {
+							logger.error("There was an error setting the process_state for file with id "+file.getId()+".");
 						}
+						
+						DbHelper.updateStatus(dbConnection, file.getId(), "Waiting to be reprocessed.", null);
+						logger.info("File with id "+file.getId()+" is now ready for reprocessing.");
 					}
+					HeartbeatManager.getInstance().unRegisterFile(file);
+				}
+				catch(Exception e) {
+					// an exception occurred so unregister the file and then rethrow the exception.
+					HeartbeatManager.getInstance().unRegisterFile(file);
+					throw(e);
 				}
-				heartbeatManager.unRegisterFile(sourceFile);
 			}
-			catch(Exception e) {
-				// an exception occurred so unregister the file and then rethrow the exception.
-				heartbeatManager.unRegisterFile(sourceFile);
-				throw(e);
+			s.close();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying setup a file for reprocessing.");
+			e.printStackTrace();
+		}
+		
+		logger.info("Finished looking for files that are set to be reprocessed.");
+		return finished;
+	}
+	
+	// look for files that are pending deletion, or temporary and no longer belong to a session, and delete them.
+	// returns false if it ran out of time
+	private boolean deleteFiles(Connection dbConnection, long deadline) {
+		
+		logger.info("Polling for files pending deletion...");
+		boolean finished = true;
+		try {
+			// files created during processing are covered by their source file's lease, so also make sure the source file is not being processed
+			PreparedStatement s = dbConnection.prepareStatement("SELECT files.* FROM "+JobQueue.getFromString(jobQueue, "needs_delete")+" WHERE files.ready_for_processing=1 AND ("+HeartbeatManager.getLeaseFreeCondition("files.id")+" AND (files.ready_for_delete=1 OR (files.in_use=0 AND files.session_id IS NULL)))"+getFileTypeIdsWhereString("files.file_type_id")+" AND (files.source_file_id IS NULL OR "+HeartbeatManager.getLeaseFreeCondition("files.source_file_id")+")");
+			int i = 1;
+			for (FileType a : FileType.values()) {
+				s.setInt(i++, a.getObj().getId());
+			}
+			ResultSet r = s.executeQuery();
+			
+			while(r.next()) {
+				if (System.currentTimeMillis() > deadline) {
+					finished = false;
+					break;
+				}
+				File file = DbHelper.buildFileFromResult(r);
+				logger.info("Attempting to remove file with id "+file.getId()+" and any child files it has.");
+				if (!fileDeleter.removeChildFilesAndRecords(dbConnection, file, true)) {
+					logger.warn("Some files could not be removed for some reason and the file record for this (id "+file.getId()+") still exists.");
+				}
+			}
+			s.close();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to query databases for files that need deleting.");
+			e.printStackTrace();
+		}
+		logger.info("Finished polling for files pending deletion.");
+		return finished;
+	}
+		
+	private String getFileTypeIdsWhereString(String col) {
+		// the ids of the file types that we know about.
+		// we are not interested in any other file type ids that aren't listed
+		// all file types in laravel should be duplicated here
+		String fileTypeIdsWhere = "";
+		if (FileType.values().length > 0) {
+			fileTypeIdsWhere = " AND "+col+" IN (";
+			for (int i=0; i<FileType.values().length; i++) {
+				if (i > 0) {
+					fileTypeIdsWhere += ",";
+				}
+				fileTypeIdsWhere += "?";
 			}
-			return allFilesDeletedSuccesfully;
+			fileTypeIdsWhere += ")";
+		}
+		return fileTypeIdsWhere;
+	}
+	
+	// create the table that servers publish their current load to, if it doesn't exist
+	private void createServerLoadsTable() {
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not create processing_server_loads table because a connection to the database could not be made.");
+			return;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS processing_server_loads (server_id INT UNSIGNED NOT NULL, lane VARCHAR(50) NOT NULL, cost DOUBLE NOT NULL, capacity DOUBLE NOT NULL, updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (server_id, lane)) ENGINE=InnoDB").executeUpdate();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to create processing_server_loads table.");
+			e.printStackTrace();
+		}
+		try {
+			dbConnection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// create the table that the processing message and percentage for each file are written to, if it doesn't exist
+	private void createProgressTable() {
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not create file_progress table because a connection to the database could not be made.");
+			return;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS file_progress (file_id INT UNSIGNED NOT NULL, msg VARCHAR(255) NULL DEFAULT NULL, process_percentage TINYINT UNSIGNED NULL DEFAULT NULL, updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, PRIMARY KEY (file_id)) ENGINE=InnoDB").executeUpdate();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to create file_progress table.");
+			e.printStackTrace();
+		}
+		try {
+			dbConnection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Returns the number of files that are currently being processed on the server which is currently
-	 * processing the least amount of files. Otherwise returns NULL if there are no other servers running, or could not get the result.
+	 * Get the estimated cost of processing a file. This is remembered so it is only worked out once,
+	 * and is also stored in the file's row in the queue, if there is one, so that the other servers don't have to work it out again.
+	 * @param dbConnection
+	 * @param file
+	 * @return
+	 */
+	private double getEstimatedCost(Connection dbConnection, File file) {
+		Double cost = estimatedCosts.get(file.getId());
+		if (cost == null) {
+			cost = file.getType().getEstimatedCost(file);
+			estimatedCosts.put(file.getId(), cost);
+			logger.debug("Estimated cost of processing file with id "+file.getId()+" is "+String.format("%.1f", cost)+".");
+			if (jobQueue != null) {
+				try {
+					jobQueue.setEstimatedCost(dbConnection, file.getId(), cost);
+				} catch (SQLException e) {
+					// it will just be worked out again by other servers
+					logger.warn("SQLException when trying to store estimated cost of file with id "+file.getId()+".");
+					e.printStackTrace();
+				}
+			}
+		}
+		return cost;
+	}
+	
+	/**
+	 * Save the total estimated cost of the files being processed in the lane on this server, so that other servers can take it into account.
+	 * @param dbConnection
+	 * @param lane
+	 */
+	private void publishLoad(Connection dbConnection, WorkerLane lane) {
+		try {
+			PreparedStatement s = dbConnection.prepareStatement("INSERT INTO processing_server_loads (server_id, lane, cost, capacity, updated_at) VALUES (?,?,?,?,NOW()) ON DUPLICATE KEY UPDATE cost=VALUES(cost), capacity=VALUES(capacity), updated_at=VALUES(updated_at)");
+			s.setInt(1, config.getInt("server.id"));
+			s.setString(2, lane.getName());
+			s.setDouble(3, lane.getLoad());
+			s.setDouble(4, lane.getCostCapacity());
+			s.executeUpdate();
+			s.close();
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to publish the load for lane \""+lane.getName()+"\".");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Returns the load in the lane of the server which currently has the lowest load in that lane, as a fraction of its capacity.
+	 * Otherwise returns NULL if there are no other servers running, or could not get the result.
 	 * The current server is excluded from the check.
 	 * 
-	 * @return the number of files being processed or NULL
+	 * @return the load or NULL
 	 */
-	private Integer getNumJobsOnLeastLoadedServer(Connection dbConnection) {
-		Integer result = null;
-		PreparedStatement s;
+	private Double getLowestLoadOnOtherServers(Connection dbConnection, WorkerLane lane) {
+		Double result = null;
 		try {
-			s = dbConnection.prepareStatement("SELECT t.server_id AS server_id, t.number_jobs_in_progress AS number_jobs_in_progress FROM (SELECT count(*) AS number_jobs_in_progress, files.server_id AS server_id FROM files JOIN processing_servers on processing_servers.id = files.server_id WHERE processing_servers.id != ? AND processing_servers.heartbeat >= ? AND (files.heartbeat IS NOT NULL AND files.heartbeat>=?) AND files.process_state=0 GROUP BY files.server_id) AS t ORDER BY t.number_jobs_in_progress ASC");
+			PreparedStatement s = dbConnection.prepareStatement("SELECT MIN(processing_server_loads.cost/processing_server_loads.capacity) AS load_fraction FROM processing_server_loads JOIN processing_servers ON processing_servers.id=processing_server_loads.server_id WHERE processing_servers.id != ? AND processing_servers.heartbeat >= ? AND processing_server_loads.lane=?");
 			s.setInt(1, config.getInt("server.id"));
-			s.setTimestamp(2, new Timestamp(System.currentTimeMillis() - pollInterval - 30000));
-			s.setTimestamp(3, heartbeatManager.getProcessingFilesTimestamp());
+			s.setTimestamp(2, new Timestamp(System.currentTimeMillis() - config.getInt("general.heartbeatInterval")*1000L - 30000));
+			s.setString(3, lane.getName());
 			ResultSet r = s.executeQuery();
 			if (r.next()) {
-				result = r.getInt("number_jobs_in_progress");
+				double loadFraction = r.getDouble("load_fraction");
+				if (!r.wasNull()) {
+					result = loadFraction;
+				}
 			}
 			s.close();
 		} catch (SQLException e) {
 			e.printStackTrace();
-			logger.error("SQLException when trying to get the number of jobs running on the least loaded server.");
+			logger.error("SQLException when trying to get the load on the least loaded server.");
 		}
 		return result;
 	}
 	
+	private static class Candidate {
+		public final File file;
+		// the time in seconds the file has been waiting
+		public final long waitingTime;
+		public final double score;
+		
+		public Candidate(File file, long waitingTime, double score) {
+			this.file = file;
+			this.waitingTime = waitingTime;
+			this.score = score;
+		}
+	}
+	
+	private class QueueWaitStatsTask extends TimerTask {
+		
+		@Override
+		public void run() {
+			for (WorkerLane lane : lanes) {
+				logger.info("Queue wait times in lane \""+lane.getName()+"\" with "+schedulingPolicy+" scheduling policy: "+lane.getQueueWaitStats().getSummary());
+			}
+		}
+	}
+	
 	private class TaskCompletionHandler implements CompletionHandlerI {
 		
 		/**
@@ -449,10 +746,16 @@ public class JobPoller {
 		 * @param file
 		 */
 		public void markCompletion(File file) {
-			synchronized(lock1) {
-				heartbeatManager.unRegisterFile(file);
-				filesInProgress.remove(file);
+			// the file is removed from its lane before it is unregistered, because once the lease is released it can be claimed again straight away
+			// and the lane must have a free thread for it by then
+			for (WorkerLane lane : lanes) {
+				if (lane.handlesFileType(file.getType())) {
+					lane.removeFileInProgress(file);
+				}
 			}
+			heartbeatManager.unRegisterFile(file);
+			// a thread is now free so look for another file straight away
+			processPhase.requestRun();
 		}
 	}
 	
@@ -0,0 +1,279 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileType;
+import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+
+/**
+ * Maintains the file_queue table, which contains a row for every file that might need processing, reprocessing or deleting.
+ * The files table contains every file that has ever been created, so the pollers look in here to find candidates instead.
+ * The queue is kept up to date using the changes in the file_changes table, and is rebuilt from the files table occasionally in case anything was missed.
+ * Files in the queue still need to be checked against the files table, as the queue might be slightly behind.
+ * The queue is shared by all of the servers, so it is only rebuilt by one server at a time, and only if no server has rebuilt it recently.
+ *
+ */
+public class JobQueue {
+
+	private static Logger logger = Logger.getLogger(JobQueue.class);
+
+	// changes are synced again from this many seconds before the previous sync, to catch changes that were committed after the sync but were logged before it
+	private static final int syncOverlap = 30;
+
+	// the conditions that mean a file is a candidate for each type of job. These must match the conditions the pollers check against the files table
+	private static final String needsProcessCondition = "files.ready_for_processing=1 AND files.process_state=0 AND files.ready_for_delete=0 AND (files.session_id IS NOT NULL OR files.in_use=1)";
+	private static final String needsReprocessCondition = "(files.reprocess=1 AND (files.process_state=1 OR (files.process_state=2 AND files.has_processed_successfully=1))) OR files.process_state=3";
+	private static final String needsDeleteCondition = "files.ready_for_processing=1 AND (files.ready_for_delete=1 OR (files.in_use=0 AND files.session_id IS NULL))";
+
+	// the queue won't be synced again if it was synced less than this many milliseconds ago
+	private static final long minSyncInterval = 1000;
+
+	// the maximum number of files written to the queue in one query
+	private static final int batchSize = 500;
+
+	// the name of the mysql lock that is held whilst rebuilding, so only one server rebuilds at a time
+	private static final String rebuildLockName = "file_queue_rebuild";
+
+	private final long rebuildInterval;
+	// the time in the database when the last successful sync started
+	private Timestamp timeLastSynced = null;
+	private long timeLastRebuilt = 0;
+	// the local time when the last successful sync finished
+	private long timeLastSyncFinished = 0;
+
+	/**
+	 * @param rebuildInterval: the interval in milliseconds between rebuilding the queue from the files table.
+	 */
+	private JobQueue(long rebuildInterval) {
+		this.rebuildInterval = rebuildInterval;
+	}
+
+	/**
+	 * Creates the file_queue table if it doesn't exist.
+	 * The change feed must be running because the file_changes table is used to keep the queue up to date.
+	 * @param rebuildInterval: the interval in milliseconds between rebuilding the queue from the files table.
+	 * @return the JobQueue or null if the table could not be set up.
+	 */
+	public static JobQueue create(long rebuildInterval) {
+		logger.info("Setting up file queue...");
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not set up file queue because a connection to the database could not be made.");
+			return null;
+		}
+		try {
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS file_queue (file_id INT UNSIGNED NOT NULL, needs_process TINYINT(1) NOT NULL DEFAULT 0, needs_reprocess TINYINT(1) NOT NULL DEFAULT 0, needs_delete TINYINT(1) NOT NULL DEFAULT 0, estimated_cost DOUBLE NULL DEFAULT NULL, PRIMARY KEY (file_id), KEY file_queue_needs_process_index (needs_process), KEY file_queue_needs_reprocess_index (needs_reprocess), KEY file_queue_needs_delete_index (needs_delete)) ENGINE=InnoDB").executeUpdate();
+			// contains one row with the time the queue was last rebuilt by any server
+			dbConnection.prepareStatement("CREATE TABLE IF NOT EXISTS file_queue_rebuilds (id TINYINT UNSIGNED NOT NULL, rebuilt_at TIMESTAMP NULL DEFAULT NULL, PRIMARY KEY (id)) ENGINE=InnoDB").executeUpdate();
+		} catch (SQLException e) {
+			logger.warn("Could not set up file queue.");
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			try {
+				dbConnection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		logger.info("Set up file queue.");
+		return new JobQueue(rebuildInterval);
+	}
+
+	/**
+	 * Returns the tables to select candidate files from for a job type, to be used in the FROM part of a query.
+	 * The files table is available as "files" so the rest of the query can be the same as when the queue is not used.
+	 * @param column: the needs_ column in file_queue for the job type.
+	 * @return
+	 */
+	public static String getFromString(JobQueue jobQueue, String column) {
+		if (jobQueue == null) {
+			return "files";
+		}
+		return "file_queue JOIN files ON files.id=file_queue.file_id AND file_queue."+column+"=1";
+	}
+
+	/**
+	 * Remember the estimated cost of processing a file in its row in the queue, so that it only has to be worked out once by any server.
+	 * It is kept until the file is no longer in the queue.
+	 * @param dbConnection
+	 * @param fileId
+	 * @param estimatedCost
+	 * @throws SQLException
+	 */
+	public void setEstimatedCost(Connection dbConnection, int fileId, double estimatedCost) throws SQLException {
+		PreparedStatement s = dbConnection.prepareStatement("UPDATE file_queue SET estimated_cost=? WHERE file_id=?");
+		s.setDouble(1, estimatedCost);
+		s.setInt(2, fileId);
+		s.executeUpdate();
+		s.close();
+	}
+
+	/**
+	 * Bring the queue up to date with the changes that have been made to the files table since the last sync.
+	 * The whole queue will be rebuilt instead if it hasn't been rebuilt for a while.
+	 * Nothing happens if the queue was synced very recently, as each phase of polling syncs it before running.
+	 * @param dbConnection
+	 * @return true if the queue was synced successfully or is already up to date.
+	 */
+	public synchronized boolean sync(Connection dbConnection) {
+		if (timeLastSyncFinished + minSyncInterval > System.currentTimeMillis()) {
+			return true;
+		}
+		try {
+			ResultSet r = dbConnection.prepareStatement("SELECT NOW() AS now").executeQuery();
+			r.next();
+			Timestamp syncStartTime = r.getTimestamp("now");
+
+			boolean rebuilt = false;
+			// the time that the changes need to be synced from
+			Timestamp syncFrom = timeLastSynced;
+			if (timeLastSynced == null || timeLastRebuilt + rebuildInterval < System.currentTimeMillis()) {
+				Boolean result = rebuild(dbConnection);
+				if (result == null) {
+					if (timeLastSynced == null) {
+						// the queue can't be synced from changes until it is known to have been built
+						logger.debug("Not syncing file queue because it is being rebuilt by another server.");
+						return false;
+					}
+				}
+				else {
+					rebuilt = result;
+					timeLastRebuilt = System.currentTimeMillis();
+					if (!rebuilt && syncFrom == null) {
+						// this server hasn't synced before and another server rebuilt the queue recently,
+						// so anything that has changed since that rebuild (e.g. whilst no servers were running) still needs syncing
+						r = dbConnection.prepareStatement("SELECT rebuilt_at FROM file_queue_rebuilds WHERE id=1").executeQuery();
+						if (!r.next() || r.getTimestamp("rebuilt_at") == null) {
+							throw(new RuntimeException("File queue was rebuilt recently but the time it was rebuilt could not be found."));
+						}
+						syncFrom = r.getTimestamp("rebuilt_at");
+					}
+				}
+			}
+			if (!rebuilt && syncFrom != null) {
+				// the files that have changed are found first so that each one is only looked up once
+				PreparedStatement s = dbConnection.prepareStatement("SELECT files.id, "+getFlagsString()+" FROM (SELECT DISTINCT file_id FROM file_changes WHERE created_at>=?) AS changed_files JOIN files ON files.id=changed_files.file_id WHERE files.file_type_id IN ("+DbHelper.getPlaceholders(FileType.values().length)+")");
+				s.setTimestamp(1, new Timestamp(syncFrom.getTime() - syncOverlap*1000L));
+				setFileTypeIds(s, 2);
+				writeFlags(dbConnection, s);
+			}
+
+			// remove anything that is no longer a candidate for any job, or no longer exists
+			// the queue only contains the backlog so this is cheap
+			dbConnection.prepareStatement("DELETE file_queue FROM file_queue LEFT JOIN files ON files.id=file_queue.file_id WHERE files.id IS NULL OR NOT (COALESCE("+needsProcessCondition+", 0) OR COALESCE("+needsReprocessCondition+", 0) OR COALESCE("+needsDeleteCondition+", 0))").executeUpdate();
+			timeLastSynced = syncStartTime;
+			timeLastSyncFinished = System.currentTimeMillis();
+			return true;
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to sync file queue.");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Rebuild the queue from the files table, unless another server is rebuilding it or has rebuilt it recently.
+	 * @param dbConnection
+	 * @return true if the queue was rebuilt, false if it had been rebuilt recently by another server, or null if another server is rebuilding it now.
+	 * @throws SQLException
+	 */
+	private Boolean rebuild(Connection dbConnection) throws SQLException {
+		PreparedStatement s = dbConnection.prepareStatement("SELECT GET_LOCK(?, 0) AS acquired");
+		s.setString(1, rebuildLockName);
+		ResultSet r = s.executeQuery();
+		boolean acquired = r.next() && r.getInt("acquired") == 1;
+		s.close();
+		if (!acquired) {
+			return null;
+		}
+		try {
+			s = dbConnection.prepareStatement("SELECT TIMESTAMPDIFF(SECOND, rebuilt_at, NOW()) AS age FROM file_queue_rebuilds WHERE id=1 AND rebuilt_at IS NOT NULL");
+			r = s.executeQuery();
+			boolean rebuiltRecently = r.next() && r.getLong("age")*1000 < rebuildInterval;
+			s.close();
+			if (rebuiltRecently) {
+				return false;
+			}
+
+			logger.info("Rebuilding file queue...");
+			long startTime = System.currentTimeMillis();
+			// the time the rebuild started is recorded, so that a server syncing changes from it also gets the ones made whilst the files were being read
+			r = dbConnection.prepareStatement("SELECT NOW() AS now").executeQuery();
+			r.next();
+			Timestamp rebuildStartTime = r.getTimestamp("now");
+			s = dbConnection.prepareStatement("SELECT t.id, t.needs_process, t.needs_reprocess, t.needs_delete FROM (SELECT files.id AS id, "+getFlagsString()+" FROM files WHERE files.file_type_id IN ("+DbHelper.getPlaceholders(FileType.values().length)+")) AS t WHERE t.needs_process=1 OR t.needs_reprocess=1 OR t.needs_delete=1");
+			setFileTypeIds(s, 1);
+			writeFlags(dbConnection, s);
+			s = dbConnection.prepareStatement("INSERT INTO file_queue_rebuilds (id, rebuilt_at) VALUES (1, ?) ON DUPLICATE KEY UPDATE rebuilt_at=VALUES(rebuilt_at)");
+			s.setTimestamp(1, rebuildStartTime);
+			s.executeUpdate();
+			s.close();
+			logger.info("Rebuilt file queue in "+(System.currentTimeMillis()-startTime)+"ms.");
+			return true;
+		}
+		finally {
+			s = dbConnection.prepareStatement("SELECT RELEASE_LOCK(?)");
+			s.setString(1, rebuildLockName);
+			s.executeQuery();
+			s.close();
+		}
+	}
+
+	/**
+	 * Run a query that selects the id and flags of files, and write them to the queue.
+	 * The files are read with a plain select, which doesn't lock the files records like INSERT ... SELECT would,
+	 * and are then written in batches so that the web app is never blocked from writing to the files table.
+	 * @param dbConnection
+	 * @param select: the query, with its parameters set. It is closed afterwards.
+	 * @throws SQLException
+	 */
+	private static void writeFlags(Connection dbConnection, PreparedStatement select) throws SQLException {
+		ArrayList<int[]> rows = new ArrayList<>();
+		ResultSet r = select.executeQuery();
+		while(r.next()) {
+			rows.add(new int[]{r.getInt("id"), r.getInt("needs_process"), r.getInt("needs_reprocess"), r.getInt("needs_delete")});
+		}
+		select.close();
+
+		for (int i=0; i<rows.size(); i+=batchSize) {
+			List<int[]> batch = rows.subList(i, Math.min(rows.size(), i+batchSize));
+			StringBuilder values = new StringBuilder();
+			for (int j=0; j<batch.size(); j++) {
+				if (j > 0) {
+					values.append(",");
+				}
+				values.append("(?,?,?,?)");
+			}
+			PreparedStatement s = dbConnection.prepareStatement("INSERT INTO file_queue (file_id, needs_process, needs_reprocess, needs_delete) VALUES "+values+" ON DUPLICATE KEY UPDATE needs_process=VALUES(needs_process), needs_reprocess=VALUES(needs_reprocess), needs_delete=VALUES(needs_delete)");
+			int index = 1;
+			for (int[] row : batch) {
+				for (int value : row) {
+					s.setInt(index++, value);
+				}
+			}
+			s.executeUpdate();
+			s.close();
+		}
+	}
+
+	private static String getFlagsString() {
+		return "COALESCE("+needsProcessCondition+", 0) AS needs_process, COALESCE("+needsReprocessCondition+", 0) AS needs_reprocess, COALESCE("+needsDeleteCondition+", 0) AS needs_delete";
+	}
+
+	private static void setFileTypeIds(PreparedStatement s, int startIndex) throws SQLException {
+		int i = startIndex;
+		for (FileType a : FileType.values()) {
+			s.setInt(i++, a.getObj().getId());
+		}
+	}
+}
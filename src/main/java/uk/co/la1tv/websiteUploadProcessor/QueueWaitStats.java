@@ -0,0 +1,52 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+
+/**
+ * Keeps track of how long recent files waited before they were picked up for processing.
+ *
+ */
+public class QueueWaitStats {
+	
+	// the number of most recent waiting times that are kept
+	private static final int maxNumSamples = 1000;
+	
+	private final LinkedList<Long> samples = new LinkedList<>();
+	private long totalNumSamples = 0;
+	
+	/**
+	 * Record how long a file waited before it was picked up.
+	 * @param waitingTime: the time in seconds.
+	 */
+	public synchronized void record(long waitingTime) {
+		samples.addLast(waitingTime);
+		if (samples.size() > maxNumSamples) {
+			samples.removeFirst();
+		}
+		totalNumSamples++;
+	}
+	
+	/**
+	 * Get a summary of the recent waiting times, including the mean and percentiles.
+	 * @return
+	 */
+	public synchronized String getSummary() {
+		if (samples.isEmpty()) {
+			return "No files picked up yet.";
+		}
+		ArrayList<Long> sorted = new ArrayList<>(samples);
+		Collections.sort(sorted);
+		long total = 0;
+		for (long a : sorted) {
+			total += a;
+		}
+		return "Last "+sorted.size()+" of "+totalNumSamples+" files waited: mean "+(total/sorted.size())+"s, p50 "+getPercentile(sorted, 50)+"s, p90 "+getPercentile(sorted, 90)+"s, p99 "+getPercentile(sorted, 99)+"s, max "+sorted.get(sorted.size()-1)+"s.";
+	}
+	
+	private static long getPercentile(ArrayList<Long> sorted, int percentile) {
+		int index = (int) Math.ceil((percentile / 100d) * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+}
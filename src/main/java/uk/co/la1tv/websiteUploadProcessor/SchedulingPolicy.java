@@ -0,0 +1,70 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+/**
+ * The order that files waiting to be processed are picked up in.
+ * Candidates are fetched from the database in the order from getOrderByString(), and are then picked up in order of their score, lowest first.
+ *
+ */
+public enum SchedulingPolicy {
+	// the file that has been waiting the longest first
+	FIFO,
+	// the file that has been waiting the shortest time first
+	LIFO,
+	// the file with the lowest estimated cost first, with aging
+	SJF,
+	// the file with the highest priority first, with aging
+	PRIORITY;
+	
+	/**
+	 * Get the ORDER BY part of the query that fetches candidates.
+	 * For SJF the candidates are the files that have been waiting the longest, so a file can't be left waiting forever
+	 * because it will end up being in every set of candidates until it is picked up.
+	 * For PRIORITY the aging is applied in the query, in the same way as getScore, so a low priority file's score keeps rising until it is
+	 * in the set of candidates even if higher priority files keep being added.
+	 * @param priorityColumn: the column in the files table which contains the priority.
+	 * @param agingRate: the amount the score is reduced by for every minute the file has been waiting.
+	 * @return
+	 */
+	public String getOrderByString(String priorityColumn, double agingRate) {
+		switch(this) {
+		case LIFO:
+			return " ORDER BY files.updated_at DESC";
+		case PRIORITY:
+			return " ORDER BY (files."+priorityColumn+" + ("+agingRate+" * TIMESTAMPDIFF(SECOND, files.updated_at, NOW()) / 60)) DESC, files.updated_at ASC";
+		default:
+			return " ORDER BY files.updated_at ASC";
+		}
+	}
+	
+	public boolean usesEstimatedCost() {
+		return this == SJF;
+	}
+	
+	public boolean usesPriority() {
+		return this == PRIORITY;
+	}
+	
+	/**
+	 * Get the score of a candidate. Candidates with a lower score are picked up first.
+	 * @param estimatedCost: the estimated cost of the file. Only used if usesEstimatedCost() is true.
+	 * @param priority: the priority of the file. Only used if usesPriority() is true.
+	 * @param waitingTime: the amount of time in seconds the file has been waiting.
+	 * @param agingRate: the amount the score is reduced by for every minute the file has been waiting, for SJF and PRIORITY.
+	 * @return
+	 */
+	public double getScore(double estimatedCost, int priority, long waitingTime, double agingRate) {
+		double waitingMinutes = waitingTime / 60d;
+		switch(this) {
+		case FIFO:
+			return -waitingTime;
+		case LIFO:
+			return waitingTime;
+		case SJF:
+			return estimatedCost - (agingRate * waitingMinutes);
+		case PRIORITY:
+			return -priority - (agingRate * waitingMinutes);
+		default:
+			throw(new RuntimeException("Unknown scheduling policy."));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+
+/**
+ * Writes the processing message and percentage for files in the background.
+ * Only the latest status for each file is kept, and all of the files that have changed are written together in one statement at a set interval,
+ * so the thread that updates the status never waits for the database.
+ * Statuses that must be written straight away (e.g. when processing has finished) should be written with DbHelper.updateStatus after calling discard.
+ *
+ */
+public class StatusWriter {
+	
+	private static Logger logger = Logger.getLogger(StatusWriter.class);
+	
+	private static StatusWriter instance = null;
+	
+	// the maximum number of statuses which will be written in one query
+	private static final int batchSize = 500;
+	
+	private final Timer timer;
+	private final boolean mirrorToFiles;
+	// the latest status for each file that hasn't been written yet, keyed by file id
+	private final ConcurrentHashMap<Integer, Status> pendingStatuses = new ConcurrentHashMap<>();
+	
+	private StatusWriter() {
+		Config config = Config.getInstance();
+		mirrorToFiles = config.getBoolean("general.mirrorVolatileStateToFiles");
+		long flushInterval = config.getInt("general.statusWriter.flushInterval");
+		timer = new Timer(false);
+		timer.schedule(new FlushTask(), flushInterval, flushInterval);
+	}
+	
+	public static synchronized StatusWriter getInstance() {
+		if (instance == null) {
+			instance = new StatusWriter();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Set the current processing message and/or percentage for a file. This will be written to the database shortly.
+	 * If there is already a status waiting to be written for the file it is replaced.
+	 * @param fileId
+	 * @param msg: The message to set. null means no message.
+	 * @param percentage: The percentage of processing from 0-100. null means no percentage
+	 */
+	public void update(int fileId, String msg, Integer percentage) {
+		pendingStatuses.put(fileId, new Status(msg, percentage));
+	}
+	
+	/**
+	 * Forget any status for the file that hasn't been written yet.
+	 * If the statuses are being written at the moment this waits until they have been, so a status written
+	 * after this returns will never be overwritten by one from before.
+	 * @param fileId
+	 */
+	public synchronized void discard(int fileId) {
+		pendingStatuses.remove(fileId);
+	}
+	
+	// write all of the pending statuses to the database
+	private synchronized void flush() {
+		if (pendingStatuses.isEmpty()) {
+			return;
+		}
+		
+		// take the statuses out of the map so that any updates made whilst writing will be written next time
+		ArrayList<Integer> fileIds = new ArrayList<>();
+		ArrayList<Status> statuses = new ArrayList<>();
+		for (Map.Entry<Integer, Status> entry : pendingStatuses.entrySet()) {
+			if (pendingStatuses.remove(entry.getKey(), entry.getValue())) {
+				fileIds.add(entry.getKey());
+				statuses.add(entry.getValue());
+			}
+		}
+		
+		Connection dbConnection = DbHelper.getMainDb().getConnection();
+		if (dbConnection == null) {
+			logger.warn("Could not write "+fileIds.size()+" status update(s) because a connection to the database could not be made. Will try again.");
+			requeue(fileIds, statuses);
+			return;
+		}
+		try {
+			for (int i=0; i<fileIds.size(); i+=batchSize) {
+				write(dbConnection, fileIds.subList(i, Math.min(i+batchSize, fileIds.size())), statuses.subList(i, Math.min(i+batchSize, statuses.size())));
+			}
+			logger.trace("Wrote "+fileIds.size()+" status update(s).");
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to write "+fileIds.size()+" status update(s). Will try again.");
+			e.printStackTrace();
+			requeue(fileIds, statuses);
+		}
+		try {
+			dbConnection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void write(Connection dbConnection, List<Integer> fileIds, List<Status> statuses) throws SQLException {
+		StringBuilder values = new StringBuilder();
+		for (int i=0; i<fileIds.size(); i++) {
+			if (i > 0) {
+				values.append(" UNION ALL ");
+			}
+			values.append("SELECT ? AS file_id, ? AS msg, ? AS process_percentage");
+		}
+		// joined with the files table so that rows are never created for files that have been deleted
+		PreparedStatement s = dbConnection.prepareStatement("INSERT INTO file_progress (file_id, msg, process_percentage) SELECT files.id, statuses.msg, statuses.process_percentage FROM files JOIN ("+values+") AS statuses ON statuses.file_id=files.id ON DUPLICATE KEY UPDATE msg=VALUES(msg), process_percentage=VALUES(process_percentage)");
+		int i = 1;
+		for (int j=0; j<fileIds.size(); j++) {
+			s.setInt(i++, fileIds.get(j));
+			i = statuses.get(j).setParameters(s, i);
+		}
+		s.executeUpdate();
+		s.close();
+		
+		if (mirrorToFiles) {
+			s = dbConnection.prepareStatement("UPDATE files SET msg=?, process_percentage=? WHERE id=?");
+			for (int j=0; j<fileIds.size(); j++) {
+				s.setInt(statuses.get(j).setParameters(s, 1), fileIds.get(j));
+				s.addBatch();
+			}
+			s.executeBatch();
+			s.close();
+		}
+	}
+	
+	// put back statuses that could not be written, unless there is already a newer one
+	private void requeue(List<Integer> fileIds, List<Status> statuses) {
+		for (int i=0; i<fileIds.size(); i++) {
+			pendingStatuses.putIfAbsent(fileIds.get(i), statuses.get(i));
+		}
+	}
+	
+	private class FlushTask extends TimerTask {
+		
+		@Override
+		public void run() {
+			try {
+				flush();
+			}
+			catch(Exception e) {
+				logger.error("Exception occurred whilst writing status updates.");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static class Status {
+		private final String msg;
+		private final Integer percentage;
+		
+		public Status(String msg, Integer percentage) {
+			this.msg = msg;
+			this.percentage = percentage;
+		}
+		
+		// set the msg and percentage parameters starting at the provided index, and return the index of the next parameter
+		public int setParameters(PreparedStatement s, int index) throws SQLException {
+			s.setString(index++, msg);
+			if (percentage != null) {
+				s.setInt(index++, percentage);
+			}
+			else {
+				s.setNull(index++, Types.INTEGER);
+			}
+			return index;
+		}
+	}
+}
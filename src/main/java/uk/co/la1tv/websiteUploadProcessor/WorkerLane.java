@@ -0,0 +1,179 @@
+package uk.co.la1tv.websiteUploadProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileType;
+import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileTypeAbstract;
+
+/**
+ * A group of file types that are processed by their own threads, so that jobs of these types
+ * don't have to wait for jobs in other lanes to finish.
+ *
+ */
+public class WorkerLane {
+
+	private static Logger logger = Logger.getLogger(WorkerLane.class);
+
+	private final String name;
+	private final int noThreads;
+	private final double costCapacity;
+	private final List<FileType> fileTypes;
+	private final ExecutorService threadPool;
+	// contains the Files that have been added to the threadPool for processing, and their estimated costs
+	// they are removed after the relevant process has completed.
+	private final ConcurrentHashMap<File, Double> filesInProgress = new ConcurrentHashMap<>();
+	// a permit for each thread that does not have a file
+	private final Semaphore freeThreads;
+	private final QueueWaitStats queueWaitStats = new QueueWaitStats();
+
+	private WorkerLane(String name, int noThreads, double costCapacity, List<FileType> fileTypes) {
+		this.name = name;
+		this.noThreads = noThreads;
+		this.costCapacity = costCapacity;
+		this.fileTypes = Collections.unmodifiableList(fileTypes);
+		threadPool = Executors.newFixedThreadPool(noThreads);
+		freeThreads = new Semaphore(noThreads);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getNoThreads() {
+		return noThreads;
+	}
+
+	/**
+	 * Get the total estimated cost of the jobs that can run in this lane at the same time.
+	 * A job that costs more than this can still run on its own.
+	 * @return
+	 */
+	public double getCostCapacity() {
+		return costCapacity;
+	}
+
+	public List<FileType> getFileTypes() {
+		return fileTypes;
+	}
+
+	public boolean handlesFileType(FileTypeAbstract fileType) {
+		for (FileType a : fileTypes) {
+			if (a.getObj() == fileType) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public QueueWaitStats getQueueWaitStats() {
+		return queueWaitStats;
+	}
+
+	public ExecutorService getThreadPool() {
+		return threadPool;
+	}
+
+	/**
+	 * Add a file that is about to be processed, which uses up one of the free threads.
+	 * @param file
+	 * @param estimatedCost
+	 * @return false if there are no free threads or the file is already in progress.
+	 */
+	public boolean addFileInProgress(File file, double estimatedCost) {
+		if (!freeThreads.tryAcquire()) {
+			return false;
+		}
+		if (filesInProgress.putIfAbsent(file, estimatedCost) != null) {
+			freeThreads.release();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a file that has finished being processed, which frees up its thread straight away.
+	 * @param file
+	 */
+	public void removeFileInProgress(File file) {
+		if (filesInProgress.remove(file) != null) {
+			freeThreads.release();
+		}
+	}
+
+	public int getNumFreeThreads() {
+		return freeThreads.availablePermits();
+	}
+
+	public boolean isFileInProgress(File file) {
+		return filesInProgress.containsKey(file);
+	}
+
+	public int getNumFilesInProgress() {
+		return filesInProgress.size();
+	}
+
+	/**
+	 * Get the total estimated cost of the files that are currently in progress.
+	 * @return
+	 */
+	public double getLoad() {
+		double load = 0;
+		for (double cost : filesInProgress.values()) {
+			load += cost;
+		}
+		return load;
+	}
+
+	/**
+	 * Create the lanes that are defined in the config.
+	 * Each file type can only be in one lane. File types that are not in any lane will never be processed.
+	 * @return
+	 */
+	public static List<WorkerLane> createFromConfig() {
+		Config config = Config.getInstance();
+		ArrayList<WorkerLane> lanes = new ArrayList<>();
+		LinkedHashSet<FileType> assignedFileTypes = new LinkedHashSet<>();
+		for (String name : config.getStringArray("general.lanes")) {
+			int noThreads = config.getInt("general.lanes."+name+".noThreads");
+			if (noThreads < 1) {
+				throw(new RuntimeException("Lane \""+name+"\" must have at least 1 thread."));
+			}
+			double costCapacity = config.getDouble("general.lanes."+name+".costCapacity");
+			if (costCapacity <= 0) {
+				throw(new RuntimeException("Lane \""+name+"\" must have a cost capacity of more than 0."));
+			}
+			ArrayList<FileType> fileTypes = new ArrayList<>();
+			for (String fileTypeName : config.getStringArray("general.lanes."+name+".fileTypes")) {
+				FileType fileType;
+				try {
+					fileType = FileType.valueOf(fileTypeName.trim());
+				}
+				catch(IllegalArgumentException e) {
+					throw(new RuntimeException("Unknown file type \""+fileTypeName+"\" in lane \""+name+"\"."));
+				}
+				if (!assignedFileTypes.add(fileType)) {
+					throw(new RuntimeException("File type \""+fileTypeName+"\" is in more than one lane."));
+				}
+				fileTypes.add(fileType);
+			}
+			if (fileTypes.isEmpty()) {
+				throw(new RuntimeException("Lane \""+name+"\" does not contain any file types."));
+			}
+			lanes.add(new WorkerLane(name, noThreads, costCapacity, fileTypes));
+			logger.info("Created lane \""+name+"\" with "+noThreads+" thread(s) and a cost capacity of "+costCapacity+" for file types "+fileTypes+".");
+		}
+		if (lanes.isEmpty()) {
+			throw(new RuntimeException("There must be at least one lane."));
+		}
+		return lanes;
+	}
+}
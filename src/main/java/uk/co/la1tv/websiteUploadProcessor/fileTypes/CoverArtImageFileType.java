@@ -7,7 +7,7 @@ import org.apache.log4j.Logger;
 
 import uk.co.la1tv.websiteUploadProcessor.Config;
 import uk.co.la1tv.websiteUploadProcessor.File;
-import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+import uk.co.la1tv.websiteUploadProcessor.StatusWriter;
 import uk.co.la1tv.websiteUploadProcessor.helpers.ImageFormat;
 import uk.co.la1tv.websiteUploadProcessor.helpers.ImageMagickFormat;
 import uk.co.la1tv.websiteUploadProcessor.helpers.ImageProcessorHelper;
@@ -24,9 +24,9 @@ public class CoverArtImageFileType extends FileTypeAbstract {
 	public FileTypeProcessReturnInfo process(final Connection dbConnection, java.io.File source, java.io.File workingDir, File file, final boolean workingWithCopy) {
 		// any image format and size is acceptable. It will always be cropped to become correct aspect ratio
 		Config config = Config.getInstance();
-		FileTypeProcessReturnInfo returnVal = new FileTypeProcessReturnInfo();
+		FileTypeProcessReturnInfo returnVal = new FileTypeProcessReturnInfo(file);
 		
-		DbHelper.updateStatus(dbConnection, file.getId(), "Processing image.", null);
+		StatusWriter.getInstance().update(file.getId(), "Processing image.", null);
 		
 		ImageMagickFormat inputFormat = ImageMagickFormat.getFormatFromExtension(file.getExtension());
 		if (inputFormat == null) {
@@ -20,6 +20,17 @@ public abstract class FileTypeAbstract {
 		return id;
 	}
 	
+	/**
+	 * Get an estimate of how much work it will be to process a file, which is used to spread work between servers.
+	 * The unit is roughly the work needed to render one second of 720p video in one format.
+	 * By default this is based on the size of the file.
+	 * @param file: The file that will be processed.
+	 * @return the estimated cost
+	 */
+	public double getEstimatedCost(File file) {
+		return 1 + file.getSize()/1048576d;
+	}
+	
 	/**
 	 * Called when a file is ready to be processed.
 	 * @param dbConnection: a Connection object which provides access to the database.
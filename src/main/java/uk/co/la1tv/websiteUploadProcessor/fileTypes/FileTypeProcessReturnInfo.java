@@ -9,16 +9,23 @@ import uk.co.la1tv.websiteUploadProcessor.HeartbeatManager;
 public class FileTypeProcessReturnInfo {
 	public String msg = null;
 	
+	// the file that is being processed. New files are children of this file
+	private final File sourceFile;
+	
 	// stores new files that have been created and will need marking as in_use, and will also need unregistering from the heartbeat monitor when the job is done 
 	private Set<File> newFiles = new HashSet<>();
 	public boolean success = false;
 	
+	public FileTypeProcessReturnInfo(File sourceFile) {
+		this.sourceFile = sourceFile;
+	}
+	
 	// add new files that are created here.
 	// they will be registered with the heartbeat manager and also marked as in_use when the processing finishes (if is all successful)
 	// returns false if the file could not be added because there was an issue registering with the heartbeat manager
 	public boolean registerNewFile(File file) {
-		// force this file to be registered with the heartbeat manager
-		if (!HeartbeatManager.getInstance().registerFile(file, true)) {
+		// register this file with the heartbeat manager as a child of the source file so that it is covered by the source file's heartbeat
+		if (!HeartbeatManager.getInstance().registerChildFile(file, sourceFile)) {
 			return false;
 		}
 		newFiles.add(file);
@@ -7,7 +7,7 @@ import org.apache.log4j.Logger;
 
 import uk.co.la1tv.websiteUploadProcessor.Config;
 import uk.co.la1tv.websiteUploadProcessor.File;
-import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
+import uk.co.la1tv.websiteUploadProcessor.StatusWriter;
 import uk.co.la1tv.websiteUploadProcessor.helpers.ImageFormat;
 import uk.co.la1tv.websiteUploadProcessor.helpers.ImageMagickFormat;
 import uk.co.la1tv.websiteUploadProcessor.helpers.ImageProcessorHelper;
@@ -23,10 +23,10 @@ public class SideBannersFillImageFileType extends FileTypeAbstract {
 	@Override
 	public FileTypeProcessReturnInfo process(final Connection dbConnection, java.io.File source, java.io.File workingDir, File file, final boolean workingWithCopy) {
 		Config config = Config.getInstance();
-		FileTypeProcessReturnInfo returnVal = new FileTypeProcessReturnInfo();
+		FileTypeProcessReturnInfo returnVal = new FileTypeProcessReturnInfo(file);
 		// ids of files that should be marked in_use when the process_state is updated at the end of processing
 		
-		DbHelper.updateStatus(dbConnection, file.getId(), "Processing image.", null);
+		StatusWriter.getInstance().update(file.getId(), "Processing image.", null);
 		
 		ImageMagickFormat inputFormat = ImageMagickFormat.getFormatFromExtension(file.getExtension());
 		if (inputFormat == null) {
@@ -13,8 +13,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -32,8 +43,12 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import uk.co.la1tv.websiteUploadProcessor.ChunkWorker;
 import uk.co.la1tv.websiteUploadProcessor.Config;
+import uk.co.la1tv.websiteUploadProcessor.CoreBudget;
 import uk.co.la1tv.websiteUploadProcessor.File;
+import uk.co.la1tv.websiteUploadProcessor.HeartbeatManager;
+import uk.co.la1tv.websiteUploadProcessor.StatusWriter;
 import uk.co.la1tv.websiteUploadProcessor.helpers.DbHelper;
 import uk.co.la1tv.websiteUploadProcessor.helpers.FfmpegFileInfo;
 import uk.co.la1tv.websiteUploadProcessor.helpers.FfmpegHelper;
@@ -42,8 +57,6 @@ import uk.co.la1tv.websiteUploadProcessor.helpers.FileHelper;
 import uk.co.la1tv.websiteUploadProcessor.helpers.RuntimeHelper;
 import uk.co.la1tv.websiteUploadProcessor.helpers.VideoThumbnail;
 
-import com.mysql.jdbc.exceptions.jdbc4.MySQLTransactionRollbackException;
-
 public class VODVideoFileType extends FileTypeAbstract {
 	
 	public VODVideoFileType(int id) {
@@ -51,17 +64,61 @@ public class VODVideoFileType extends FileTypeAbstract {
 	}
 
 	private static Logger logger = Logger.getLogger(VODVideoFileType.class);
+	
+	@Override
+	public double getEstimatedCost(File file) {
+		// only the header is read so this is quick
+		java.io.File source = new java.io.File(FileHelper.getSourceFilePath(file.getId()));
+		FfmpegFileInfo info = FfmpegHelper.getFileInfo(source, source.getParentFile(), false);
+		if (info == null) {
+			// assume it's a 720p video at around 3Mbps that will be rendered into 4 formats
+			logger.debug("Could not get info for file with id "+file.getId()+" to estimate its cost. Estimating from its size instead.");
+			return 1 + (file.getSize()/1048576d) * 2.8 * 4;
+		}
+		double resolution = ((double) info.getW() * info.getH()) / (1280 * 720);
+		return 1 + info.getDuration() * resolution * getFormatsToRender(info.getH()).size();
+	}
+	
+	// get the entries in encoding.vodFormats that a video with the provided height should be rendered into, in the order they are in the config
+	// every format up to the source height is rendered, and also the next one above it, unless there is a format with exactly the same height
+	private static List<String> getFormatsToRender(int sourceFileH) {
+		List<Object> allFormatsConfig = Config.getInstance().getList("encoding.vodFormats");
+		// set to the height that is one resolution larger than the source file
+		int largerHeightToRender = -1;
+		for (Object f : allFormatsConfig) {
+			int h = getFormatHeight((String) f);
+			if ((largerHeightToRender == -1 || h < largerHeightToRender) && h >= sourceFileH) {
+				largerHeightToRender = h;
+			}
+		}
+		ArrayList<String> formatsToRender = new ArrayList<String>();
+		for (Object f : allFormatsConfig) {
+			int h = getFormatHeight((String) f);
+			if (h > sourceFileH && h != largerHeightToRender) {
+				continue;
+			}
+			formatsToRender.add((String) f);
+		}
+		return formatsToRender;
+	}
+	
+	// the height of a format in encoding.vodFormats
+	private static int getFormatHeight(String format) {
+		int h = Integer.parseInt(format.split("-")[1]);
+		h += h%2; // height (and width) must be multiple of 2 for libx codec
+		return h;
+	}
 
 	@Override
 	public FileTypeProcessReturnInfo process(final Connection dbConnection, java.io.File source, java.io.File workingDir, final File file, final boolean workingWithCopy) {
-		FileTypeProcessReturnInfo returnVal = new FileTypeProcessReturnInfo();
+		FileTypeProcessReturnInfo returnVal = new FileTypeProcessReturnInfo(file);
 		try {
 			Config config = Config.getInstance();
 			int exitVal;
 			FfmpegFileInfo info;
 			BigInteger totalSize = BigInteger.ZERO;
 			
-			DbHelper.updateStatus(dbConnection, file.getId(), "Checking video format.", null);
+			StatusWriter.getInstance().update(file.getId(), "Checking video format.", null);
 			// get source file information.
 			info = FfmpegHelper.getFileInfo(source, workingDir);
 			if (info == null) {
@@ -77,20 +134,18 @@ public class VODVideoFileType extends FileTypeAbstract {
 				return returnVal;
 			}
 			
-			// get video height
-			int sourceFileH = info.getH();
-			List<Object> allFormatsConfig = config.getList("encoding.vodFormats");
-			
-			final ArrayList<Format> formats = new ArrayList<Format>();
+			// determine which resolutions to render and build up array of format objects
 			final ArrayList<Format> formatsToRender = new ArrayList<Format>();
-			// set to the height that is one resolution larger than the source file
-			int largerHeightToRender = -1;
-			// build up array of format objects
-			for (Object f : allFormatsConfig) {
-				String[] a = ((String) f).split("-");
+			List<String> formatsConfigToRender = getFormatsToRender(info.getH());
+			for (Object f : config.getList("encoding.vodFormats")) {
+				if (!formatsConfigToRender.contains(f)) {
+					logger.debug("Not rendering height "+getFormatHeight((String) f)+" because it is more than the source file's height.");
+				}
+			}
+			for (String f : formatsConfigToRender) {
+				String[] a = f.split("-");
 				int qualityDefinitionId = Integer.parseInt(a[0]);
-				int h = Integer.parseInt(a[1]);
-				h += h%2; // height (and width) must be multiple of 2 for libx codec
+				int h = getFormatHeight(f);
 				int aBitrate = Integer.parseInt(a[2]);
 				int vBitrate = Integer.parseInt(a[3]);
 				double maxFr = Double.parseDouble(a[4]);
@@ -102,68 +157,83 @@ public class VODVideoFileType extends FileTypeAbstract {
 				while (outputFr > maxFr) {
 					outputFr = outputFr/2;
 				}
-				
-				Format format = new Format(qualityDefinitionId, h, aBitrate, vBitrate, outputFr, new java.io.File(FileHelper.format(workingDir.getAbsolutePath()+"/")+"output_"+h));
-				formats.add(format);
-				if ((largerHeightToRender == -1 || format.h < largerHeightToRender) && format.h >= sourceFileH) {
-					largerHeightToRender = format.h;
-				}
+				formatsToRender.add(new Format(qualityDefinitionId, h, aBitrate, vBitrate, outputFr, new java.io.File(FileHelper.format(workingDir.getAbsolutePath()+"/")+"output_"+h)));
 			}
 			
-			// determine which resolutions to render. Should render one resolution higher than the source resolution, unless it matches a resolution exactly
-			for (Format f : formats) {
-				if (f.h > sourceFileH && f.h != largerHeightToRender) {
-					logger.debug("Not rendering height "+f.h+" because it is more than the source file's height.");
-					continue;
-				}
-				formatsToRender.add(f);
+			// check if file is now marked for deletion
+			if (isFileMarkedForDeleteion(dbConnection, file)) {
+				logger.debug("VOD with id "+file.getId()+" has been marked for deletion so not processing any more.");
+				return returnVal;
 			}
 			
-			final String renderRequiredFormatsMsg = "Rendering video into required formats.";
-			DbHelper.updateStatus(dbConnection, file.getId(), renderRequiredFormatsMsg, 0);
+			// the dash outputs only have an audio channel if the source has audio
+			Boolean hasAudio = FfmpegHelper.hasAudio(source, workingDir);
+			if (hasAudio == null) {
+				logger.warn("Error determining if file with id "+file.getId()+" has audio.");
+				returnVal.msg = "Error processing video info.";
+				return returnVal;
+			}
+			for (Format f : formatsToRender) {
+				f.hasAudio = hasAudio;
+			}
 			
-			// loop through different formats and render videos for ones that are applicable
-			for (final Format f : formatsToRender) {
-				
-				// check if file is now marked for deletion
-				if (isFileMarkedForDeleteion(dbConnection, file)) {
-					logger.debug("VOD with id "+file.getId()+" has been marked for deletion so not processing any more.");
-					return returnVal;
-				}
-				logger.debug("Executing ffmpeg for height "+f.h+" and audio bitrate "+f.aBitrate+"kbps, video bitrate "+f.vBitrate+"kbps with frame rate "+f.fr+" fps.");
-				
-				double noOutputFrames = Math.ceil(info.getNoFrames() * (f.fr / info.getFrameRate()));
-				final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(f.getProgressFile(), noOutputFrames);
-				monitor.setCallback(new Runnable() {
-					@Override
-					public void run() {
-						// called whenever the process percentage changes
-						// calculate the actual percentage when taking all renders into account
-						int actualPercentage = (int) Math.floor(((float) monitor.getPercentage()/formatsToRender.size()) + (formatsToRender.indexOf(f)*(100.0/formatsToRender.size())));
-						DbHelper.updateStatus(dbConnection, file.getId(), renderRequiredFormatsMsg, actualPercentage);
-					}
-				});
-				exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+config.getInt("ffmpeg.videoEncodeTimeLimit"), "-progress", f.getProgressFile().getAbsolutePath(), "-i", source.getAbsolutePath(), "-vf", "scale=trunc(("+f.h+"*a)/2)*2:"+f.h, "-strict", "experimental", "-acodec", "aac", "-b:a", f.aBitrate+"k", "-ac", "2", "-ar", "48000", "-vcodec", "libx264", "-vprofile", "main", "-g", "48", "-b:v", f.vBitrate+"k", "-maxrate", f.vBitrate+"k", "-bufsize", f.vBitrate*2+"k", "-preset", "medium", "-crf", "16", "-vsync", "vfr", "-af", "aresample=async=1000", "-movflags", "+faststart", "-r", f.fr+"", "-f", "mp4", f.outputFile.getAbsolutePath()}, workingDir, null, null);
-				monitor.destroy();
-				if (exitVal == 0) {
-					logger.debug("ffmpeg finished successfully with error code "+exitVal+".");
-					totalSize.add(BigInteger.valueOf(f.outputFile.length()));
-					if (FileHelper.isOverQuota(totalSize)) {
-						returnVal.msg = "Ran out of space.";
-						return returnVal;
+			StatusWriter.getInstance().update(file.getId(), renderRequiredFormatsMsg, 0);
+			VodEncodeMode encodeMode = VodEncodeMode.getFromConfig();
+			VodPackagingMode packagingMode;
+			try {
+				packagingMode = VodPackagingMode.valueOf(config.getString("encoding.vodPackagingMode").trim().toUpperCase());
+			}
+			catch(IllegalArgumentException e) {
+				throw(new RuntimeException("Unknown vod packaging mode \""+config.getString("encoding.vodPackagingMode")+"\"."));
+			}
+			if (packagingMode == VodPackagingMode.ONE_PASS) {
+				// the dash and hls outputs are written by the render itself so it has to be decided now if they are wanted
+				for (Format f : formatsToRender) {
+					if (f.shouldCreateDashAndHls(info.getDuration())) {
+						f.creatingDashAndHlsRenders = true;
+						f.packagedInOnePass = true;
 					}
 				}
-				else {
-					logger.warn("ffmpeg finished but returned error code "+exitVal+".");
-					// if any renders fail fail the whole thing.
-					// already rendered files will be cleaned up later because the working directory is cleared
-					returnVal.msg = "Error rendering video.";
-					return returnVal;
+			}
+			boolean rendered;
+			if (encodeMode == VodEncodeMode.SINGLE_DECODE) {
+				rendered = renderWithSingleDecode(source, workingDir, file, info, formatsToRender);
+			}
+			else if (encodeMode == VodEncodeMode.PARALLEL) {
+				rendered = renderInParallel(source, workingDir, file, info, formatsToRender);
+			}
+			else if (encodeMode == VodEncodeMode.CHUNKED) {
+				rendered = renderInChunks(source, workingDir, file, info, formatsToRender);
+			}
+			else if (encodeMode == VodEncodeMode.DISTRIBUTED) {
+				rendered = renderDistributed(dbConnection, source, workingDir, file, info, formatsToRender);
+			}
+			else {
+				rendered = renderSequentially(dbConnection, source, workingDir, file, info, formatsToRender);
+			}
+			if (!rendered) {
+				// if any renders fail fail the whole thing.
+				// already rendered files will be cleaned up later because the working directory is cleared
+				returnVal.msg = "Error rendering video.";
+				return returnVal;
+			}
+			for (Format f : formatsToRender) {
+				totalSize = totalSize.add(BigInteger.valueOf(f.outputFile.length()));
+				if (f.packagedInOnePass) {
+					for (java.io.File packagedFile : new java.io.File[]{f.getDashAudioChannelFile(), f.getDashVideoChannelFile(), f.getHlsPlaylistFile(), f.getHlsSegmentFile()}) {
+						if (packagedFile != null) {
+							totalSize = totalSize.add(BigInteger.valueOf(packagedFile.length()));
+						}
+					}
 				}
 			}
+			if (FileHelper.isOverQuota(totalSize)) {
+				returnVal.msg = "Ran out of space.";
+				return returnVal;
+			}
 			
 			// generate the thumbnails that will be shown as the user scrubs through the item in the player.
-			DbHelper.updateStatus(dbConnection, file.getId(), "Generating scrub thumbnails.", null);
+			StatusWriter.getInstance().update(file.getId(), "Generating scrub thumbnails.", null);
 			VideoThumbnail[] thumbnails = FfmpegHelper.generateThumbnails(config.getInt("encoding.vodScrubThumbnails.numberPerItem"), source, workingDir, config.getInt("encoding.vodScrubThumbnails.width"), config.getInt("encoding.vodScrubThumbnails.height"));
 			if (thumbnails == null) {
 				logger.warn("There was an error generating video scrub thumbnails.");
@@ -172,7 +242,7 @@ public class VODVideoFileType extends FileTypeAbstract {
 			}
 			
 			for(VideoThumbnail thumbnail : thumbnails) {
-				totalSize.add(BigInteger.valueOf(thumbnail.getFile().length()));
+				totalSize = totalSize.add(BigInteger.valueOf(thumbnail.getFile().length()));
 				if (FileHelper.isOverQuota(totalSize)) {
 					returnVal.msg = "Ran out of space.";
 					return returnVal;
@@ -181,7 +251,7 @@ public class VODVideoFileType extends FileTypeAbstract {
 			
 			int numDashHlsRenders = 0;
 			for (final Format f : formatsToRender) {
-				if (f.shouldCreateDashAndHls()) {
+				if (packagingMode == VodPackagingMode.SEPARATE && f.shouldCreateDashAndHls()) {
 					f.creatingDashAndHlsRenders = true;
 					numDashHlsRenders++;
 				}
@@ -191,11 +261,11 @@ public class VODVideoFileType extends FileTypeAbstract {
 			// loop through different formats and render videos for ones that are applicable
 			int dashRenderNum = -1;
 			for (final Format f : formatsToRender) {
-				if (!f.creatingDashAndHlsRenders) {
+				if (!f.creatingDashAndHlsRenders || f.packagedInOnePass) {
 					continue;
 				}
 				dashRenderNum++;
-				DbHelper.updateStatus(dbConnection, file.getId(), "Creating DASH encodes.", ((int) Math.floor((dashRenderNum/(float) numDashHlsRenders) * 100)));
+				StatusWriter.getInstance().update(file.getId(), "Creating DASH encodes.", ((int) Math.floor((dashRenderNum/(float) numDashHlsRenders) * 100)));
 				
 				// check if file is now marked for deletion
 				if (isFileMarkedForDeleteion(dbConnection, file)) {
@@ -204,11 +274,17 @@ public class VODVideoFileType extends FileTypeAbstract {
 				}
 			
 				logger.debug("Executing mp4box to create DASH output for output file with height "+f.h+" and audio bitrate "+f.aBitrate+"kbps, video bitrate "+f.vBitrate+"kbps with frame rate "+f.fr+" fps.");	
-				exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("mp4box.location"), "-dash", "5000", "-rap", "-frag-rap", "-profile", "onDemand", "-out", f.outputFile.getName()+"_dash", f.outputFile.getAbsolutePath()+"#video", f.outputFile.getAbsolutePath()+"#audio"}, workingDir, null, null);
+				ArrayList<String> mp4boxCommand = new ArrayList<String>(Arrays.asList(config.getString("mp4box.location"), "-dash", "5000", "-rap", "-frag-rap", "-profile", "onDemand", "-out", f.outputFile.getName()+"_dash", f.outputFile.getAbsolutePath()+"#video"));
+				if (f.hasAudio) {
+					mp4boxCommand.add(f.outputFile.getAbsolutePath()+"#audio");
+				}
+				exitVal = RuntimeHelper.executeProgram(mp4boxCommand.toArray(new String[mp4boxCommand.size()]), workingDir, null, null);
 				if (exitVal == 0) {
 					logger.debug("mp4box finished successfully with error code "+exitVal+".");
-					totalSize.add(BigInteger.valueOf(f.getDashAudioChannelFile().length()));
-					totalSize.add(BigInteger.valueOf(f.getDashVideoChannelFile().length()));
+					if (f.hasAudio) {
+						totalSize = totalSize.add(BigInteger.valueOf(f.getDashAudioChannelFile().length()));
+					}
+					totalSize = totalSize.add(BigInteger.valueOf(f.getDashVideoChannelFile().length()));
 					if (FileHelper.isOverQuota(totalSize)) {
 						returnVal.msg = "Ran out of space.";
 						return returnVal;
@@ -227,12 +303,12 @@ public class VODVideoFileType extends FileTypeAbstract {
 			// loop through different formats and render videos for ones that are applicable
 			int hlsRenderNum = -1;
 			for (final Format f : formatsToRender) {
-				if (!f.creatingDashAndHlsRenders) {
+				if (!f.creatingDashAndHlsRenders || f.packagedInOnePass) {
 					continue;
 				}
 				hlsRenderNum++;
 				final String renderHlsMessage = "Creating HLS encodes.";
-				DbHelper.updateStatus(dbConnection, file.getId(), renderHlsMessage, ((int) Math.floor((hlsRenderNum/(float) numDashHlsRenders) * 100)));
+				StatusWriter.getInstance().update(file.getId(), renderHlsMessage, ((int) Math.floor((hlsRenderNum/(float) numDashHlsRenders) * 100)));
 				
 				// check if file is now marked for deletion
 				if (isFileMarkedForDeleteion(dbConnection, file)) {
@@ -241,8 +317,7 @@ public class VODVideoFileType extends FileTypeAbstract {
 				}
 			
 				logger.debug("Executing ffmpeg to create HLS output for output file with height "+f.h+" and audio bitrate "+f.aBitrate+"kbps, video bitrate "+f.vBitrate+"kbps with frame rate "+f.fr+" fps.");	
-				double noOutputFrames = Math.ceil(info.getNoFrames() * (f.fr / info.getFrameRate()));
-				final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(f.getHlsProgressFile(), noOutputFrames);
+				final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(f.getHlsProgressFile(), f.outputInfo.getNoFrames());
 				final int numDashHlsRendersFinal = numDashHlsRenders;
 				final int hlsRenderNumFinal = hlsRenderNum;
 				monitor.setCallback(new Runnable() {
@@ -251,15 +326,22 @@ public class VODVideoFileType extends FileTypeAbstract {
 						// called whenever the process percentage changes
 						// calculate the actual percentage when taking all renders into account
 						int actualPercentage = (int) Math.floor(((float) monitor.getPercentage()/numDashHlsRendersFinal) + (hlsRenderNumFinal*(100.0/numDashHlsRendersFinal)));
-						DbHelper.updateStatus(dbConnection, file.getId(), renderHlsMessage, actualPercentage);
+						StatusWriter.getInstance().update(file.getId(), renderHlsMessage, actualPercentage);
 					}
 				});
-				exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+config.getInt("ffmpeg.videoEncodeTimeLimit"), "-progress", f.getHlsProgressFile().getAbsolutePath(), "-i", f.outputFile.getAbsolutePath(), "-hls_allow_cache", "1", "-hls_time", "5", "-hls_list_size", "0", "-hls_segment_filename", f.getHlsSegmentFile().getAbsolutePath(), "-hls_flags", "single_file", "-f", "hls", f.getHlsPlaylistFile().getAbsolutePath()}, workingDir, null, null);
+				// wait until there are enough free cores on the server
+				int noCores = CoreBudget.getInstance().acquire(config.getInt("encoding.parallel.noThreadsPerFormat"));
+				try {
+					exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+config.getInt("ffmpeg.videoEncodeTimeLimit"), "-progress", f.getHlsProgressFile().getAbsolutePath(), "-i", f.outputFile.getAbsolutePath(), "-threads", ""+noCores, "-hls_allow_cache", "1", "-hls_time", "5", "-hls_list_size", "0", "-hls_segment_filename", f.getHlsSegmentFile().getAbsolutePath(), "-hls_flags", "single_file", "-f", "hls", f.getHlsPlaylistFile().getAbsolutePath()}, workingDir, null, null);
+				}
+				finally {
+					CoreBudget.getInstance().release(noCores);
+				}
 				monitor.destroy();
 				if (exitVal == 0) {
 					logger.debug("ffmpeg finished successfully with error code "+exitVal+".");
-					totalSize.add(BigInteger.valueOf(f.getHlsPlaylistFile().length()));
-					totalSize.add(BigInteger.valueOf(f.getHlsSegmentFile().length()));
+					totalSize = totalSize.add(BigInteger.valueOf(f.getHlsPlaylistFile().length()));
+					totalSize = totalSize.add(BigInteger.valueOf(f.getHlsSegmentFile().length()));
 					if (FileHelper.isOverQuota(totalSize)) {
 						returnVal.msg = "Ran out of space.";
 						return returnVal;
@@ -287,367 +369,855 @@ public class VODVideoFileType extends FileTypeAbstract {
 			// this order is important to make sure if anything goes wrong there aren't any files left in the webapp files folder without a corresponding entry in the db		
 			// create entries in Files with in_use set to 0
 			// and copy files across to web app
-			DbHelper.updateStatus(dbConnection, file.getId(), "Finalizing renders.", null);
-			ArrayList<VideoOutputFile> videoOutputFiles = new ArrayList<VideoOutputFile>();
+			// the records are created in batches, each in one transaction, because every commit is expensive
+			StatusWriter.getInstance().update(file.getId(), "Finalizing renders.", null);
+			Map<java.io.File, File> newFiles;
+			HashMap<Format, java.io.File> mediaPresentationFiles = new HashMap<Format, java.io.File>();
+			HashMap<Format, java.io.File> hlsPlaylistFiles = new HashMap<Format, java.io.File>();
 			try {
+				LinkedHashMap<java.io.File, FileType> filesToCreate = new LinkedHashMap<java.io.File, FileType>();
 				for (Format f : formatsToRender) {
-					
-					logger.debug("Creating file record for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-					File newFile = generateNewFile(file, f.outputFile, FileType.VOD_VIDEO_RENDER, dbConnection);
-					if (newFile == null) {
-						logger.warn("Error trying to generate file object for output file.");
+					filesToCreate.put(f.outputFile, FileType.VOD_VIDEO_RENDER);
+					if (f.creatingDashAndHlsRenders) {
+						if (f.hasAudio) {
+							filesToCreate.put(f.getDashAudioChannelFile(), FileType.DASH_SEGMENT);
+						}
+						filesToCreate.put(f.getDashVideoChannelFile(), FileType.DASH_SEGMENT);
+						filesToCreate.put(f.getHlsSegmentFile(), FileType.HLS_SEGMENT);
+					}
+				}
+				for (VideoThumbnail thumbnail : thumbnails) {
+					filesToCreate.put(thumbnail.getFile(), FileType.VOD_SCRUB_THUMBNAIL);
+				}
+				logger.debug("Creating file records for renders and thumbnails belonging to source file with id "+file.getId()+".");
+				newFiles = createAndRegisterFiles(dbConnection, returnVal, file, filesToCreate);
+				if (newFiles == null) {
+					return returnVal;
+				}
+				
+				// the dash media presentation description and hls playlist files contain the ids of the other files so their records can only be created now
+				filesToCreate = new LinkedHashMap<java.io.File, FileType>();
+				for (Format f : formatsToRender) {
+					if (!f.creatingDashAndHlsRenders) {
+						continue;
+					}
+					// modify dash description file so that the paths to the audio and video channel files are correct
+					java.io.File mediaPresentationFile = f.getDashMediaPresentationDescriptionFile(f.hasAudio ? newFiles.get(f.getDashAudioChannelFile()) : null, newFiles.get(f.getDashVideoChannelFile()));
+					if (mediaPresentationFile == null) {
+						logger.warn("Error getting dash media description presentation file.");
 						return returnVal;
 					}
-					// add to set of files to mark in_use when processing completed
-					if (!returnVal.registerNewFile(newFile)) {
-						// error occurred. abort
-						logger.warn("Error trying to register newly created file.");
+					java.io.File hlsPlaylistFile = f.generateHlsPlaylistFileWithCorrectPaths(newFiles.get(f.getHlsSegmentFile()));
+					if (hlsPlaylistFile == null) {
+						logger.warn("Error generating hls playlist file.");
 						return returnVal;
 					}
-					logger.debug("File record created with id "+newFile.getId()+" for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-					
-					
-					// add entry to OutputFiles array which will be used to populate VideoFiles table later
-					// get width and height of output
-					info = FfmpegHelper.getFileInfo(f.outputFile, workingDir);
-					if (info == null) {
-						logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
+					mediaPresentationFiles.put(f, mediaPresentationFile);
+					hlsPlaylistFiles.put(f, hlsPlaylistFile);
+					filesToCreate.put(mediaPresentationFile, FileType.DASH_MEDIA_PRESENTATION_DESCRIPTION);
+					filesToCreate.put(hlsPlaylistFile, FileType.HLS_MEDIA_PLAYLIST);
+				}
+				logger.debug("Creating dash media presentation description and hls playlist file records belonging to source file with id "+file.getId()+".");
+				Map<java.io.File, File> descriptionFiles = createAndRegisterFiles(dbConnection, returnVal, file, filesToCreate);
+				if (descriptionFiles == null) {
+					return returnVal;
+				}
+				newFiles.putAll(descriptionFiles);
+			} catch (SQLException e) {
+				e.printStackTrace();
+				throw(new RuntimeException("Error trying to register files in database."));
+			}
+			
+			ArrayList<VideoOutputFile> videoOutputFiles = new ArrayList<VideoOutputFile>();
+			for (Format f : formatsToRender) {
+				// add entry to OutputFiles array which will be used to populate VideoFiles table later
+				// the width and height of the output were recorded when it was rendered
+				info = f.outputInfo;
+				if (f.creatingDashAndHlsRenders) {
+					videoOutputFiles.add(new VideoOutputFile(newFiles.get(f.outputFile), info.getW(), info.getH(), f.qualityDefinitionId, newFiles.get(mediaPresentationFiles.get(f)), f.hasAudio ? newFiles.get(f.getDashAudioChannelFile()) : null, newFiles.get(f.getDashVideoChannelFile()), newFiles.get(hlsPlaylistFiles.get(f)), newFiles.get(f.getHlsSegmentFile())));
+				}
+				else {
+					videoOutputFiles.add(new VideoOutputFile(newFiles.get(f.outputFile), info.getW(), info.getH(), f.qualityDefinitionId, null, null, null, null, null));
+				}
+			}
+			
+			// copy files to server
+			for (Map.Entry<java.io.File, File> newFile : newFiles.entrySet()) {
+				if (!moveFileToWebApp(newFile.getKey(), newFile.getValue())) {
+					return returnVal;
+				}
+			}
+			
+			try {
+				// create entries in video_files, video_files_dash, video_files_hls, vod_data and video_scrub_thumbnail_files all in one transaction
+				logger.debug("Creating entries in video_files, video_files_dash, video_files_hls, vod_data and video_scrub_thumbnail_files tables...");
+				boolean committed = false;
+				dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
+				try {
+					if (!createVideoFilesEntries(dbConnection, videoOutputFiles)) {
 						return returnVal;
 					}
-					
-					// copy file to server
-					if (!moveFileToWebApp(f.outputFile, newFile)) {
+					if (!createVodDataEntry(dbConnection, file, info.getDuration())) {
 						return returnVal;
 					}
-					
-					File dashMediaPresentationDescriptionFileObj = null;
-					File dashAudioChannelFileObj = null;
-					File dashVideoChannelFileObj = null;
-					File hlsPlaylistFileObj = null;
-					File hlsSegmentFileObj = null;
-					
-					if (f.creatingDashAndHlsRenders) {
-						// register dash audio channel render and video channel renders
-						logger.debug("Creating dash render file records for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						dashAudioChannelFileObj = generateNewFile(file, f.getDashAudioChannelFile(), FileType.DASH_SEGMENT, dbConnection);
-						if (dashAudioChannelFileObj == null) {
-							logger.warn("Error trying to generate file object for dash audio channel output file.");
-							return returnVal;
-						}
-						dashVideoChannelFileObj = generateNewFile(file, f.getDashVideoChannelFile(), FileType.DASH_SEGMENT, dbConnection);
-						if (dashVideoChannelFileObj == null) {
-							logger.warn("Error trying to generate file object for dash video channel output file.");
-							return returnVal;
-						}
-						
-						if (!returnVal.registerNewFile(dashAudioChannelFileObj)) {
-							// error occurred. abort
-							logger.warn("Error trying to register dash audio channel file.");
-							return returnVal;
-						}
-						if (!returnVal.registerNewFile(dashVideoChannelFileObj)) {
-							// error occurred. abort
-							logger.warn("Error trying to register dash video channel file.");
-							return returnVal;
-						}
-						logger.debug("File records created with ids "+dashAudioChannelFileObj.getId()+" and "+dashVideoChannelFileObj.getId()+" for dash render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						
-						// modify dash description file so that the paths to the audio and video channel files are correct
-						java.io.File mediaPresentationFile = f.getDashMediaPresentationDescriptionFile(dashAudioChannelFileObj, dashVideoChannelFileObj);
-						if (mediaPresentationFile == null) {
-							logger.warn("Error getting dash media description presentation file.");
-							return returnVal;
-						}
-						logger.debug("Creating dash media presentation description file record for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						dashMediaPresentationDescriptionFileObj = generateNewFile(file, mediaPresentationFile, FileType.DASH_MEDIA_PRESENTATION_DESCRIPTION, dbConnection);
-						if (dashMediaPresentationDescriptionFileObj == null) {
-							logger.warn("Error trying to generate file object for dash media presentation description file.");
-							return returnVal;
-						}
-						if (!returnVal.registerNewFile(dashMediaPresentationDescriptionFileObj)) {
-							// error occurred. abort
-							logger.warn("Error trying to register dash media presentation description file object.");
-							return returnVal;
-						}
-
-						// copy files to server
-						if (!moveFileToWebApp(f.getDashAudioChannelFile(), dashAudioChannelFileObj)) {
-							return returnVal;
-						}
-						if (!moveFileToWebApp(f.getDashVideoChannelFile(), dashVideoChannelFileObj)) {
-							return returnVal;
-						}
-						if (!moveFileToWebApp(mediaPresentationFile, dashMediaPresentationDescriptionFileObj)) {
-							return returnVal;
-						}
-						
-						// register dash audio channel render and video channel renders
-						logger.debug("Creating dash render file records for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						dashAudioChannelFileObj = generateNewFile(file, f.getDashAudioChannelFile(), FileType.DASH_SEGMENT, dbConnection);
-						if (dashAudioChannelFileObj == null) {
-							logger.warn("Error trying to generate file object for dash audio channel output file.");
-							return returnVal;
-						}
-						dashVideoChannelFileObj = generateNewFile(file, f.getDashVideoChannelFile(), FileType.DASH_SEGMENT, dbConnection);
-						if (dashVideoChannelFileObj == null) {
-							logger.warn("Error trying to generate file object for dash video channel output file.");
-							return returnVal;
+					if (!createScrubThumbnailEntries(dbConnection, thumbnails, newFiles)) {
+						return returnVal;
+					}
+					dbConnection.prepareStatement("COMMIT").executeUpdate();
+					committed = true;
+				}
+				finally {
+					if (!committed) {
+						dbConnection.prepareStatement("ROLLBACK").executeUpdate();
+					}
+				}
+				logger.debug("Created entries in video_files, video_files_dash, video_files_hls, vod_data and video_scrub_thumbnail_files tables.");
+			} catch (SQLException e) {
+				e.printStackTrace();
+				throw(new RuntimeException("Error trying to create entries in video_files, video_files_dash, video_files_hls, vod_data and video_scrub_thumbnail_files for file with id "+file.getId()+"."));
+			}
+		}
+		catch(Exception e){
+			e.printStackTrace();
+			logger.error("An exception occurred whilst trying to process vod.");
+			returnVal.msg = "An unexpected error occurred.";
+			return returnVal;
+		}
+		returnVal.success = true;
+		return returnVal;	
+	}
+	
+	// creates the file records in one batch and registers them so that they will be marked in_use when processing completes
+	// returns the File objects keyed by the files on disk on success or null otherwise
+	private Map<java.io.File, File> createAndRegisterFiles(Connection dbConnection, FileTypeProcessReturnInfo returnVal, File sourceFile, Map<java.io.File, FileType> files) throws SQLException {
+		Map<java.io.File, File> newFiles = DbHelper.createFileRecords(dbConnection, sourceFile, files);
+		if (newFiles == null) {
+			logger.warn("Error trying to create file records for output files.");
+			return null;
+		}
+		for (File newFile : newFiles.values()) {
+			// add to set of files to mark in_use when processing completed
+			if (!returnVal.registerNewFile(newFile)) {
+				// error occurred. abort
+				logger.warn("Error trying to register newly created file.");
+				return null;
+			}
+		}
+		logger.debug("Created "+newFiles.size()+" file record(s) belonging to source file with id "+sourceFile.getId()+".");
+		return newFiles;
+	}
+	
+	// the message that is shown whilst the formats are being rendered
+	private static final String renderRequiredFormatsMsg = "Rendering video into required formats.";
+	
+	// render each format with its own ffmpeg process, one after the other. Returns true if all of the formats were rendered successfully
+	private boolean renderSequentially(Connection dbConnection, java.io.File source, java.io.File workingDir, final File file, FfmpegFileInfo info, final List<Format> formatsToRender) {
+		int noThreadsPerFormat = Config.getInstance().getInt("encoding.parallel.noThreadsPerFormat");
+		// loop through different formats and render videos for ones that are applicable
+		for (final Format f : formatsToRender) {
+			
+			// check if file is now marked for deletion
+			if (isFileMarkedForDeleteion(dbConnection, file)) {
+				logger.debug("VOD with id "+file.getId()+" has been marked for deletion so not processing any more.");
+				return false;
+			}
+			
+			final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(f.getProgressFile(), getNoOutputFrames(info, f));
+			monitor.setCallback(new Runnable() {
+				@Override
+				public void run() {
+					// called whenever the process percentage changes
+					// calculate the actual percentage when taking all renders into account
+					int actualPercentage = (int) Math.floor(((float) monitor.getPercentage()/formatsToRender.size()) + (formatsToRender.indexOf(f)*(100.0/formatsToRender.size())));
+					StatusWriter.getInstance().update(file.getId(), renderRequiredFormatsMsg, actualPercentage);
+				}
+			});
+			// wait until there are enough free cores on the server
+			int noCores = CoreBudget.getInstance().acquire(noThreadsPerFormat);
+			try {
+				if (!renderFormat(source, workingDir, file, f, monitor, noCores)) {
+					return false;
+				}
+			}
+			finally {
+				CoreBudget.getInstance().release(noCores);
+			}
+		}
+		return true;
+	}
+	
+	// render each format with its own ffmpeg process, running as many at the same time as the core budget allows
+	// returns true if all of the formats were rendered successfully
+	private boolean renderInParallel(final java.io.File source, final java.io.File workingDir, final File file, FfmpegFileInfo info, final List<Format> formatsToRender) {
+		final int noThreadsPerFormat = Config.getInstance().getInt("encoding.parallel.noThreadsPerFormat");
+		// the percentage of each render, which are combined so that each render is an equal part of the overall percentage like when rendering one after the other
+		final int[] percentages = new int[formatsToRender.size()];
+		// set if a render fails, so that any that haven't started yet don't bother
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		
+		ExecutorService threadPool = Executors.newFixedThreadPool(formatsToRender.size());
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i=0; i<formatsToRender.size(); i++) {
+			final int index = i;
+			final Format f = formatsToRender.get(i);
+			final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(f.getProgressFile(), getNoOutputFrames(info, f));
+			monitor.setCallback(new Runnable() {
+				@Override
+				public void run() {
+					// called whenever the process percentage changes
+					int total = 0;
+					synchronized(percentages) {
+						percentages[index] = monitor.getPercentage();
+						for (int percentage : percentages) {
+							total += percentage;
 						}
-						
-						if (!returnVal.registerNewFile(dashAudioChannelFileObj)) {
-							// error occurred. abort
-							logger.warn("Error trying to register dash audio channel file.");
-							return returnVal;
+					}
+					StatusWriter.getInstance().update(file.getId(), renderRequiredFormatsMsg, total/percentages.length);
+				}
+			});
+			results.add(threadPool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					// wait until there are enough free cores on the server
+					int noCores = CoreBudget.getInstance().acquire(noThreadsPerFormat);
+					try {
+						if (failed.get()) {
+							monitor.destroy();
+							return false;
 						}
-						if (!returnVal.registerNewFile(dashVideoChannelFileObj)) {
-							// error occurred. abort
-							logger.warn("Error trying to register dash video channel file.");
-							return returnVal;
+						boolean success = renderFormat(source, workingDir, file, f, monitor, noCores);
+						if (!success) {
+							failed.set(true);
 						}
-						logger.debug("File records created with ids "+dashAudioChannelFileObj.getId()+" and "+dashVideoChannelFileObj.getId()+" for dash render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						
-						logger.debug("Creating hls segment render file record for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						hlsSegmentFileObj = generateNewFile(file, f.getHlsSegmentFile(), FileType.HLS_SEGMENT, dbConnection);
-						if (hlsSegmentFileObj == null) {
-							logger.warn("Error trying to generate file object for hls segment output file.");
-							return returnVal;
+						return success;
+					}
+					finally {
+						CoreBudget.getInstance().release(noCores);
+					}
+				}
+			}));
+		}
+		threadPool.shutdown();
+		
+		boolean success = true;
+		for (Future<Boolean> result : results) {
+			try {
+				if (!result.get()) {
+					success = false;
+				}
+			} catch (InterruptedException e) {
+				throw(new RuntimeException("InterruptException occured. This shouldn't happen."));
+			} catch (ExecutionException e) {
+				logger.error("Exception when trying to render file with id "+file.getId()+".");
+				e.printStackTrace();
+				success = false;
+			}
+		}
+		return success;
+	}
+	
+	// render each format by splitting the video into chunks which are encoded by separate ffmpeg processes at the same time, and then joined back together without re-encoding
+	// every chunk starts on a multiple of the gop size, so the keyframes are where they would be if the video was encoded in one go
+	// the audio is encoded in one go for each format, because aac adds padding at the start of every encode which would cause gaps between chunks
+	// returns true if all of the formats were rendered successfully
+	private boolean renderInChunks(final java.io.File source, final java.io.File workingDir, final File file, FfmpegFileInfo info, final List<Format> formatsToRender) {
+		final Config config = Config.getInstance();
+		final int noThreadsPerChunk = config.getInt("encoding.chunked.noThreadsPerChunk");
+		
+		// every format is rendered from the same source, so they all have audio or none of them do
+		boolean hasAudio = formatsToRender.get(0).hasAudio;
+		
+		// the total number of frames that will be rendered, and the number that have been rendered by each chunk, for the progress percentage
+		double noFrames = 0;
+		for (Format f : formatsToRender) {
+			noFrames += getNoOutputFrames(info, f);
+		}
+		final double totalNoFrames = noFrames;
+		final ArrayList<Long> chunkFrames = new ArrayList<Long>();
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		final ArrayList<Integer> noChunks = new ArrayList<Integer>();
+		for (final Format f : formatsToRender) {
+			int noFramesPerChunk = getNoFramesPerChunk(f);
+			final double chunkLength = noFramesPerChunk / f.fr;
+			final int numChunks = getNoChunks(info, f);
+			noChunks.add(numChunks);
+			logger.debug("Rendering height "+f.h+" in "+numChunks+" chunk(s) of "+noFramesPerChunk+" frames.");
+			
+			for (int i=0; i<numChunks; i++) {
+				final int chunkNum = i;
+				final int progressIndex = chunkFrames.size();
+				chunkFrames.add(0L);
+				final double noChunkFrames = chunkNum < numChunks-1 ? noFramesPerChunk : getNoOutputFrames(info, f) - (numChunks-1)*noFramesPerChunk;
+				tasks.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						if (failed.get()) {
+							return false;
 						}
-						
-						logger.debug("Creating hls playlist file record for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-						hlsPlaylistFileObj = generateNewFile(file, mediaPresentationFile, FileType.HLS_MEDIA_PLAYLIST, dbConnection);
-						if (hlsPlaylistFileObj == null) {
-							logger.warn("Error trying to generate file object for dash hls playlist file.");
-							return returnVal;
+						final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(f.getChunkProgressFile(chunkNum), noChunkFrames);
+						monitor.setCallback(new Runnable() {
+							@Override
+							public void run() {
+								// called whenever the process percentage changes
+								long total = 0;
+								synchronized(chunkFrames) {
+									chunkFrames.set(progressIndex, monitor.getCurrentFrame());
+									for (long frames : chunkFrames) {
+										total += frames;
+									}
+								}
+								StatusWriter.getInstance().update(file.getId(), renderRequiredFormatsMsg, (int) Math.min(100, Math.floor((total*100)/totalNoFrames)));
+							}
+						});
+						int noCores = CoreBudget.getInstance().acquire(noThreadsPerChunk);
+						int exitVal;
+						try {
+							exitVal = RuntimeHelper.executeProgram(FfmpegHelper.getChunkEncodeCommand(source, chunkNum*chunkLength, chunkNum < numChunks-1 ? chunkLength : null, f.getScaleFilter(), f.getVideoEncodeOptions(), noCores, f.getChunkProgressFile(chunkNum), f.getChunkFile(chunkNum)), workingDir, null, null);
 						}
-						if (!returnVal.registerNewFile(hlsPlaylistFileObj)) {
-							// error occurred. abort
-							logger.warn("Error trying to register hls playlist file object.");
-							return returnVal;
+						finally {
+							CoreBudget.getInstance().release(noCores);
+							monitor.destroy();
 						}
-						
-						java.io.File hlsPlaylistFile = f.generateHlsPlaylistFileWithCorrectPaths(hlsSegmentFileObj);
-						if (hlsPlaylistFile == null) {
-							logger.warn("Error generating hls playlist file.");
-							return returnVal;
+						if (exitVal != 0) {
+							logger.warn("ffmpeg finished rendering chunk "+chunkNum+" for height "+f.h+" but returned error code "+exitVal+".");
+							failed.set(true);
+							return false;
 						}
-						
-						// copy files to server
-						if (!moveFileToWebApp(hlsPlaylistFile, hlsPlaylistFileObj)) {
-							return returnVal;
+						return true;
+					}
+				});
+			}
+			
+			if (hasAudio) {
+				tasks.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						if (failed.get()) {
+							return false;
 						}
-						if (!moveFileToWebApp(f.getHlsSegmentFile(), hlsSegmentFileObj)) {
-							return returnVal;
+						if (!renderAudio(source, workingDir, f)) {
+							failed.set(true);
+							return false;
 						}
+						return true;
 					}
-					videoOutputFiles.add(new VideoOutputFile(newFile, info.getW(), info.getH(), f.qualityDefinitionId, dashMediaPresentationDescriptionFileObj, dashAudioChannelFileObj, dashVideoChannelFileObj, hlsPlaylistFileObj, hlsSegmentFileObj));
+				});
+			}
+		}
+		
+		ExecutorService threadPool = Executors.newFixedThreadPool(config.getInt("encoding.chunked.noParallelChunks"));
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (Callable<Boolean> task : tasks) {
+			results.add(threadPool.submit(task));
+		}
+		threadPool.shutdown();
+		boolean success = true;
+		for (Future<Boolean> result : results) {
+			try {
+				if (!result.get()) {
+					success = false;
 				}
-				
-			} catch (SQLException e) {
+			} catch (InterruptedException e) {
+				throw(new RuntimeException("InterruptException occured. This shouldn't happen."));
+			} catch (ExecutionException e) {
+				logger.error("Exception when trying to render a chunk of file with id "+file.getId()+".");
 				e.printStackTrace();
-				throw(new RuntimeException("Error trying to register files in database."));
+				success = false;
+			}
+		}
+		if (!success) {
+			return false;
+		}
+		
+		// join the chunks for each format together and add the audio, without re-encoding
+		for (int i=0; i<formatsToRender.size(); i++) {
+			Format f = formatsToRender.get(i);
+			ArrayList<java.io.File> chunkFiles = new ArrayList<java.io.File>();
+			for (int j=0; j<noChunks.get(i); j++) {
+				chunkFiles.add(f.getChunkFile(j));
+			}
+			if (!joinChunks(workingDir, f, chunkFiles, hasAudio)) {
+				return false;
+			}
+			f.outputInfo = getRenderInfo(f, null, workingDir);
+			if (f.outputInfo == null) {
+				logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// render each format by splitting the video into chunks like renderInChunks, but add the chunks to the vod_chunks table so that they can be encoded by any server with free capacity, including this one
+	// this server encodes the audio and then waits for all of the chunks to be encoded before joining them together
+	// chunks are only encoded whilst this server holds the lease on the file, so if it goes away the chunks are left alone and are removed when the file is processed again
+	// returns true if all of the formats were rendered successfully
+	private boolean renderDistributed(Connection dbConnection, java.io.File source, java.io.File workingDir, File file, FfmpegFileInfo info, List<Format> formatsToRender) {
+		Config config = Config.getInstance();
+		if (info.getDuration() < config.getDouble("encoding.distributed.minDuration")) {
+			logger.debug("File with id "+file.getId()+" is too short to be worth encoding on other servers so encoding the chunks here.");
+			return renderInChunks(source, workingDir, file, info, formatsToRender);
+		}
+		if (ChunkWorker.getInstance().getNoThreads() == 0) {
+			// otherwise the chunks might never be encoded if no other servers are encoding chunks
+			logger.warn("Encoding the chunks of file with id "+file.getId()+" here because this server isn't encoding chunks for other servers.");
+			return renderInChunks(source, workingDir, file, info, formatsToRender);
+		}
+		
+		// every format is rendered from the same source, so they all have audio or none of them do
+		boolean hasAudio = formatsToRender.get(0).hasAudio;
+		
+		ArrayList<Integer> heights = new ArrayList<Integer>();
+		ArrayList<Integer> chunkNums = new ArrayList<Integer>();
+		ArrayList<Double> startTimes = new ArrayList<Double>();
+		ArrayList<Double> durations = new ArrayList<Double>();
+		ArrayList<String> scaleFilters = new ArrayList<String>();
+		ArrayList<List<String>> encodeOptions = new ArrayList<List<String>>();
+		for (Format f : formatsToRender) {
+			double chunkLength = getNoFramesPerChunk(f) / f.fr;
+			int numChunks = getNoChunks(info, f);
+			logger.debug("Rendering height "+f.h+" in "+numChunks+" chunk(s) on any server.");
+			for (int i=0; i<numChunks; i++) {
+				heights.add(f.h);
+				chunkNums.add(i);
+				startTimes.add(i*chunkLength);
+				durations.add(i < numChunks-1 ? chunkLength : null);
+				scaleFilters.add(f.getScaleFilter());
+				encodeOptions.add(f.getVideoEncodeOptions());
+			}
+		}
+		
+		try {
+			// remove any chunks left from an earlier attempt at processing this file
+			ChunkWorker.removeChunks(dbConnection, file.getId());
+			ChunkWorker.addChunks(dbConnection, file.getId(), heights, chunkNums, startTimes, durations, scaleFilters, encodeOptions);
+		} catch (SQLException e) {
+			logger.error("SQLException when trying to add chunks for file with id "+file.getId()+".");
+			e.printStackTrace();
+			return false;
+		}
+		
+		try {
+			// encode the audio here whilst the chunks are being encoded
+			if (hasAudio) {
+				for (Format f : formatsToRender) {
+					if (!renderAudio(source, workingDir, f)) {
+						return false;
+					}
+				}
 			}
 			
+			if (!waitForChunks(dbConnection, file, heights.size())) {
+				return false;
+			}
+			
+			// the encoded chunks for each format in order, keyed by height
+			HashMap<Integer, List<java.io.File>> chunkFiles = new HashMap<Integer, List<java.io.File>>();
+			for (Format f : formatsToRender) {
+				chunkFiles.put(f.h, new ArrayList<java.io.File>());
+			}
 			try {
-				// create entries in video_files, video_files_dash and video_files_hls
-				logger.debug("Creating entries in video_files and video_files_dash tables...");
-				for (VideoOutputFile o : videoOutputFiles) {
-					Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-					PreparedStatement s = dbConnection.prepareStatement("INSERT INTO video_files (width,height,created_at,updated_at,quality_definition_id,file_id) VALUES (?,?,?,?,?,?)");
-					s.setInt(1, o.w);
-					s.setInt(2, o.h);
-					s.setTimestamp(3, currentTimestamp);
-					s.setTimestamp(4, currentTimestamp);
-					s.setInt(5, o.qualityDefinitionId);
-					s.setInt(6, o.id);
-					int result = s.executeUpdate();
-					ResultSet generatedKeys = s.getGeneratedKeys();
-					generatedKeys.next();
-					int videoFilesRecordId = generatedKeys.getInt(1);
-					s.close();
-					if (result != 1) {
-						logger.debug("Error registering file with id "+o.id+" in video_files table.");
-						return returnVal;
-					}
-					logger.debug("Created entry in video_files table for file with id "+o.id+".");
-					if (o.dashMediaPresentationDescriptionId != null) {
-						// dash and hls renders created
-						PreparedStatement s2 = dbConnection.prepareStatement("INSERT INTO video_files_dash (video_files_id,media_presentation_description_file_id,audio_channel_file_id,video_channel_file_id,created_at,updated_at) VALUES (?,?,?,?,?,?)");
-						s2.setInt(1, videoFilesRecordId);
-						s2.setInt(2, o.dashMediaPresentationDescriptionId);
-						s2.setInt(3, o.dashAudioChannelId);
-						s2.setInt(4, o.dashVideoChannelId);
-						s2.setTimestamp(5, currentTimestamp);
-						s2.setTimestamp(6, currentTimestamp);
-						int result2 = s2.executeUpdate();
-						s2.close();
-						if (result2 != 1) {
-							logger.debug("Error creating entry in video_files_dash table for video_files record id "+videoFilesRecordId+".");
-							return returnVal;
-						}
-						logger.debug("Created entry in video_files_dash table for video_files record id "+videoFilesRecordId+".");
-						
-						PreparedStatement s3 = dbConnection.prepareStatement("INSERT INTO video_files_hls (video_files_id,playlist_file_id,segment_file_id,created_at,updated_at) VALUES (?,?,?,?,?)");
-						s3.setInt(1, videoFilesRecordId);
-						s3.setInt(2, o.hlsPlaylistFileId);
-						s3.setInt(3, o.hlsSegmentFileId);
-						s3.setTimestamp(4, currentTimestamp);
-						s3.setTimestamp(5, currentTimestamp);
-						int result3 = s3.executeUpdate();
-						s3.close();
-						if (result3 != 1) {
-							logger.debug("Error creating entry in video_files_dash table for video_files record id "+videoFilesRecordId+".");
-							return returnVal;
-						}
-						logger.debug("Created entry in video_files_dash table for video_files record id "+videoFilesRecordId+".");
-					}
+				PreparedStatement s = dbConnection.prepareStatement("SELECT id, token, height FROM vod_chunks WHERE source_file_id=? AND state=? ORDER BY height, chunk_num");
+				s.setInt(1, file.getId());
+				s.setInt(2, ChunkWorker.STATE_DONE);
+				ResultSet r = s.executeQuery();
+				while(r.next()) {
+					chunkFiles.get(r.getInt("height")).add(new java.io.File(FileHelper.getChunkPath(r.getInt("id"), r.getLong("token"))));
 				}
-				logger.debug("Created entries in video_files and video_files_dash tables.");
+				s.close();
 			} catch (SQLException e) {
+				logger.error("SQLException when trying to find encoded chunks for file with id "+file.getId()+".");
 				e.printStackTrace();
-				throw(new RuntimeException("Error trying to create entries in video_files and video_files_dash."));
+				return false;
 			}
 			
-			try {
-				// create entries in vod_data
-				logger.debug("Creating entry in vod_data table...");
-				
-				{
-					// if reprocessing the old entry will still be there so remove it first
-					PreparedStatement s = dbConnection.prepareStatement("DELETE FROM vod_data WHERE file_id=?");
-					s.setInt(1, file.getId());
-					if (s.executeUpdate() == 1) {
-						logger.debug("Removed old vod data.");
-					}
+			// join the chunks for each format together and add the audio, without re-encoding
+			for (Format f : formatsToRender) {
+				if (!joinChunks(workingDir, f, chunkFiles.get(f.h), hasAudio)) {
+					return false;
 				}
-				
-				Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-				PreparedStatement s = dbConnection.prepareStatement("INSERT INTO vod_data (file_id,duration,created_at,updated_at) VALUES (?,?,?,?)");
-				s.setInt(1, file.getId());
-				s.setDouble(2, info.getDuration());
-				s.setTimestamp(3, currentTimestamp);
-				s.setTimestamp(4, currentTimestamp);
-				int result = s.executeUpdate();
-				s.close();
-				if (result != 1) {
-					logger.debug("Error creating entry in vod_data file with id "+file.getId()+".");
-					return returnVal;
+				f.outputInfo = getRenderInfo(f, null, workingDir);
+				if (f.outputInfo == null) {
+					logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
+					return false;
 				}
-				logger.debug("Created entry in vod_data table for file with id "+file.getId()+".");
+			}
+			return true;
+		}
+		finally {
+			try {
+				ChunkWorker.removeChunks(dbConnection, file.getId());
 			} catch (SQLException e) {
+				logger.error("SQLException when trying to remove chunks for file with id "+file.getId()+".");
 				e.printStackTrace();
-				throw(new RuntimeException("Error creating entry in vod_data file with id "+file.getId()+"."));
 			}
+		}
+	}
 	
-			DbHelper.updateStatus(dbConnection, file.getId(), "Finalizing scrub thumbnails.", null);
-			ArrayList<ThumbnailOutputFile> thumbnailOutputFiles = new ArrayList<ThumbnailOutputFile>();
+	// wait until all of the chunks for a file have been encoded, updating the progress percentage as they are
+	// returns false if any of the chunks failed, the lease on the file was lost, or the file has been marked for deletion
+	private boolean waitForChunks(Connection dbConnection, File file, int noChunks) {
+		long pollInterval = Config.getInstance().getInt("encoding.distributed.pollInterval")*1000;
+		while(true) {
+			if (!HeartbeatManager.getInstance().isFileRegistered(file)) {
+				logger.warn("Lost the lease on file with id "+file.getId()+" whilst waiting for its chunks to be encoded.");
+				return false;
+			}
+			if (isFileMarkedForDeleteion(dbConnection, file)) {
+				logger.debug("VOD with id "+file.getId()+" has been marked for deletion so not waiting for its chunks any more.");
+				return false;
+			}
+			int noDone = 0;
+			int noFailed = 0;
 			try {
-				for (VideoThumbnail thumbnail : thumbnails) {
-					
-					logger.debug("Creating file record for thumbnail at time "+thumbnail.getTime()+" belonging to source file with id "+file.getId()+".");
-					File newFile = generateNewFile(file, thumbnail.getFile(), FileType.VOD_SCRUB_THUMBNAIL, dbConnection);
-					if (newFile == null) {
-						logger.warn("Error trying to generate file object for output file.");
-						return returnVal;
-					}
-					// add to set of files to mark in_use when processing completed
-					if (!returnVal.registerNewFile(newFile)) {
-						// error occurred. abort
-						logger.warn("Error trying to register newly created file.");
-						return returnVal;
+				PreparedStatement s = dbConnection.prepareStatement("SELECT state, COUNT(*) AS num FROM vod_chunks WHERE source_file_id=? GROUP BY state");
+				s.setInt(1, file.getId());
+				ResultSet r = s.executeQuery();
+				while(r.next()) {
+					if (r.getInt("state") == ChunkWorker.STATE_DONE) {
+						noDone = r.getInt("num");
 					}
-					logger.debug("File record created with id "+newFile.getId()+" for thumbnail at time "+thumbnail.getTime()+" belonging to source file with id "+file.getId()+".");
-					
-					thumbnailOutputFiles.add(new ThumbnailOutputFile(newFile.getId(), thumbnail));
-					
-					// copy file to server
-					logger.info("Moving output file with id "+newFile.getId()+" to web app...");
-					if (!FileHelper.moveToWebApp(thumbnail.getFile(), newFile.getId())) {
-						logger.error("Error trying to move output file with id "+newFile.getId()+" to web app.");
-						return returnVal;
+					else if (r.getInt("state") == ChunkWorker.STATE_FAILED) {
+						noFailed = r.getInt("num");
 					}
-					
-					logger.info("Output thumbnail file with id "+newFile.getId()+" moved to web app.");
 				}
+				s.close();
 			} catch (SQLException e) {
+				logger.error("SQLException when trying to check the chunks of file with id "+file.getId()+".");
 				e.printStackTrace();
-				throw(new RuntimeException("Error trying to register files in database."));
+				return false;
+			}
+			if (noFailed > 0) {
+				logger.warn(noFailed+" chunk(s) of file with id "+file.getId()+" failed to encode.");
+				return false;
+			}
+			StatusWriter.getInstance().update(file.getId(), renderRequiredFormatsMsg, (int) Math.floor((noDone*100)/noChunks));
+			if (noDone == noChunks) {
+				return true;
 			}
-			
 			try {
-				// create entries in video_scrub_thumbnail_files
-				logger.debug("Creating entries in video_scrub_thumbnail_files table...");
-				for (ThumbnailOutputFile thumbnailOutputFile : thumbnailOutputFiles) {
-					VideoThumbnail thumbnail = thumbnailOutputFile.thumbnail;
-					Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-					PreparedStatement s = dbConnection.prepareStatement("INSERT INTO video_scrub_thumbnail_files (created_at,updated_at,time,file_id) VALUES (?,?,?,?)");
-					s.setTimestamp(1, currentTimestamp);
-					s.setTimestamp(2, currentTimestamp);
-					s.setInt(3, thumbnail.getTime());
-					s.setInt(4, thumbnailOutputFile.id);
-					int result = s.executeUpdate();
-					s.close();
-					if (result != 1) {
-						logger.debug("Error registering file with id "+thumbnailOutputFile.id+" in video_scrub_thumbnail_files table.");
-						return returnVal;
-					}
-					logger.debug("Created entry in video_scrub_thumbnail_files table for file with id "+thumbnailOutputFile.id+".");
-				}
-				logger.debug("Created entries in video_scrub_thumbnail_files table.");
-			} catch (SQLException e) {
-				throw(new RuntimeException("Error trying to create entries in video_scrub_thumbnail_files."));
+				Thread.sleep(pollInterval);
+			} catch (InterruptedException e) {
+				throw(new RuntimeException("InterruptException occured. This shouldn't happen."));
 			}
 		}
-		catch(Exception e){
-			e.printStackTrace();
-			logger.error("An exception occurred whilst trying to process vod.");
-			returnVal.msg = "An unexpected error occurred.";
-			return returnVal;
+	}
+	
+	// join the rendered chunks for a format into its output file with the concat demuxer, adding the rendered audio if there is some
+	// the chunk files are deleted afterwards to save space
+	// returns true if successful
+	private boolean joinChunks(java.io.File workingDir, Format f, List<java.io.File> chunkFiles, boolean hasAudio) {
+		Config config = Config.getInstance();
+		try(
+			// these resources will be automatically closed
+			FileOutputStream fos = new FileOutputStream(f.getChunkListFile());
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+		) {
+			for (java.io.File chunkFile : chunkFiles) {
+				bw.write("file '"+chunkFile.getAbsolutePath().replace("'", "'\\''")+"'");
+				bw.newLine();
+			}
+		} catch (IOException e) {
+			logger.error("Error writing chunk list file for height "+f.h+".");
+			return false;
 		}
-		returnVal.success = true;
-		return returnVal;	
+		
+		logger.debug("Executing ffmpeg to join "+chunkFiles.size()+" chunk(s) for height "+f.h+".");
+		ArrayList<String> command = new ArrayList<String>(Arrays.asList(config.getString("ffmpeg.location"), "-y", "-nostdin", "-f", "concat", "-safe", "0", "-i", f.getChunkListFile().getAbsolutePath()));
+		if (hasAudio) {
+			command.addAll(Arrays.asList("-i", f.getAudioFile().getAbsolutePath()));
+		}
+		command.addAll(Arrays.asList("-map", "0:v"));
+		if (hasAudio) {
+			command.addAll(Arrays.asList("-map", "1:a"));
+		}
+		command.add("-c");
+		command.add("copy");
+		command.addAll(f.getOutputOptions());
+		int exitVal = RuntimeHelper.executeProgram(command.toArray(new String[command.size()]), workingDir, null, null);
+		
+		for (int i=0; i<chunkFiles.size(); i++) {
+			if (!chunkFiles.get(i).delete()) {
+				logger.warn("Error deleting chunk "+i+" for height "+f.h+".");
+			}
+		}
+		if (hasAudio && !f.getAudioFile().delete()) {
+			logger.warn("Error deleting audio render for height "+f.h+".");
+		}
+		
+		if (exitVal != 0) {
+			logger.warn("ffmpeg finished joining chunks for height "+f.h+" but returned error code "+exitVal+".");
+			return false;
+		}
+		logger.debug("ffmpeg finished joining chunks successfully with error code "+exitVal+".");
+		return true;
 	}
 	
-	// returns the File object for the new file on success or null otherwise
-	private File generateNewFile(File sourceFile, java.io.File file, FileType fileType, Connection dbConnection) throws SQLException {
-		long size = file.length(); // size of file in bytes
-		Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-		PreparedStatement s = dbConnection.prepareStatement("INSERT INTO files (in_use,created_at,updated_at,size,file_type_id,source_file_id,heartbeat,process_state) VALUES(0,?,?,?,?,?,?,1)", Statement.RETURN_GENERATED_KEYS);
-		s.setTimestamp(1, currentTimestamp);
-		s.setTimestamp(2, currentTimestamp);
-		s.setLong(3, size);
-		s.setInt(4, fileType.getObj().getId());
-		s.setInt(5, sourceFile.getId());
-		// so that nothing else will pick up this file and it can be registered with the heartbeat manager immediately
-		s.setTimestamp(6, currentTimestamp);
-		while(true) {
-			int numAttempts = 0;
-			try {
-				if (s.executeUpdate() != 1) {
-					s.close();
-					logger.warn("Error occurred when creating database entry for a file.");
-					return null;
-				}
-				else {
-					break;
-				}
+	// render just the audio for a format into its audio file, in one go
+	// returns true if successful
+	private boolean renderAudio(java.io.File source, java.io.File workingDir, Format f) {
+		Config config = Config.getInstance();
+		int noCores = CoreBudget.getInstance().acquire(1);
+		int exitVal;
+		try {
+			ArrayList<String> command = new ArrayList<String>(Arrays.asList(config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+config.getInt("ffmpeg.videoEncodeTimeLimit"), "-i", source.getAbsolutePath(), "-vn", "-map", "0:a:0"));
+			command.addAll(f.getAudioEncodeOptions());
+			command.addAll(Arrays.asList("-f", "mp4", f.getAudioFile().getAbsolutePath()));
+			exitVal = RuntimeHelper.executeProgram(command.toArray(new String[command.size()]), workingDir, null, null);
+		}
+		finally {
+			CoreBudget.getInstance().release(noCores);
+		}
+		if (exitVal != 0) {
+			logger.warn("ffmpeg finished rendering audio for height "+f.h+" but returned error code "+exitVal+".");
+			return false;
+		}
+		return true;
+	}
+	
+	// the number of frames in each chunk of a format, which is the configured chunk duration rounded to a whole number of gops
+	private static int getNoFramesPerChunk(Format f) {
+		return (int) Math.max(1, Math.round(Config.getInstance().getDouble("encoding.chunked.chunkDuration") * f.fr / Format.gopSize)) * Format.gopSize;
+	}
+	
+	// the number of chunks a format will be split into
+	private static int getNoChunks(FfmpegFileInfo info, Format f) {
+		return (int) Math.max(1, Math.ceil(info.getDuration() / (getNoFramesPerChunk(f) / f.fr)));
+	}
+	
+	// render one format with its own ffmpeg process, reporting progress through the monitor, which is destroyed once the render has finished
+	// noThreads is the number of cores that the caller has acquired from the core budget for this render
+	// returns true if the format was rendered successfully
+	private boolean renderFormat(java.io.File source, java.io.File workingDir, File file, Format f, FfmpegProgressMonitor monitor, int noThreads) {
+		Config config = Config.getInstance();
+		logger.debug("Executing ffmpeg for height "+f.h+" and audio bitrate "+f.aBitrate+"kbps, video bitrate "+f.vBitrate+"kbps with frame rate "+f.fr+" fps.");
+		ArrayList<String> command = new ArrayList<String>(Arrays.asList(config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+config.getInt("ffmpeg.videoEncodeTimeLimit"), "-progress", f.getProgressFile().getAbsolutePath(), "-i", source.getAbsolutePath(), "-vf", f.getScaleFilter()));
+		command.addAll(Arrays.asList("-threads", ""+noThreads));
+		if (f.packagedInOnePass) {
+			command.addAll(Arrays.asList("-map", "0:v:0", "-map", "0:a:0?"));
+		}
+		command.addAll(f.getEncodeOptions());
+		int exitVal = RuntimeHelper.executeProgram(command.toArray(new String[command.size()]), workingDir, null, null);
+		monitor.destroy();
+		if (exitVal != 0) {
+			logger.warn("ffmpeg finished but returned error code "+exitVal+".");
+			return false;
+		}
+		logger.debug("ffmpeg finished successfully with error code "+exitVal+".");
+		f.outputInfo = getRenderInfo(f, monitor, workingDir);
+		if (f.outputInfo == null) {
+			logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
+			return false;
+		}
+		return true;
+	}
+	
+	// the number of frames that will be in the render of the source for a format
+	private static double getNoOutputFrames(FfmpegFileInfo info, Format f) {
+		return Math.ceil(info.getNoFrames() * (f.fr / info.getFrameRate()));
+	}
+	
+	// render all of the formats with one ffmpeg process, so the source is only decoded once and then split and scaled for each output
+	// returns true if all of the formats were rendered successfully
+	private boolean renderWithSingleDecode(java.io.File source, java.io.File workingDir, final File file, FfmpegFileInfo info, List<Format> formatsToRender) {
+		Config config = Config.getInstance();
+		logger.debug("Executing ffmpeg for heights "+getHeights(formatsToRender)+" with one decode of the source.");
+		
+		// [0:v:0]split=2[s0][s1];[s0]scale=...[v0];[s1]scale=...[v1]
+		StringBuilder filterGraph = new StringBuilder("[0:v:0]split="+formatsToRender.size());
+		for (int i=0; i<formatsToRender.size(); i++) {
+			filterGraph.append("[s"+i+"]");
+		}
+		for (int i=0; i<formatsToRender.size(); i++) {
+			filterGraph.append(";[s"+i+"]"+formatsToRender.get(i).getScaleFilter()+"[v"+i+"]");
+		}
+		
+		// ffmpeg only reports the frame number of the first output, but all of the outputs are encoded from the same decoded frames so they progress together
+		Format firstFormat = formatsToRender.get(0);
+		final FfmpegProgressMonitor monitor = new FfmpegProgressMonitor(firstFormat.getProgressFile(), getNoOutputFrames(info, firstFormat));
+		monitor.setCallback(new Runnable() {
+			@Override
+			public void run() {
+				// called whenever the process percentage changes
+				StatusWriter.getInstance().update(file.getId(), renderRequiredFormatsMsg, monitor.getPercentage());
 			}
-			catch(MySQLTransactionRollbackException e) {
-				// http://stackoverflow.com/a/17748793/1048589 and http://dev.mysql.com/doc/refman/5.0/en/innodb-deadlocks.html
-				if (++numAttempts >= 3) {
-					// if this has failed 3 times then abort by rethrowing the exception.
-					s.close();
-					throw(e);
-				}
-				e.printStackTrace();
-				logger.warn("Mysql deadlock occurred. Retrying.");
+		});
+		// one process renders every format, so it gets the time limit that each of them would have had separately
+		ArrayList<String> command = new ArrayList<String>(Arrays.asList(config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+(config.getInt("ffmpeg.videoEncodeTimeLimit")*formatsToRender.size()), "-progress", firstFormat.getProgressFile().getAbsolutePath(), "-i", source.getAbsolutePath(), "-filter_complex", filterGraph.toString()));
+		// the process encodes every format at once, so it takes the cores that each of them would have had separately (acquire caps this at the size of the budget)
+		int noCores = CoreBudget.getInstance().acquire(config.getInt("encoding.parallel.noThreadsPerFormat")*formatsToRender.size());
+		// the cores are shared out between the encoders of the outputs
+		int noThreadsPerOutput = Math.max(1, noCores/formatsToRender.size());
+		int exitVal;
+		try {
+			for (int i=0; i<formatsToRender.size(); i++) {
+				// the audio is optional so that videos without audio can still be rendered
+				command.addAll(Arrays.asList("-map", "[v"+i+"]", "-map", "0:a:0?", "-threads", ""+noThreadsPerOutput));
+				command.addAll(formatsToRender.get(i).getEncodeOptions());
 			}
+			exitVal = RuntimeHelper.executeProgram(command.toArray(new String[command.size()]), workingDir, null, null);
+		}
+		finally {
+			CoreBudget.getInstance().release(noCores);
+		}
+		monitor.destroy();
+		if (exitVal != 0) {
+			logger.warn("ffmpeg finished but returned error code "+exitVal+".");
+			return false;
+		}
+		logger.debug("ffmpeg finished successfully with error code "+exitVal+".");
+		for (Format f : formatsToRender) {
+			// the final frame count from the progress file only applies to the first output
+			f.outputInfo = getRenderInfo(f, f == firstFormat ? monitor : null, workingDir);
+			if (f.outputInfo == null) {
+				logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static String getHeights(List<Format> formats) {
+		StringBuilder heights = new StringBuilder();
+		for (Format f : formats) {
+			if (heights.length() > 0) {
+				heights.append(", ");
+			}
+			heights.append(f.h);
+		}
+		return heights.toString();
+	}
+	
+	// get the info for a file that has just been rendered without decoding it again
+	// the dimensions and duration come from the header, and the number of frames from ffmpeg's final progress update if it finished
+	// monitor may be null if the progress file doesn't relate to this file, in which case the number of frames also comes from the header
+	// returns null if there was an error
+	private FfmpegFileInfo getRenderInfo(Format f, FfmpegProgressMonitor monitor, java.io.File workingDir) {
+		FfmpegFileInfo headerInfo = FfmpegHelper.getFileInfo(f.outputFile, workingDir, false);
+		if (headerInfo == null || monitor == null || !monitor.hasFinished()) {
+			return headerInfo;
+		}
+		return new FfmpegFileInfo(headerInfo.getW(), headerInfo.getH(), headerInfo.getFrameRate(), headerInfo.getDuration(), monitor.getCurrentFrame());
+	}
+	
+	// must be called in a transaction. returns true on success
+	private boolean createVideoFilesEntries(Connection dbConnection, List<VideoOutputFile> videoOutputFiles) throws SQLException {
+		if (videoOutputFiles.isEmpty()) {
+			return true;
+		}
+		Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+		PreparedStatement s = dbConnection.prepareStatement("INSERT INTO video_files (width,height,created_at,updated_at,quality_definition_id,file_id) VALUES (?,?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS);
+		for (VideoOutputFile o : videoOutputFiles) {
+			s.setInt(1, o.w);
+			s.setInt(2, o.h);
+			s.setTimestamp(3, currentTimestamp);
+			s.setTimestamp(4, currentTimestamp);
+			s.setInt(5, o.qualityDefinitionId);
+			s.setInt(6, o.id);
+			s.addBatch();
+		}
+		if (!DbHelper.isBatchSuccessful(s.executeBatch(), 1)) {
+			s.close();
+			logger.warn("Error creating entries in video_files table.");
+			return false;
 		}
 		
+		PreparedStatement s2 = dbConnection.prepareStatement("INSERT INTO video_files_dash (video_files_id,media_presentation_description_file_id,audio_channel_file_id,video_channel_file_id,created_at,updated_at) VALUES (?,?,?,?,?,?)");
+		PreparedStatement s3 = dbConnection.prepareStatement("INSERT INTO video_files_hls (video_files_id,playlist_file_id,segment_file_id,created_at,updated_at) VALUES (?,?,?,?,?)");
+		int numDashAndHls = 0;
+		// the keys are returned in the same order as the statements were added to the batch
 		ResultSet generatedKeys = s.getGeneratedKeys();
-		generatedKeys.next();
-		int id = generatedKeys.getInt(1);
+		for (VideoOutputFile o : videoOutputFiles) {
+			if (!generatedKeys.next()) {
+				s.close();
+				s2.close();
+				s3.close();
+				logger.warn("Error retrieving the ids of the new video_files entries.");
+				return false;
+			}
+			int videoFilesRecordId = generatedKeys.getInt(1);
+			if (o.dashMediaPresentationDescriptionId == null) {
+				continue;
+			}
+			// dash and hls renders created
+			s2.setInt(1, videoFilesRecordId);
+			s2.setInt(2, o.dashMediaPresentationDescriptionId);
+			// there is no audio channel if the source has no audio
+			if (o.dashAudioChannelId != null) {
+				s2.setInt(3, o.dashAudioChannelId);
+			}
+			else {
+				s2.setNull(3, Types.INTEGER);
+			}
+			s2.setInt(4, o.dashVideoChannelId);
+			s2.setTimestamp(5, currentTimestamp);
+			s2.setTimestamp(6, currentTimestamp);
+			s2.addBatch();
+			
+			s3.setInt(1, videoFilesRecordId);
+			s3.setInt(2, o.hlsPlaylistFileId);
+			s3.setInt(3, o.hlsSegmentFileId);
+			s3.setTimestamp(4, currentTimestamp);
+			s3.setTimestamp(5, currentTimestamp);
+			s3.addBatch();
+			numDashAndHls++;
+		}
+		s.close();
+		boolean success = numDashAndHls == 0 || (DbHelper.isBatchSuccessful(s2.executeBatch(), 1) && DbHelper.isBatchSuccessful(s3.executeBatch(), 1));
+		s2.close();
+		s3.close();
+		if (!success) {
+			logger.warn("Error creating entries in video_files_dash and video_files_hls tables.");
+		}
+		return success;
+	}
+	
+	// must be called in a transaction. returns true on success
+	private boolean createVodDataEntry(Connection dbConnection, File file, double duration) throws SQLException {
+		// if reprocessing the old entry will still be there so remove it first
+		PreparedStatement s = dbConnection.prepareStatement("DELETE FROM vod_data WHERE file_id=?");
+		s.setInt(1, file.getId());
+		if (s.executeUpdate() == 1) {
+			logger.debug("Removed old vod data.");
+		}
+		s.close();
+		
+		Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+		s = dbConnection.prepareStatement("INSERT INTO vod_data (file_id,duration,created_at,updated_at) VALUES (?,?,?,?)");
+		s.setInt(1, file.getId());
+		s.setDouble(2, duration);
+		s.setTimestamp(3, currentTimestamp);
+		s.setTimestamp(4, currentTimestamp);
+		int result = s.executeUpdate();
+		s.close();
+		if (result != 1) {
+			logger.warn("Error creating entry in vod_data for file with id "+file.getId()+".");
+			return false;
+		}
+		return true;
+	}
+	
+	// must be called in a transaction. returns true on success
+	private boolean createScrubThumbnailEntries(Connection dbConnection, VideoThumbnail[] thumbnails, Map<java.io.File, File> newFiles) throws SQLException {
+		if (thumbnails.length == 0) {
+			return true;
+		}
+		Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+		PreparedStatement s = dbConnection.prepareStatement("INSERT INTO video_scrub_thumbnail_files (created_at,updated_at,time,file_id) VALUES (?,?,?,?)");
+		for (VideoThumbnail thumbnail : thumbnails) {
+			s.setTimestamp(1, currentTimestamp);
+			s.setTimestamp(2, currentTimestamp);
+			s.setInt(3, thumbnail.getTime());
+			s.setInt(4, newFiles.get(thumbnail.getFile()).getId());
+			s.addBatch();
+		}
+		boolean success = DbHelper.isBatchSuccessful(s.executeBatch(), 1);
 		s.close();
-		return new File(id, null, size, fileType.getObj());
+		if (!success) {
+			logger.warn("Error creating entries in video_scrub_thumbnail_files table.");
+		}
+		return success;
 	}
 	
 	private boolean moveFileToWebApp(java.io.File file, File fileObj) {
@@ -685,6 +1255,9 @@ public class VODVideoFileType extends FileTypeAbstract {
 		
 	private class Format {
 		
+		// the maximum number of frames between keyframes
+		public static final int gopSize = 48;
+		
 		public Format(int qualityDefinitionId, int h, int aBitrate, int vBitrate, double fr, java.io.File outputFile) {
 			this.qualityDefinitionId = qualityDefinitionId;
 			this.h = h;
@@ -698,6 +1271,88 @@ public class VODVideoFileType extends FileTypeAbstract {
 			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_progress"));
 		}
 		
+		// the video filter that scales the source to this format's height, keeping the aspect ratio
+		// height (and width) must be multiple of 2 for libx codec
+		public String getScaleFilter() {
+			return "scale=trunc(("+h+"*a)/2)*2:"+h;
+		}
+		
+		// the ffmpeg options for encoding the audio for this format
+		public List<String> getAudioEncodeOptions() {
+			return Arrays.asList("-strict", "experimental", "-acodec", "aac", "-b:a", aBitrate+"k", "-ac", "2", "-ar", "48000", "-af", "aresample=async=1000");
+		}
+		
+		// the ffmpeg options for encoding the video for this format
+		// a keyframe every 48 frames. Chunked encoding relies on this
+		public List<String> getVideoEncodeOptions() {
+			return Arrays.asList("-vcodec", "libx264", "-vprofile", "main", "-g", ""+gopSize, "-b:v", vBitrate+"k", "-maxrate", vBitrate+"k", "-bufsize", vBitrate*2+"k", "-preset", "medium", "-crf", "16", "-vsync", "vfr", "-r", fr+"");
+		}
+		
+		// the ffmpeg options for encoding to this format, ending with the output file
+		public List<String> getEncodeOptions() {
+			ArrayList<String> options = new ArrayList<String>(getAudioEncodeOptions());
+			options.addAll(getVideoEncodeOptions());
+			options.addAll(getOutputOptions());
+			return options;
+		}
+		
+		// the ffmpeg options for writing the rendered streams, ending with the output file
+		// when packaged in one pass the tee muxer also writes the same streams to the dash and hls outputs, which means the streams must be mapped explicitly, video first and then audio
+		public List<String> getOutputOptions() {
+			if (!packagedInOnePass) {
+				return Arrays.asList("-movflags", "+faststart", "-f", "mp4", outputFile.getAbsolutePath());
+			}
+			LinkedHashMap<java.io.File, Map<String, String>> outputs = new LinkedHashMap<java.io.File, Map<String, String>>();
+			
+			LinkedHashMap<String, String> mp4Options = new LinkedHashMap<String, String>();
+			mp4Options.put("f", "mp4");
+			mp4Options.put("movflags", "+faststart");
+			outputs.put(outputFile, mp4Options);
+			
+			// one file for each channel, with segments starting on keyframes, like mp4box's onDemand profile
+			LinkedHashMap<String, String> dashOptions = new LinkedHashMap<String, String>();
+			dashOptions.put("f", "dash");
+			dashOptions.put("seg_duration", "5");
+			dashOptions.put("single_file", "1");
+			dashOptions.put("single_file_name", outputFile.getName()+"_dash_stream$RepresentationID$.mp4");
+			dashOptions.put("use_template", "0");
+			dashOptions.put("use_timeline", "0");
+			// only the streams that are present can be put in adaptation sets
+			dashOptions.put("adaptation_sets", hasAudio ? "id=0,streams=a id=1,streams=v" : "id=0,streams=v");
+			outputs.put(getDashSourceMediaPresentationDescriptionFile(), dashOptions);
+			
+			LinkedHashMap<String, String> hlsOptions = new LinkedHashMap<String, String>();
+			hlsOptions.put("f", "hls");
+			hlsOptions.put("hls_allow_cache", "1");
+			hlsOptions.put("hls_time", "5");
+			hlsOptions.put("hls_list_size", "0");
+			hlsOptions.put("hls_segment_filename", getHlsSegmentFile().getAbsolutePath());
+			hlsOptions.put("hls_flags", "single_file");
+			outputs.put(getHlsPlaylistFile(), hlsOptions);
+			
+			// the tee muxer doesn't tell the encoders that the mp4 and dash outputs need global headers
+			return Arrays.asList("-flags", "+global_header", "-f", "tee", FfmpegHelper.getTeeOutput(outputs));
+		}
+		
+		// the file that a chunk of the video (without audio) is rendered into when encoding in chunks
+		public java.io.File getChunkFile(int chunkNum) {
+			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_chunk_"+chunkNum+".mp4"));
+		}
+		
+		public java.io.File getChunkProgressFile(int chunkNum) {
+			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_chunk_"+chunkNum+"_progress"));
+		}
+		
+		// the list of chunk files that is given to ffmpeg's concat demuxer
+		public java.io.File getChunkListFile() {
+			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_chunks.txt"));
+		}
+		
+		// the file that the audio is rendered into when encoding in chunks
+		public java.io.File getAudioFile() {
+			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_audio.m4a"));
+		}
+		
 		public java.io.File getHlsProgressFile() {
 			if (!creatingDashAndHlsRenders) {
 				return null;
@@ -775,10 +1430,21 @@ public class VODVideoFileType extends FileTypeAbstract {
 			return outputFile.length() > Config.getInstance().getLong("encoding.minSizeRequiredForDashEncode")*1000000;
 		}
 		
+		// the same as shouldCreateDashAndHls but for before the format has been rendered, so the size is estimated from the bitrates
+		// the video bitrate is also the maximum rate so this will not be less than the actual size
+		public boolean shouldCreateDashAndHls(double duration) {
+			return ((aBitrate+vBitrate)*1000/8.0)*duration > Config.getInstance().getLong("encoding.minSizeRequiredForDashEncode")*1000000;
+		}
+		
+		// null if there is no audio channel because the source has no audio
 		public java.io.File getDashAudioChannelFile() {
-			if (!creatingDashAndHlsRenders) {
+			if (!creatingDashAndHlsRenders || !hasAudio) {
 				return null;
 			}
+			if (packagedInOnePass) {
+				// the dash muxer names the file after the stream, and the audio is the second stream
+				return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_dash_stream1.mp4"));
+			}
 			// mp4box will render to this file.
 			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_track1_dashinit.mp4"));
 		}
@@ -787,18 +1453,27 @@ public class VODVideoFileType extends FileTypeAbstract {
 			if (!creatingDashAndHlsRenders) {
 				return null;
 			}
-			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_track2_dashinit.mp4"));
+			if (packagedInOnePass) {
+				return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_dash_stream0.mp4"));
+			}
+			// mp4box names the file after the track, and the video is the only track if there is no audio
+			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+(hasAudio ? "_track2_dashinit.mp4" : "_track1_dashinit.mp4")));
+		}
+		
+		// the presentation description file that mp4box or the dash muxer generates
+		private java.io.File getDashSourceMediaPresentationDescriptionFile() {
+			return new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_dash.mpd"));
 		}
 		
 		// will return a File which points to a modified version of the presentation description file that has the correct paths to the audio and video channel files
+		// audioChannelFile should be null if the source has no audio
 		// or null if there was an error generating the file, or a dash render should not be created
 		public java.io.File getDashMediaPresentationDescriptionFile(File audioChannelFile, File videoChannelFile) {
 			if (!creatingDashAndHlsRenders) {
 				return null;
 			}
 			java.io.File destinationDescriptionFile = new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_dash_updated.mpd"));
-			// mp4box will generate this
-			java.io.File sourceDescriptionFile = new java.io.File(FileHelper.format(outputFile.getParentFile().getAbsolutePath()+"/"+outputFile.getName()+"_dash.mpd"));
+			java.io.File sourceDescriptionFile = getDashSourceMediaPresentationDescriptionFile();
 			
 			if (!sourceDescriptionFile.exists()) {
 				throw(new RuntimeException("Could not find source media presentation description file."));
@@ -822,17 +1497,25 @@ public class VODVideoFileType extends FileTypeAbstract {
 				}
 				Node periodNode = periodNodes[0];
 				Node[] adaptationSetNodes = extractNodesFromNodeList(periodNode.getChildNodes(), "AdaptationSet");
-				if (adaptationSetNodes.length != 2) {
+				// one adaptation set for the video, and one for the audio if there is any
+				if (adaptationSetNodes.length != (hasAudio ? 2 : 1)) {
 					logger.error("Period in dash media presentation description file not as expected.");
 					return null;
 				}
-				Node audioAdaptationSetNode = adaptationSetNodes[0];
-				NodeList audioAdaptationSetNodeList = audioAdaptationSetNode.getChildNodes();
-				// the relative url to the file will just be the id of the file
-				if (!setBaseUrlInAdaptationSet(audioAdaptationSetNodeList, audioChannelFile.getId()+"")) {
-					return null;
+				Node videoAdaptationSetNode = adaptationSetNodes[adaptationSetNodes.length-1];
+				if (hasAudio) {
+					// the audio adaptation set comes first unless the file says otherwise
+					Node audioAdaptationSetNode = adaptationSetNodes[0];
+					if ("audio".equals(getAdaptationSetContentType(videoAdaptationSetNode)) || "video".equals(getAdaptationSetContentType(audioAdaptationSetNode))) {
+						audioAdaptationSetNode = adaptationSetNodes[1];
+						videoAdaptationSetNode = adaptationSetNodes[0];
+					}
+					NodeList audioAdaptationSetNodeList = audioAdaptationSetNode.getChildNodes();
+					// the relative url to the file will just be the id of the file
+					if (!setBaseUrlInAdaptationSet(audioAdaptationSetNodeList, audioChannelFile.getId()+"")) {
+						return null;
+					}
 				}
-				Node videoAdaptationSetNode = adaptationSetNodes[1];
 				NodeList videoAdaptationSetNodeList = videoAdaptationSetNode.getChildNodes();
 				// the relative url to the file will just be the id of the file
 				if (!setBaseUrlInAdaptationSet(videoAdaptationSetNodeList, videoChannelFile.getId()+"")) {
@@ -870,6 +1553,28 @@ public class VODVideoFileType extends FileTypeAbstract {
 			return nodeObjects.toArray(new Node[nodeObjects.size()]);
 		}
 		
+		// the content type ("audio" or "video") of an adaptation set, from its contentType or mimeType attribute or the mimeType of its representation
+		// null if the file doesn't say
+		private String getAdaptationSetContentType(Node adaptationSetNode) {
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			nodes.add(adaptationSetNode);
+			nodes.addAll(Arrays.asList(extractNodesFromNodeList(adaptationSetNode.getChildNodes(), "Representation")));
+			for (Node node : nodes) {
+				if (node.getNodeType() != Node.ELEMENT_NODE) {
+					continue;
+				}
+				Element element = (Element) node;
+				if (!element.getAttribute("contentType").equals("")) {
+					return element.getAttribute("contentType");
+				}
+				String mimeType = element.getAttribute("mimeType");
+				if (mimeType.contains("/")) {
+					return mimeType.substring(0, mimeType.indexOf("/"));
+				}
+			}
+			return null;
+		}
+		
 		private boolean setBaseUrlInAdaptationSet(NodeList adaptationSetNodeList, String value) {
 			Node[] representationNodes = extractNodesFromNodeList(adaptationSetNodeList, "Representation");
 			if (representationNodes.length != 1) {
@@ -901,6 +1606,12 @@ public class VODVideoFileType extends FileTypeAbstract {
 		public int qualityDefinitionId;
 		public java.io.File outputFile;
 		public boolean creatingDashAndHlsRenders = false;
+		// true if the dash and hls outputs are written by the render itself rather than created from the rendered file afterwards
+		public boolean packagedInOnePass = false;
+		// false if the source has no audio, in which case the dash render only has a video channel
+		public boolean hasAudio = true;
+		// info about the rendered output file. Set once it has been rendered
+		public FfmpegFileInfo outputInfo = null;
 	}
 	
 	private class VideoOutputFile {
@@ -929,15 +1640,4 @@ public class VODVideoFileType extends FileTypeAbstract {
 			this.hlsSegmentFileId = hlsSegmentFile != null ? hlsSegmentFile.getId() : null;
 		}
 	}
-	
-	private class ThumbnailOutputFile {
-		
-		public int id;
-		public VideoThumbnail thumbnail;
-		
-		public ThumbnailOutputFile(int id, VideoThumbnail thumbnail) {
-			this.id = id;
-			this.thumbnail = thumbnail;
-		}
-	}
 }
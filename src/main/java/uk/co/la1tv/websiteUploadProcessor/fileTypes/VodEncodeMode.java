@@ -0,0 +1,31 @@
+package uk.co.la1tv.websiteUploadProcessor.fileTypes;
+
+import uk.co.la1tv.websiteUploadProcessor.Config;
+
+/**
+ * How a VOD is encoded into all of the formats it is rendered into.
+ *
+ */
+public enum VodEncodeMode {
+	// a separate ffmpeg process for each format, one after the other, each decoding the whole source
+	SEQUENTIAL,
+	// one ffmpeg process that decodes the source once and splits it into one output for each format
+	SINGLE_DECODE,
+	// a separate ffmpeg process for each format, with several running at the same time as long as there are free cores in the CoreBudget
+	PARALLEL,
+	// the video is split into chunks that start on a keyframe, which are encoded by separate ffmpeg processes at the same time and then joined back together
+	CHUNKED,
+	// like CHUNKED, but the chunks are added to the vod_chunks table so that they can be encoded by any server with free capacity (see ChunkWorker)
+	DISTRIBUTED;
+	
+	// get the mode that is set in the config
+	public static VodEncodeMode getFromConfig() {
+		String mode = Config.getInstance().getString("encoding.vodEncodeMode");
+		try {
+			return valueOf(mode.trim().toUpperCase());
+		}
+		catch(IllegalArgumentException e) {
+			throw(new RuntimeException("Unknown vod encode mode \""+mode+"\"."));
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package uk.co.la1tv.websiteUploadProcessor.fileTypes;
+
+/**
+ * How the DASH and HLS outputs of a VOD are created.
+ *
+ */
+public enum VodPackagingMode {
+	// from the rendered mp4 once it has been rendered, with mp4box for dash and ffmpeg for hls
+	SEPARATE,
+	// by the render itself, which writes the mp4, dash and hls outputs at the same time with ffmpeg's tee muxer
+	ONE_PASS;
+}
@@ -4,14 +4,21 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import uk.co.la1tv.websiteUploadProcessor.Config;
 import uk.co.la1tv.websiteUploadProcessor.Db;
 import uk.co.la1tv.websiteUploadProcessor.File;
 import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileType;
 
+import com.mysql.jdbc.exceptions.jdbc4.MySQLTransactionRollbackException;
+
 public class DbHelper {
 	
 	private static Logger logger = Logger.getLogger(DbHelper.class);
@@ -47,17 +54,36 @@ public class DbHelper {
 		return new File(r.getInt("id"), r.getString("filename"), r.getLong("size"), FileType.getFromId(r.getInt("file_type_id")));
 	}
 	
+	/**
+	 * Builds a comma separated list of placeholders for use in an IN clause.
+	 * @param num: The number of placeholders.
+	 * @return e.g. "?,?,?"
+	 */
+	public static String getPlaceholders(int num) {
+		StringBuilder placeholders = new StringBuilder();
+		for (int i=0; i<num; i++) {
+			if (i > 0) {
+				placeholders.append(",");
+			}
+			placeholders.append("?");
+		}
+		return placeholders.toString();
+	}
+	
 	/**
 	 * Set the current processing message and/or percentage in the database for a file.
+	 * These are stored in the file_progress table so that these frequent writes don't lock the files record,
+	 * and are only also written to the files record if general.mirrorVolatileStateToFiles is enabled.
 	 * @param connection: The database connection to use.
 	 * @param fileId: the file id in the database
 	 * @param msg: The message to set. null means no message.
 	 * @param percentage: The percentage of processing from 0-100. null means no percentage
-	 * @return boolean representing whether update successful.
+	 * @return boolean representing whether update successful. false if the file doesn't exist.
 	 */
 	public static boolean updateStatus(Connection connection, double id, String msg, Integer percentage) {
 		try {
-			PreparedStatement s = connection.prepareStatement("UPDATE files SET msg=?, process_percentage=? WHERE id=?");
+			// selected from the files table so that a row is never created for a file that doesn't exist
+			PreparedStatement s = connection.prepareStatement("INSERT INTO file_progress (file_id, msg, process_percentage) SELECT id, ?, ? FROM files WHERE id=? ON DUPLICATE KEY UPDATE msg=VALUES(msg), process_percentage=VALUES(process_percentage)");
 			s.setString(1, msg);
 			if (percentage != null) {
 				s.setInt(2, percentage);
@@ -66,8 +92,26 @@ public class DbHelper {
 				s.setNull(2, Types.INTEGER);
 			}
 			s.setDouble(3, id);
-			boolean result = s.executeUpdate() == 1;
+			int numAffected = s.executeUpdate();
 			s.close();
+			// no rows are affected if the file doesn't exist, but also if the status is already the same
+			boolean result = numAffected > 0 || fileExists(connection, id);
+			if (!result) {
+				logger.warn("Could not update status of file with id "+(int) id+" because it doesn't exist.");
+			}
+			if (result && Config.getInstance().getBoolean("general.mirrorVolatileStateToFiles")) {
+				s = connection.prepareStatement("UPDATE files SET msg=?, process_percentage=? WHERE id=?");
+				s.setString(1, msg);
+				if (percentage != null) {
+					s.setInt(2, percentage);
+				}
+				else {
+					s.setNull(2, Types.INTEGER);
+				}
+				s.setDouble(3, id);
+				result = s.executeUpdate() == 1;
+				s.close();
+			}
 			return result;
 		} catch (SQLException e) {
 			logger.warn("SQLException when trying to update status.");
@@ -75,4 +119,103 @@ public class DbHelper {
 		}
 	}
 	
+	private static boolean fileExists(Connection connection, double id) throws SQLException {
+		PreparedStatement s = connection.prepareStatement("SELECT id FROM files WHERE id=?");
+		s.setDouble(1, id);
+		boolean exists = s.executeQuery().next();
+		s.close();
+		return exists;
+	}
+	
+	/**
+	 * Determine if every statement in a batch affected the expected number of rows.
+	 * The driver may not report the number of rows if it rewrote the batch into one statement, in which case this assumes they were.
+	 * @param results: The result of executeBatch().
+	 * @param expected: The number of rows each statement should have affected.
+	 * @return
+	 */
+	public static boolean isBatchSuccessful(int[] results, int expected) {
+		for (int result : results) {
+			if (result != expected && result != Statement.SUCCESS_NO_INFO) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Create records in the files table for files that have been generated from a source file.
+	 * All of the records are inserted with one batch in a single transaction, so creating lots of files only costs one commit.
+	 * The records have in_use set to 0, so they should be moved to the web app after this and only marked as in use once processing has completed,
+	 * and process_state set to 1 so that they are never processed.
+	 * @param connection: The database connection to use. This must not be in a transaction.
+	 * @param sourceFile: The file that the new files were generated from.
+	 * @param files: The generated files on disk and the file type of each of them, in the order the records should be created.
+	 * @return The File object for each of the new records keyed by the file on disk, in the same order, or null if the records could not be created.
+	 * @throws SQLException
+	 */
+	public static Map<java.io.File, File> createFileRecords(Connection connection, File sourceFile, Map<java.io.File, FileType> files) throws SQLException {
+		LinkedHashMap<java.io.File, File> newFiles = new LinkedHashMap<>();
+		if (files.isEmpty()) {
+			return newFiles;
+		}
+		int numAttempts = 0;
+		while(true) {
+			newFiles.clear();
+			boolean committed = false;
+			connection.prepareStatement("START TRANSACTION").executeUpdate();
+			try {
+				Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+				PreparedStatement s = connection.prepareStatement("INSERT INTO files (in_use,created_at,updated_at,size,file_type_id,source_file_id,heartbeat,process_state) VALUES(0,?,?,?,?,?,?,1)", Statement.RETURN_GENERATED_KEYS);
+				for (Map.Entry<java.io.File, FileType> file : files.entrySet()) {
+					s.setTimestamp(1, currentTimestamp);
+					s.setTimestamp(2, currentTimestamp);
+					s.setLong(3, file.getKey().length()); // size of file in bytes
+					s.setInt(4, file.getValue().getObj().getId());
+					s.setInt(5, sourceFile.getId());
+					// so that nothing else will pick up this file
+					s.setTimestamp(6, currentTimestamp);
+					s.addBatch();
+				}
+				if (!isBatchSuccessful(s.executeBatch(), 1)) {
+					s.close();
+					logger.warn("Error occurred when creating database entries for files.");
+					return null;
+				}
+				// the keys are returned in the same order as the statements were added to the batch
+				ResultSet generatedKeys = s.getGeneratedKeys();
+				for (Map.Entry<java.io.File, FileType> file : files.entrySet()) {
+					if (!generatedKeys.next()) {
+						s.close();
+						logger.warn("Error retrieving the ids of newly created file records.");
+						return null;
+					}
+					newFiles.put(file.getKey(), new File(generatedKeys.getInt(1), null, file.getKey().length(), file.getValue().getObj()));
+				}
+				s.close();
+				connection.prepareStatement("COMMIT").executeUpdate();
+				committed = true;
+				return newFiles;
+			}
+			catch(SQLException e) {
+				// http://stackoverflow.com/a/17748793/1048589 and http://dev.mysql.com/doc/refman/5.0/en/innodb-deadlocks.html
+				// the whole transaction is rolled back on a deadlock so the whole batch is retried
+				if (!(e instanceof MySQLTransactionRollbackException) && !(e.getCause() instanceof MySQLTransactionRollbackException)) {
+					throw(e);
+				}
+				if (++numAttempts >= 3) {
+					// if this has failed 3 times then abort by rethrowing the exception.
+					throw(e);
+				}
+				e.printStackTrace();
+				logger.warn("Mysql deadlock occurred. Retrying.");
+			}
+			finally {
+				if (!committed) {
+					connection.prepareStatement("ROLLBACK").executeUpdate();
+				}
+			}
+		}
+	}
+	
 }
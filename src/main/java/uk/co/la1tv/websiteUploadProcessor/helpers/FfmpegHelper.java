@@ -1,35 +1,46 @@
 package uk.co.la1tv.websiteUploadProcessor.helpers;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.math3.exception.MathArithmeticException;
+import org.apache.commons.math3.exception.MathParseException;
 import org.apache.commons.math3.fraction.Fraction;
 import org.apache.commons.math3.fraction.FractionFormat;
 import org.apache.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import uk.co.la1tv.websiteUploadProcessor.Config;
+import uk.co.la1tv.websiteUploadProcessor.CoreBudget;
 
 public class FfmpegHelper {
 	
 	private static Logger logger = Logger.getLogger(FfmpegHelper.class);
 	
 	public static FfmpegFileInfo getFileInfo(File file, File workingDir) {
-		
-		Config config = Config.getInstance();
-		int exitVal;
-		
-		// get source file information.
-		GenericStreamMonitor streamMonitor = new GenericStreamMonitor();
-		
-		exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("ffmpeg.probeLocation"), "-v", "quiet", "-print_format", "json", "-show_format", "-show_streams", "-select_streams", "v:0", "-count_frames", file.getAbsolutePath()}, workingDir, streamMonitor, null);
-		if (exitVal != 0) {
-			logger.warn("Error retrieving metadata for file '"+file.getAbsolutePath()+"' with ffprobe.");
+		return getFileInfo(file, workingDir, true);
+	}
+	
+	/**
+	 * Get information about a video file.
+	 * Only the container metadata is read, which is quick. The number of frames is taken from the frame count in the metadata, or worked out from the duration and frame rate.
+	 * The frames are only counted, which means decoding the whole file, if the metadata is missing or doesn't agree with itself.
+	 * @param file
+	 * @param workingDir
+	 * @param allowCountingFrames: if false the file is never decoded to count the frames, and the number of frames is always an estimate.
+	 * @return the info or null if there was an error
+	 */
+	public static FfmpegFileInfo getFileInfo(File file, File workingDir, boolean allowCountingFrames) {
+		JSONObject metadata = probe(file, workingDir, "v:0", false);
+		if (metadata == null) {
 			return null;
 		}
 		
-		// the output from ffmpegprobe should be pure json
-		JSONObject metadata;
 		int w;
 		int h;
 		double frameRate;
@@ -37,15 +48,49 @@ public class FfmpegHelper {
 		long noFrames;
 		
 		try {
-			metadata = new JSONObject(streamMonitor.getOutput());
-			w = metadata.getJSONArray("streams").getJSONObject(0).getInt("width");
-			h = metadata.getJSONArray("streams").getJSONObject(0).getInt("height");
-			Fraction f = new FractionFormat().parse(metadata.getJSONArray("streams").getJSONObject(0).getString("r_frame_rate"));
-			frameRate = f.doubleValue();
-			duration = Double.parseDouble(metadata.getJSONObject("format").getString("duration"));
-			noFrames = Long.parseLong(metadata.getJSONArray("streams").getJSONObject(0).getString("nb_read_frames"));
+			JSONObject stream = metadata.getJSONArray("streams").getJSONObject(0);
+			w = stream.getInt("width");
+			h = stream.getInt("height");
+			Double rFrameRate = parseFrameRate(stream.optString("r_frame_rate", null));
+			if (rFrameRate == null) {
+				logger.warn("Could not determine the frame rate for file '"+file.getAbsolutePath()+"'.");
+				return null;
+			}
+			frameRate = rFrameRate;
+			Double formatDuration = parseDouble(metadata.getJSONObject("format").optString("duration", null));
+			Double streamDuration = parseDouble(stream.optString("duration", null));
+			if (formatDuration == null && streamDuration == null) {
+				logger.warn("Could not determine the duration for file '"+file.getAbsolutePath()+"'.");
+				return null;
+			}
+			duration = formatDuration != null ? formatDuration : streamDuration;
+			
+			// the stream duration excludes any other streams (e.g. audio) that go on for longer so is better for working out the number of frames
+			double estimatedNoFrames = (streamDuration != null ? streamDuration : duration) * frameRate;
+			Double avgFrameRate = parseFrameRate(stream.optString("avg_frame_rate", null));
+			Double metadataNoFrames = parseDouble(stream.optString("nb_frames", null));
+			// r_frame_rate can be much higher than the actual frame rate for variable frame rate videos, so the frame count only has to agree with one of the frame rates
+			boolean metadataNoFramesConsistent = metadataNoFrames != null && (isFrameCountConsistent(metadataNoFrames, estimatedNoFrames) || (avgFrameRate != null && isFrameCountConsistent(metadataNoFrames, estimatedNoFrames / frameRate * avgFrameRate)));
+			if (metadataNoFramesConsistent) {
+				noFrames = Math.round(metadataNoFrames);
+			}
+			else if (metadataNoFrames == null && (avgFrameRate == null || isFrameRateConsistent(avgFrameRate, frameRate))) {
+				// the container doesn't store the number of frames (e.g. matroska), but the frame rate is constant so the estimate is accurate
+				noFrames = Math.round(estimatedNoFrames);
+			}
+			else if (allowCountingFrames) {
+				logger.debug("Metadata for file '"+file.getAbsolutePath()+"' is missing or inconsistent so counting frames.");
+				JSONObject countedMetadata = probe(file, workingDir, "v:0", true);
+				if (countedMetadata == null) {
+					return null;
+				}
+				noFrames = Long.parseLong(countedMetadata.getJSONArray("streams").getJSONObject(0).getString("nb_read_frames"));
+			}
+			else {
+				noFrames = Math.round(estimatedNoFrames);
+			}
 		}
-		catch(JSONException e) {
+		catch(JSONException | NumberFormatException e) {
 			logger.warn("Error parsing JSON from ffprobe for file '"+file.getAbsolutePath()+"'.");
 			e.printStackTrace();
 			return null;
@@ -54,6 +99,158 @@ public class FfmpegHelper {
 		return new FfmpegFileInfo(w, h, frameRate, duration, noFrames);
 	}
 	
+	/**
+	 * Determine if a file contains an audio stream.
+	 * @param file
+	 * @param workingDir
+	 * @return true if it does, false if it doesn't, or null if there was an error
+	 */
+	public static Boolean hasAudio(File file, File workingDir) {
+		JSONObject metadata = probe(file, workingDir, "a", false);
+		if (metadata == null) {
+			return null;
+		}
+		JSONArray streams = metadata.optJSONArray("streams");
+		return streams != null && streams.length() > 0;
+	}
+	
+	// run ffprobe on the selected streams (e.g. "v:0" for the first video stream) and return the json output, or null if there was an error
+	// if countFrames is true the whole stream is decoded to count the frames
+	private static JSONObject probe(File file, File workingDir, String streamSpecifier, boolean countFrames) {
+		Config config = Config.getInstance();
+		GenericStreamMonitor streamMonitor = new GenericStreamMonitor();
+		
+		ArrayList<String> command = new ArrayList<>(Arrays.asList(config.getString("ffmpeg.probeLocation"), "-v", "quiet", "-print_format", "json", "-show_format", "-show_streams", "-select_streams", streamSpecifier));
+		if (countFrames) {
+			command.add("-count_frames");
+		}
+		command.add(file.getAbsolutePath());
+		int exitVal = RuntimeHelper.executeProgram(command.toArray(new String[command.size()]), workingDir, streamMonitor, null);
+		if (exitVal != 0) {
+			logger.warn("Error retrieving metadata for file '"+file.getAbsolutePath()+"' with ffprobe.");
+			return null;
+		}
+		
+		// the output from ffmpegprobe should be pure json
+		try {
+			return new JSONObject(streamMonitor.getOutput());
+		}
+		catch(JSONException e) {
+			logger.warn("Error parsing JSON from ffprobe for file '"+file.getAbsolutePath()+"'.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// true if the frame counts are within the configured tolerance of each other
+	private static boolean isFrameCountConsistent(double a, double b) {
+		double tolerance = Config.getInstance().getDouble("ffmpeg.probeFrameCountTolerance");
+		// allow for a frame either way from rounding
+		return Math.abs(a-b) <= Math.max(1, Math.max(a, b) * tolerance);
+	}
+	
+	// true if the frame rates are within the configured tolerance of each other
+	// there is no minimum difference like for frame counts, because frame rates that are a frame apart (e.g. 24 and 25) are not the same
+	private static boolean isFrameRateConsistent(double a, double b) {
+		double tolerance = Config.getInstance().getDouble("ffmpeg.probeFrameRateTolerance");
+		return Math.abs(a-b) <= Math.max(a, b) * tolerance;
+	}
+	
+	// returns null if the value is missing or is not a positive number (ffprobe uses "N/A" for unknown values)
+	private static Double parseDouble(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			double d = Double.parseDouble(value);
+			return d > 0 && !Double.isInfinite(d) ? d : null;
+		}
+		catch(NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	// parses a frame rate like "30000/1001". returns null if the value is missing or invalid (ffprobe uses "0/0" for unknown frame rates)
+	private static Double parseFrameRate(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			Fraction f = new FractionFormat().parse(value);
+			return f.doubleValue() > 0 ? f.doubleValue() : null;
+		}
+		catch(MathParseException | MathArithmeticException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Build the ffmpeg command that encodes one chunk of a video, without audio.
+	 * Seeking before the input is accurate when encoding, and the chunk will start with a keyframe because it is a new encode.
+	 * @param source
+	 * @param startTime: The time in seconds in the source that the chunk starts at.
+	 * @param duration: The length of the chunk in seconds, or null to go to the end of the source.
+	 * @param scaleFilter: The video filter that scales the source to the output size.
+	 * @param videoEncodeOptions: The ffmpeg options for encoding the video.
+	 * @param noThreads: The number of threads ffmpeg should use.
+	 * @param progressFile: The file ffmpeg should write progress to, or null.
+	 * @param output
+	 * @return
+	 */
+	public static String[] getChunkEncodeCommand(File source, double startTime, Double duration, String scaleFilter, List<String> videoEncodeOptions, int noThreads, File progressFile, File output) {
+		Config config = Config.getInstance();
+		ArrayList<String> command = new ArrayList<>(Arrays.asList(config.getString("ffmpeg.location"), "-y", "-nostdin", "-timelimit", ""+config.getInt("ffmpeg.videoEncodeTimeLimit")));
+		if (progressFile != null) {
+			command.addAll(Arrays.asList("-progress", progressFile.getAbsolutePath()));
+		}
+		command.addAll(Arrays.asList("-ss", ""+startTime, "-i", source.getAbsolutePath()));
+		if (duration != null) {
+			command.addAll(Arrays.asList("-t", ""+duration));
+		}
+		command.addAll(Arrays.asList("-vf", scaleFilter, "-an", "-threads", ""+noThreads));
+		command.addAll(videoEncodeOptions);
+		command.addAll(Arrays.asList("-f", "mp4", output.getAbsolutePath()));
+		return command.toArray(new String[command.size()]);
+	}
+	
+	/**
+	 * Build the output argument for ffmpeg's tee muxer, which writes the same encoded streams to several outputs.
+	 * The muxer options and file names are escaped so that they are passed through to each output as they are.
+	 * @param outputs: The file for each output and the muxer options for it, which must include the format ("f").
+	 * @return
+	 */
+	public static String getTeeOutput(Map<File, Map<String, String>> outputs) {
+		StringBuilder teeOutput = new StringBuilder();
+		for (Map.Entry<File, Map<String, String>> output : outputs.entrySet()) {
+			StringBuilder slave = new StringBuilder("[");
+			for (Map.Entry<String, String> option : output.getValue().entrySet()) {
+				if (slave.length() > 1) {
+					slave.append(":");
+				}
+				slave.append(option.getKey()+"="+escapeTeeValue(option.getValue(), ":]"));
+			}
+			slave.append("]"+output.getKey().getAbsolutePath());
+			if (teeOutput.length() > 0) {
+				teeOutput.append("|");
+			}
+			// the outputs are split up before their options are parsed so they are escaped twice
+			teeOutput.append(escapeTeeValue(slave.toString(), "|"));
+		}
+		return teeOutput.toString();
+	}
+	
+	// put a backslash before the characters the tee muxer would otherwise treat as special
+	private static String escapeTeeValue(String value, String specialChars) {
+		StringBuilder escaped = new StringBuilder();
+		for (char c : value.toCharArray()) {
+			if (c == '\\' || c == '\'' || specialChars.indexOf(c) != -1) {
+				escaped.append('\\');
+			}
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+	
 	// create idealNumber number of thumbnails from the provided video. with a minimum of 1 per second
 	// returns an array of the output files in order, or null if there was an error
 	public static VideoThumbnail[] generateThumbnails(int idealNumber, File source, File workingDir, int w, int h) {
@@ -86,7 +283,14 @@ public class FfmpegHelper {
 		// the second will be interval/2
 		// the third will be interval + (interval/2) 
 		// etc
-		int exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("ffmpeg.location"), "-y", "-nostdin", "-i", source.getAbsolutePath(), "-vf", "fps=1/"+interval+",scale="+calculatedWidth+":"+calculatedHeight, workingDir.getAbsolutePath()+System.getProperty("file.separator")+"thumb_%d.jpg"}, workingDir, null, null);
+		int noCores = CoreBudget.getInstance().acquire(1);
+		int exitVal;
+		try {
+			exitVal = RuntimeHelper.executeProgram(new String[] {config.getString("ffmpeg.location"), "-y", "-nostdin", "-i", source.getAbsolutePath(), "-threads", ""+noCores, "-vf", "fps=1/"+interval+",scale="+calculatedWidth+":"+calculatedHeight, workingDir.getAbsolutePath()+System.getProperty("file.separator")+"thumb_%d.jpg"}, workingDir, null, null);
+		}
+		finally {
+			CoreBudget.getInstance().release(noCores);
+		}
 		if (exitVal != 0) {
 			logger.warn("Error generating video thumbnails for '"+source.getAbsolutePath()+"' with ffmpeg.");
 			return null;
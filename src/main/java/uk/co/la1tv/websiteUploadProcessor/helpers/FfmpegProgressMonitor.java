@@ -14,11 +14,14 @@ public class FfmpegProgressMonitor {
 	private static Logger logger = Logger.getLogger(FfmpegProgressMonitor.class);
 
 	private final Timer timer;
+	private final ReadFileTask readFileTask;
 	private final File progressFile;
 	private final double totalNoFrames;
 	private double currentFrame = 0;
 	private boolean fileCreated = false;
+	private boolean finished = false;
 	private Runnable callback = null;
+	private boolean destroyed = false;
 	
 	/**
 	 * Polls the progress file generated from ffmpeg and provides an easy way of getting progress info.
@@ -34,7 +37,8 @@ public class FfmpegProgressMonitor {
 		this.progressFile = progressFile;
 		
 		timer = new Timer();
-		timer.schedule(new ReadFileTask(), 0, 800);
+		readFileTask = new ReadFileTask();
+		timer.schedule(readFileTask, 0, 800);
 	}
 	
 	// set callback to be run when progress is updated
@@ -43,8 +47,31 @@ public class FfmpegProgressMonitor {
 	}
 	
 	// stops timer that is checking file (if it is still running)
+	// the file is read one last time so that the final frame count is available after ffmpeg has finished
+	// if the file is being checked at the moment this waits for it to finish, so the callback will never be run after this returns
 	public void destroy() {
 		timer.cancel();
+		synchronized(readFileTask) {
+			if (!destroyed && !finished) {
+				try {
+					readFileTask.read();
+				}
+				catch(Exception e) {
+					logger.warn("Error reading ffmpeg progress file for the last time.");
+				}
+			}
+			destroyed = true;
+		}
+	}
+	
+	// returns the number of frames that have been written so far
+	public long getCurrentFrame() {
+		return (long) currentFrame;
+	}
+	
+	// returns true if ffmpeg reported that it finished, in which case getCurrentFrame() is the number of frames in the output
+	public boolean hasFinished() {
+		return finished;
 	}
 	
 	// returns percentage (0-100)
@@ -57,6 +84,13 @@ public class FfmpegProgressMonitor {
 		@Override
 		public synchronized void run() {
 			
+			if (destroyed) {
+				return;
+			}
+			read();
+		}
+		
+		public synchronized void read() {
 			if (!fileCreated && progressFile.exists()) {
 				fileCreated = true;
 			}
@@ -87,6 +121,7 @@ public class FfmpegProgressMonitor {
 				// still get the latest result though
 				logger.info("Cancelling timer because ffmpeg finished.");
 				timer.cancel();
+				finished = true;
 			}
 			
 			// loop through lines starting from end to find the line after the last progress= which is where the last update started
@@ -69,6 +69,20 @@ public class FileHelper {
 		return FileHelper.format(Config.getInstance().getString("files.webappFilesLocation")+"/"+fileId);
 	}
 	
+	/**
+	 * Get the directory that chunks of videos are encoded into when they are encoded by several servers.
+	 * This is inside the web app files location so that it is shared by all of the servers.
+	 * @return
+	 */
+	public static String getChunksDir() {
+		return FileHelper.format(Config.getInstance().getString("files.webappFilesLocation")+"/chunks");
+	}
+	
+	// the token is part of the name so that if a chunk is encoded again somewhere else after its lease was lost the two encodes never write to the same file
+	public static String getChunkPath(int chunkId, long token) {
+		return FileHelper.format(getChunksDir()+"/"+chunkId+"_"+token+".mp4");
+	}
+	
 	public static boolean moveToWebApp(File source, int id) {
 		File destinationLocation = new File(FileHelper.format(Config.getInstance().getString("files.webappFilesLocation")+"/"+id));
 		return moveFile(source, destinationLocation);
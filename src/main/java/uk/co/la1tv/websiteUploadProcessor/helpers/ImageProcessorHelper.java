@@ -3,17 +3,18 @@ package uk.co.la1tv.websiteUploadProcessor.helpers;
 import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import uk.co.la1tv.websiteUploadProcessor.Config;
 import uk.co.la1tv.websiteUploadProcessor.File;
+import uk.co.la1tv.websiteUploadProcessor.StatusWriter;
 import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileType;
 import uk.co.la1tv.websiteUploadProcessor.fileTypes.FileTypeProcessReturnInfo;
 
@@ -81,90 +82,93 @@ public class ImageProcessorHelper {
 			}
 		}
 
-		DbHelper.updateStatus(dbConnection, file.getId(), "Finalizing.", null);
+		StatusWriter.getInstance().update(file.getId(), "Finalizing.", null);
 		ArrayList<OutputFile> outputFiles = new ArrayList<OutputFile>();
 		
+		Map<java.io.File, File> newFiles;
 		try {
+			LinkedHashMap<java.io.File, FileType> filesToCreate = new LinkedHashMap<java.io.File, FileType>();
 			for (ImageFormat f : formats) {
-				
-				long size = f.outputFile.length(); // size of file in bytes
-				
-				logger.debug("Creating file record for render with height "+f.h+" belonging to source file with id "+file.getId()+".");
-
-				Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-				PreparedStatement s = dbConnection.prepareStatement("INSERT INTO files (in_use,created_at,updated_at,size,file_type_id,source_file_id,heartbeat,process_state) VALUES(0,?,?,?,?,?,?,1)", Statement.RETURN_GENERATED_KEYS);
-				s.setTimestamp(1, currentTimestamp);
-				s.setTimestamp(2, currentTimestamp);
-				s.setLong(3, size);
-				s.setInt(4, outputFileType.getObj().getId());
-				s.setInt(5, file.getId());
-				// so that nothing else will pick up this file and it can be registered with the heartbeat manager immediately
-				s.setTimestamp(6, currentTimestamp);
-				if (s.executeUpdate() != 1) {
-					s.close();
-					logger.warn("Error occurred when creating database entry for a file.");
-					return false;
-				}
-				ResultSet generatedKeys = s.getGeneratedKeys();
-				generatedKeys.next();
-				int id = generatedKeys.getInt(1);
-				s.close();
-				
-				File newFile = new File(id, null, size, outputFileType.getObj());
-				
-				logger.debug("File record created with id "+id+" for image render with width "+f.w+" and height "+f.h+" belonging to source file with id "+file.getId()+".");
-				
-				// add to set of files to mark in_use when processing completed
-				if (!returnVal.registerNewFile(newFile)) {
-					// error occurred. abort
-					logger.warn("Error trying to register newly created file.");
-					return false;
-				}
-				
-				// add entry to OutputFiles array which will be used to populate VideoFiles table later
-				// get width and height of output
-				ImageMagickFileInfo info = ImageMagickHelper.getFileInfo(inputFormat, f.outputFile, workingDir);
-				if (info == null) {
-					logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
-					return false;
-				}
-				
-				outputFiles.add(new OutputFile(id, info.getW(), info.getH()));
-				
-				// copy file to server
-				logger.info("Moving output file with id "+id+" to web app...");
-				if (!FileHelper.moveToWebApp(f.outputFile, id)) {
-					logger.error("Error trying to move output file with id "+id+" to web app.");
-					return false;
-				}
-				logger.info("Output file with id "+id+" moved to web app.");
+				filesToCreate.put(f.outputFile, outputFileType);
+			}
+			logger.debug("Creating file records for image renders belonging to source file with id "+file.getId()+".");
+			// all of the records are created in one batch and transaction
+			newFiles = DbHelper.createFileRecords(dbConnection, file, filesToCreate);
+			if (newFiles == null) {
+				logger.warn("Error occurred when creating database entries for image renders.");
+				return false;
 			}
 		} catch (SQLException e) {
+			e.printStackTrace();
 			throw(new RuntimeException("Error trying to register files in database."));
 		}
 		
+		for (ImageFormat f : formats) {
+			File newFile = newFiles.get(f.outputFile);
+			int id = newFile.getId();
+			
+			logger.debug("File record created with id "+id+" for image render with width "+f.w+" and height "+f.h+" belonging to source file with id "+file.getId()+".");
+			
+			// add to set of files to mark in_use when processing completed
+			if (!returnVal.registerNewFile(newFile)) {
+				// error occurred. abort
+				logger.warn("Error trying to register newly created file.");
+				return false;
+			}
+			
+			// add entry to OutputFiles array which will be used to populate VideoFiles table later
+			// get width and height of output
+			ImageMagickFileInfo info = ImageMagickHelper.getFileInfo(inputFormat, f.outputFile, workingDir);
+			if (info == null) {
+				logger.warn("Error retrieving info for file rendered from source file with id "+file.getId()+".");
+				return false;
+			}
+			
+			outputFiles.add(new OutputFile(id, info.getW(), info.getH()));
+			
+			// copy file to server
+			logger.info("Moving output file with id "+id+" to web app...");
+			if (!FileHelper.moveToWebApp(f.outputFile, id)) {
+				logger.error("Error trying to move output file with id "+id+" to web app.");
+				return false;
+			}
+			logger.info("Output file with id "+id+" moved to web app.");
+		}
 		
 		try {
 			// create entries in image_files
 			logger.debug("Creating entries in image_files table...");
+			Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+			PreparedStatement s = dbConnection.prepareStatement("INSERT INTO image_files (width,height,created_at,updated_at,file_id) VALUES (?,?,?,?,?)");
 			for (OutputFile o : outputFiles) {
-				Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-				PreparedStatement s = dbConnection.prepareStatement("INSERT INTO image_files (width,height,created_at,updated_at,file_id) VALUES (?,?,?,?,?)");
 				s.setInt(1, o.w);
 				s.setInt(2, o.h);
 				s.setTimestamp(3, currentTimestamp);
 				s.setTimestamp(4, currentTimestamp);
 				s.setInt(5, o.id);
-				int result = s.executeUpdate();
-				s.close();
-				if (result != 1) {
-					logger.debug("Error registering file with id "+o.id+" in image_files table.");
+				s.addBatch();
+			}
+			// a batch sent outside of a transaction would be committed a statement at a time
+			boolean committed = false;
+			dbConnection.prepareStatement("START TRANSACTION").executeUpdate();
+			try {
+				if (!DbHelper.isBatchSuccessful(s.executeBatch(), 1)) {
+					s.close();
+					logger.debug("Error creating entries in image_files table.");
 					return false;
 				}
-				logger.debug("Created entry in image_files table for file with id "+o.id+".");
+				s.close();
+				dbConnection.prepareStatement("COMMIT").executeUpdate();
+				committed = true;
+			}
+			finally {
+				if (!committed) {
+					dbConnection.prepareStatement("ROLLBACK").executeUpdate();
+				}
 			}
 			logger.debug("Created entries in image_files table.");
 		} catch (SQLException e) {
+			e.printStackTrace();
 			throw(new RuntimeException("Error trying to create entries in image_files."));
 		}
 		